@@ -0,0 +1,48 @@
+import ij.ImageStack;
+import ij.process.*;
+import benchmarks.Kernels;
+
+/**
+    The kernels of the plugins behind the benchmarks.Kernels interface,
+      see there. Every benchmark state owns one instance.
+*/
+public class BenchmarkKernels implements Kernels {
+
+    final Image_Stabilizer stabilizer = new Image_Stabilizer();
+    ImagePyramid pyramid = null;
+    ImagePyramid refPyramid = null;
+
+
+    @Override
+    public void setTemplate(ImageProcessor template, int pyramidLevel) {
+        stabilizer.transform = Image_Stabilizer.TRANSLATION;
+        stabilizer.pyramidLevel = pyramidLevel;
+        pyramid = stabilizer.createPyramid(template.getWidth(), template.getHeight());
+        refPyramid = stabilizer.createPyramid(template.getWidth(), template.getHeight());
+        stabilizer.prepareReference(template.convertToFloat(), refPyramid);
+    }
+
+
+    @Override
+    public double[][] estimateTranslation(ImageProcessor frame, int maxIter, double tol) {
+        return stabilizer.estimateTranslation(frame.convertToFloat(), pyramid, refPyramid, maxIter, tol);
+    }
+
+
+    @Override
+    public void warpAffine(ImageProcessor out, ImageProcessor frame, double[][] wp) {
+        BilinearWarp.warp(out, frame, wp, BilinearWarp.BORDER_CLAMP);
+    }
+
+
+    @Override
+    public void gradient(float[] out, float[] pixels, int width, int height) {
+        ImagePyramid.gradient(out, pixels, width, height);
+    }
+
+
+    @Override
+    public ImageStack[] deltaFF(ImageStack stack, int startF0, int endF0) {
+        return RelativeChange.deltaFF(stack, startF0, endF0);
+    }
+}
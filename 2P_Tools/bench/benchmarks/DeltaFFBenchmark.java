@@ -0,0 +1,42 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import ij.ImageStack;
+import org.openjdk.jmh.annotations.*;
+
+/**
+    dF/F and weighted dF/F of a drifting 32 frame recording with F0 over
+      the frames 5..20, as computed after the filters of Calculate_DFF.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class DeltaFFBenchmark {
+
+    static final int FRAMES = 32;
+
+    @Param({ "256", "512", "1024" })
+    public int size;
+
+    @Param({ "8", "16", "32" })
+    public int bitDepth;
+
+    Kernels kernels;
+    ImageStack stack;
+
+
+    @Setup
+    public void setUp() {
+        kernels = Kernels.Factory.create();
+        stack = SyntheticFrames.movie(size, FRAMES, bitDepth, 1);
+    }
+
+
+    @Benchmark
+    public ImageStack[] deltaFF() {
+        return kernels.deltaFF(stack, 5, 20);
+    }
+}
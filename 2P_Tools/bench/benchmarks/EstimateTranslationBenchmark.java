@@ -0,0 +1,43 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import ij.process.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+    Translation estimate of the Image_Stabilizer: a frame moved by
+      (2.37, -1.61) pixels against a prepared template, with one pyramid
+      level and the default iteration limit and tolerance.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class EstimateTranslationBenchmark {
+
+    @Param({ "256", "512", "1024" })
+    public int size;
+
+    @Param({ "8", "16", "32" })
+    public int bitDepth;
+
+    Kernels kernels;
+    ImageProcessor frame;
+
+
+    @Setup
+    public void setUp() {
+        FloatProcessor scene = SyntheticFrames.scene(size, 1);
+        kernels = Kernels.Factory.create();
+        kernels.setTemplate(SyntheticFrames.frame(scene, 0.0, 0.0, 0.0, bitDepth, 2), 1);
+        frame = SyntheticFrames.frame(scene, 2.37, -1.61, 0.0, bitDepth, 3);
+    }
+
+
+    @Benchmark
+    public double[][] estimateTranslation() {
+        return kernels.estimateTranslation(frame, 200, 1e-7);
+    }
+}
@@ -0,0 +1,40 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import ij.process.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+    Sobel gradient magnitude of a frame, level 0 of every pyramid the
+      stabilizer builds. It works on 32-bit data only.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class GradientBenchmark {
+
+    @Param({ "256", "512", "1024" })
+    public int size;
+
+    Kernels kernels;
+    float[] pixels;
+    float[] out;
+
+
+    @Setup
+    public void setUp() {
+        kernels = Kernels.Factory.create();
+        pixels = (float[])SyntheticFrames.frame(SyntheticFrames.scene(size, 1), 2.37, -1.61, 0.0, 32, 3).getPixels();
+        out = new float[size * size];
+    }
+
+
+    @Benchmark
+    public float[] gradient() {
+        kernels.gradient(out, pixels, size, size);
+        return out;
+    }
+}
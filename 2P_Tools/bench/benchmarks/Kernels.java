@@ -0,0 +1,49 @@
+package benchmarks;
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+/**
+    The hot paths of the plugins as seen by the benchmarks.
+
+    JMH does not accept benchmarks in the default package, and classes
+      in a named package cannot refer to those in the default package,
+      where the plugins live. BenchmarkKernels, in the default package,
+      implements this interface on top of them and is loaded by name.
+*/
+public interface Kernels {
+
+    /** Builds the template pyramid of estimateTranslation(). */
+    void setTemplate(ImageProcessor template, int pyramidLevel);
+
+    /**
+        Estimates the translation of a frame against the template,
+          including its conversion to float, as the stabilizer does.
+    */
+    double[][] estimateTranslation(ImageProcessor frame, int maxIter, double tol);
+
+    /** Warps a frame into out, both of the same type and size. */
+    void warpAffine(ImageProcessor out, ImageProcessor frame, double[][] wp);
+
+    /** Sobel gradient magnitude of a 32-bit image of width by height. */
+    void gradient(float[] out, float[] pixels, int width, int height);
+
+    /** Returns {dF/F, weighted dF/F} of a stack. */
+    ImageStack[] deltaFF(ImageStack stack, int startF0, int endF0);
+
+
+    final class Factory {
+
+        private Factory() {
+        }
+
+        static Kernels create() {
+            try {
+                return (Kernels)Class.forName("BenchmarkKernels").newInstance();
+            }
+            catch (Exception e) {
+                throw new IllegalStateException("BenchmarkKernels not found", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+    Runs the benchmarks with the usual JMH command line options and the
+      GC profiler always on, so that the allocation rate
+      (gc.alloc.rate.norm, bytes per operation) is reported next to the
+      throughput (ops/s).
+*/
+public class Main {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions options = new CommandLineOptions(args);
+        if (options.shouldHelp()) {
+            options.showHelp();
+            return;
+        }
+        Runner runner = new Runner(new OptionsBuilder()
+            .parent(options)
+            .addProfiler(GCProfiler.class)
+            .build());
+        if (options.shouldList())
+            runner.list();
+        else
+            runner.run();
+    }
+}
@@ -0,0 +1,105 @@
+package benchmarks;
+
+import java.util.Random;
+import ij.ImageStack;
+import ij.process.*;
+
+/**
+    Synthetic two-photon frames for the benchmarks.
+
+    The scene is a dim, slowly varying background with Gaussian somata
+      of random size and brightness. A frame is the scene moved by a
+      rotation and a subpixel translation of a few pixels, like the drift
+      of an awake recording, with shot noise added, and converted to 8,
+      16 or 32 bits. The same seed gives the same frames.
+*/
+final class SyntheticFrames {
+
+    private SyntheticFrames() {
+    }
+
+
+    /** The scene without motion and noise, as 32-bit. */
+    static FloatProcessor scene(int size, long seed) {
+        Random random = new Random(seed);
+        float[] pixels = new float[size * size];
+        for (int y = 0; y < size; ++y)
+            for (int x = 0; x < size; ++x)
+                pixels[y * size + x] = (float)(200.0 + 60.0 * Math.sin(x * 6.0 / size) * Math.cos(y * 4.0 / size));
+
+        // About one soma per 40 x 40 pixels, 4 to 8 pixels in radius at 512 px.
+        int somata = size * size / 1600;
+        double scale = size / 512.0;
+        for (int s = 0; s < somata; ++s) {
+            double cx = random.nextDouble() * size;
+            double cy = random.nextDouble() * size;
+            double sigma = (2.0 + 2.0 * random.nextDouble()) * scale;
+            double amplitude = 300.0 + 1200.0 * random.nextDouble();
+            int r = (int)Math.ceil(3.0 * sigma);
+            for (int y = Math.max(0, (int)cy - r); y <= Math.min(size - 1, (int)cy + r); ++y)
+                for (int x = Math.max(0, (int)cx - r); x <= Math.min(size - 1, (int)cx + r); ++x) {
+                    double dx = x - cx;
+                    double dy = y - cy;
+                    pixels[y * size + x] += (float)(amplitude * Math.exp(-(dx * dx + dy * dy) / (2.0 * sigma * sigma)));
+                }
+        }
+        return new FloatProcessor(size, size, pixels, null);
+    }
+
+
+    /**
+        The scene rotated by angle degrees and translated by (dx, dy),
+          with shot noise, of the given bit depth.
+    */
+    static ImageProcessor frame(FloatProcessor scene, double dx, double dy, double angle,
+                                int bitDepth, long seed)
+    {
+        ImageProcessor ip = scene.duplicate();
+        ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+        ip.setBackgroundValue(0.0);
+        if (angle != 0.0)
+            ip.rotate(angle);
+        ip.translate(dx, dy);
+
+        Random random = new Random(seed);
+        float[] pixels = (float[])ip.getPixels();
+        for (int i = 0; i < pixels.length; ++i)
+            pixels[i] = (float)Math.max(0.0, pixels[i] + Math.sqrt(pixels[i]) * random.nextGaussian());
+        return convert(ip, bitDepth);
+    }
+
+
+    /**
+        A recording of n frames drifting on a random walk, the somata
+          brightened by a common transient in every eighth frame.
+    */
+    static ImageStack movie(int size, int n, int bitDepth, long seed) {
+        FloatProcessor scene = scene(size, seed);
+        Random random = new Random(seed + 1);
+        ImageStack stack = new ImageStack(size, size);
+        double dx = 0.0;
+        double dy = 0.0;
+        for (int t = 0; t < n; ++t) {
+            dx += 0.3 * random.nextGaussian();
+            dy += 0.3 * random.nextGaussian();
+            FloatProcessor frame = scene;
+            if (t % 8 == 4) {
+                frame = (FloatProcessor)scene.duplicate();
+                frame.multiply(1.3);
+            }
+            stack.addSlice("t" + t, frame(frame, dx, dy, 0.0, bitDepth, seed + 2 + t));
+        }
+        return stack;
+    }
+
+
+    static ImageProcessor convert(ImageProcessor ip, int bitDepth) {
+        if (bitDepth == 8) {
+            ip.setMinAndMax(0.0, 2048.0);
+            return ip.convertToByte(true);
+        }
+        if (bitDepth == 16)
+            return ip.convertToShort(false);
+        return ip;
+    }
+}
@@ -0,0 +1,45 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import ij.process.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+    Bilinear affine warp of a frame in its own type, a rotation of about
+      0.4 degrees with a slight scaling and a subpixel translation.
+*/
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+@State(Scope.Thread)
+public class WarpAffineBenchmark {
+
+    @Param({ "256", "512", "1024" })
+    public int size;
+
+    @Param({ "8", "16", "32" })
+    public int bitDepth;
+
+    final double[][] wp = { { 0.002, -0.007, 1.3 }, { 0.007, 0.002, -0.8 } };
+
+    Kernels kernels;
+    ImageProcessor frame;
+    ImageProcessor out;
+
+
+    @Setup
+    public void setUp() {
+        kernels = Kernels.Factory.create();
+        frame = SyntheticFrames.frame(SyntheticFrames.scene(size, 1), 2.37, -1.61, 0.4, bitDepth, 3);
+        out = frame.createProcessor(size, size);
+    }
+
+
+    @Benchmark
+    public ImageProcessor warpAffine() {
+        kernels.warpAffine(out, frame, wp);
+        return out;
+    }
+}
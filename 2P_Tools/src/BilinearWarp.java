@@ -0,0 +1,705 @@
+import ij.process.*;
+
+/**
+    Bilinear warp kernels used by the Image_Stabilizer and the
+      Image_Stabilizer_Log_Applier.
+
+    The kernels read and write the pixel arrays directly instead of
+      calling ImageProcessor.getInterpolatedPixel() for every pixel. The
+      source coordinates are stepped incrementally along each row. Pure
+      translations use constant interpolation weights across the interior
+      of a row, and integer translations are reduced to row copies.
+
+    A warp is given as in the stabilizer: wp = {{tx}, {ty}} for a
+      translation and wp = {{a00, a01, tx}, {a10, a11, ty}} for an affine
+      transformation, where the output pixel (x, y) is sampled from the
+      source at (x + a00 x + a01 y + tx, a10 x + y + a11 y + ty). A
+      piecewise rigid warp has a third row with the tile grid and is
+      sampled through the shift field described in PiecewiseRigid.
+
+    Border policy for samples that fall outside of the source image:
+      BORDER_CLAMP  the coordinates are clamped to the image, which is
+                    what ImageProcessor.getInterpolatedPixel() does.
+      BORDER_ZERO   the sample is 0.
+*/
+class BilinearWarp {
+
+    static final int BORDER_CLAMP = 0;
+    static final int BORDER_ZERO = 1;
+
+
+    /**
+        Warps ip into ipOut. Both processors must be of the same type and
+          size; wp with a single column is treated as a translation and
+          wp with three rows as a piecewise rigid transformation.
+    */
+    static void warp(ImageProcessor ipOut, ImageProcessor ip, double[][] wp, int border) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        Object src = ip.getPixels();
+        Object dst = ipOut.getPixels();
+        if (PiecewiseRigid.isPiecewise(wp)) {
+            if (src instanceof float[])
+                piecewise((float[])dst, (float[])src, width, height, wp, border);
+            else if (src instanceof short[])
+                piecewise((short[])dst, (short[])src, width, height, wp, border);
+            else if (src instanceof byte[])
+                piecewise((byte[])dst, (byte[])src, width, height, wp, border);
+            else
+                piecewise((int[])dst, (int[])src, width, height, wp, border);
+        }
+        else if (wp[0].length == 1) {
+            double tx = wp[0][0];
+            double ty = wp[1][0];
+            if (src instanceof float[])
+                translate((float[])dst, (float[])src, width, height, tx, ty, border);
+            else if (src instanceof short[])
+                translate((short[])dst, (short[])src, width, height, tx, ty, border);
+            else if (src instanceof byte[])
+                translate((byte[])dst, (byte[])src, width, height, tx, ty, border);
+            else
+                translate((int[])dst, (int[])src, width, height, tx, ty, border);
+        }
+        else {
+            if (src instanceof float[])
+                affine((float[])dst, (float[])src, width, height, wp, border);
+            else if (src instanceof short[])
+                affine((short[])dst, (short[])src, width, height, wp, border);
+            else if (src instanceof byte[])
+                affine((byte[])dst, (byte[])src, width, height, wp, border);
+            else
+                affine((int[])dst, (int[])src, width, height, wp, border);
+        }
+    }
+
+
+    //
+    // 32-bit
+    //
+
+    static void translate(float[] dst, float[] src, int width, int height,
+                          double tx, double ty, int border)
+    {
+        int ix = (int)Math.floor(tx);
+        int iy = (int)Math.floor(ty);
+        double fx = tx - ix;
+        double fy = ty - iy;
+
+        if (fx == 0.0 && fy == 0.0) {
+            shift(dst, src, width, height, ix, iy, border);
+            return;
+        }
+
+        // Output range whose four neighbours all lie inside the source.
+        int x0 = Math.max(0, -ix), x1 = Math.min(width, width - 1 - ix);
+        int y0 = Math.max(0, -iy), y1 = Math.min(height, height - 1 - iy);
+
+        for (int y = 0; y < height; ++y) {
+            int p = y * width;
+            if (y < y0 || y >= y1 || x0 >= x1) {
+                for (int x = 0; x < width; ++x)
+                    dst[p + x] = (float)edge(src, width, height, x + tx, y + ty, border);
+                continue;
+            }
+            for (int x = 0; x < x0; ++x)
+                dst[p + x] = (float)edge(src, width, height, x + tx, y + ty, border);
+            int o = (y + iy) * width + x0 + ix;
+            for (int x = x0; x < x1; ++x, ++o) {
+                double lower = src[o] + fx * (src[o + 1] - src[o]);
+                double upper = src[o + width] + fx * (src[o + width + 1] - src[o + width]);
+                dst[p + x] = (float)(lower + fy * (upper - lower));
+            }
+            for (int x = x1; x < width; ++x)
+                dst[p + x] = (float)edge(src, width, height, x + tx, y + ty, border);
+        }
+    }
+
+
+    static void affine(float[] dst, float[] src, int width, int height,
+                       double[][] wp, int border)
+    {
+        double a00 = 1.0 + wp[0][0], a01 = wp[0][1], a02 = wp[0][2];
+        double a10 = wp[1][0], a11 = 1.0 + wp[1][1], a12 = wp[1][2];
+        double xMax = width - 1.0;
+        double yMax = height - 1.0;
+
+        for (int p = 0, y = 0; y < height; ++y) {
+            double xx = a01 * y + a02;
+            double yy = a11 * y + a12;
+            for (int x = 0; x < width; ++x, ++p, xx += a00, yy += a10) {
+                if (xx >= 0.0 && yy >= 0.0 && xx < xMax && yy < yMax) {
+                    int xbase = (int)xx;
+                    int ybase = (int)yy;
+                    double xf = xx - xbase;
+                    double yf = yy - ybase;
+                    int o = ybase * width + xbase;
+                    double lower = src[o] + xf * (src[o + 1] - src[o]);
+                    double upper = src[o + width] + xf * (src[o + width + 1] - src[o + width]);
+                    dst[p] = (float)(lower + yf * (upper - lower));
+                }
+                else
+                    dst[p] = (float)edge(src, width, height, xx, yy, border);
+            }
+        }
+    }
+
+
+    static void piecewise(float[] dst, float[] src, int width, int height,
+                          double[][] wp, int border)
+    {
+        double[] xs = new double[width];
+        double[] ys = new double[width];
+        double[] rx = new double[(int)wp[2][0]];
+        double[] ry = new double[rx.length];
+        double xMax = width - 1.0;
+        double yMax = height - 1.0;
+
+        for (int p = 0, y = 0; y < height; ++y) {
+            PiecewiseRigid.sourceRow(wp, width, height, y, xs, ys, rx, ry);
+            for (int x = 0; x < width; ++x, ++p) {
+                double xx = xs[x];
+                double yy = ys[x];
+                if (xx >= 0.0 && yy >= 0.0 && xx < xMax && yy < yMax) {
+                    int xbase = (int)xx;
+                    int ybase = (int)yy;
+                    double xf = xx - xbase;
+                    double yf = yy - ybase;
+                    int o = ybase * width + xbase;
+                    double lower = src[o] + xf * (src[o + 1] - src[o]);
+                    double upper = src[o + width] + xf * (src[o + width + 1] - src[o + width]);
+                    dst[p] = (float)(lower + yf * (upper - lower));
+                }
+                else
+                    dst[p] = (float)edge(src, width, height, xx, yy, border);
+            }
+        }
+    }
+
+
+    static void shift(float[] dst, float[] src, int width, int height,
+                      int ix, int iy, int border)
+    {
+        int x0 = Math.max(0, -ix), x1 = Math.min(width, width - ix);
+        for (int y = 0; y < height; ++y) {
+            int p = y * width;
+            int ys = y + iy;
+            if (ys < 0 || ys >= height) {
+                if (border == BORDER_ZERO) {
+                    for (int x = 0; x < width; ++x)
+                        dst[p + x] = 0f;
+                    continue;
+                }
+                ys = ys < 0 ? 0 : height - 1;
+            }
+            int o = ys * width;
+            if (x0 < x1)
+                System.arraycopy(src, o + x0 + ix, dst, p + x0, x1 - x0);
+            float left = border == BORDER_ZERO ? 0f : src[o];
+            float right = border == BORDER_ZERO ? 0f : src[o + width - 1];
+            for (int x = 0; x < x0 && x < width; ++x)
+                dst[p + x] = left;
+            for (int x = Math.max(x1, 0); x < width; ++x)
+                dst[p + x] = right;
+        }
+    }
+
+
+    static double edge(float[] src, int width, int height, double xx, double yy, int border) {
+        if (border == BORDER_ZERO &&
+                (xx < 0.0 || yy < 0.0 || xx > width - 1.0 || yy > height - 1.0))
+            return 0.0;
+        if (xx < 0.0) xx = 0.0;
+        if (xx >= width - 1.0) xx = width - 1.001;
+        if (yy < 0.0) yy = 0.0;
+        if (yy >= height - 1.0) yy = height - 1.001;
+        int xbase = (int)xx;
+        int ybase = (int)yy;
+        double xf = xx - xbase;
+        double yf = yy - ybase;
+        int o = ybase * width + xbase;
+        double lower = src[o] + xf * (src[o + 1] - src[o]);
+        double upper = src[o + width] + xf * (src[o + width + 1] - src[o + width]);
+        return lower + yf * (upper - lower);
+    }
+
+
+    //
+    // 16-bit
+    //
+
+    static void translate(short[] dst, short[] src, int width, int height,
+                          double tx, double ty, int border)
+    {
+        int ix = (int)Math.floor(tx);
+        int iy = (int)Math.floor(ty);
+        double fx = tx - ix;
+        double fy = ty - iy;
+
+        if (fx == 0.0 && fy == 0.0) {
+            shift(dst, src, width, height, ix, iy, border);
+            return;
+        }
+
+        int x0 = Math.max(0, -ix), x1 = Math.min(width, width - 1 - ix);
+        int y0 = Math.max(0, -iy), y1 = Math.min(height, height - 1 - iy);
+
+        for (int y = 0; y < height; ++y) {
+            int p = y * width;
+            if (y < y0 || y >= y1 || x0 >= x1) {
+                for (int x = 0; x < width; ++x)
+                    dst[p + x] = toShort(edge(src, width, height, x + tx, y + ty, border));
+                continue;
+            }
+            for (int x = 0; x < x0; ++x)
+                dst[p + x] = toShort(edge(src, width, height, x + tx, y + ty, border));
+            int o = (y + iy) * width + x0 + ix;
+            for (int x = x0; x < x1; ++x, ++o) {
+                int ll = src[o] & 0xffff, lr = src[o + 1] & 0xffff;
+                int ul = src[o + width] & 0xffff, ur = src[o + width + 1] & 0xffff;
+                double lower = ll + fx * (lr - ll);
+                double upper = ul + fx * (ur - ul);
+                dst[p + x] = (short)(lower + fy * (upper - lower) + 0.5);
+            }
+            for (int x = x1; x < width; ++x)
+                dst[p + x] = toShort(edge(src, width, height, x + tx, y + ty, border));
+        }
+    }
+
+
+    static void affine(short[] dst, short[] src, int width, int height,
+                       double[][] wp, int border)
+    {
+        double a00 = 1.0 + wp[0][0], a01 = wp[0][1], a02 = wp[0][2];
+        double a10 = wp[1][0], a11 = 1.0 + wp[1][1], a12 = wp[1][2];
+        double xMax = width - 1.0;
+        double yMax = height - 1.0;
+
+        for (int p = 0, y = 0; y < height; ++y) {
+            double xx = a01 * y + a02;
+            double yy = a11 * y + a12;
+            for (int x = 0; x < width; ++x, ++p, xx += a00, yy += a10) {
+                if (xx >= 0.0 && yy >= 0.0 && xx < xMax && yy < yMax) {
+                    int xbase = (int)xx;
+                    int ybase = (int)yy;
+                    double xf = xx - xbase;
+                    double yf = yy - ybase;
+                    int o = ybase * width + xbase;
+                    int ll = src[o] & 0xffff, lr = src[o + 1] & 0xffff;
+                    int ul = src[o + width] & 0xffff, ur = src[o + width + 1] & 0xffff;
+                    double lower = ll + xf * (lr - ll);
+                    double upper = ul + xf * (ur - ul);
+                    dst[p] = (short)(lower + yf * (upper - lower) + 0.5);
+                }
+                else
+                    dst[p] = toShort(edge(src, width, height, xx, yy, border));
+            }
+        }
+    }
+
+
+    static void piecewise(short[] dst, short[] src, int width, int height,
+                          double[][] wp, int border)
+    {
+        double[] xs = new double[width];
+        double[] ys = new double[width];
+        double[] rx = new double[(int)wp[2][0]];
+        double[] ry = new double[rx.length];
+        double xMax = width - 1.0;
+        double yMax = height - 1.0;
+
+        for (int p = 0, y = 0; y < height; ++y) {
+            PiecewiseRigid.sourceRow(wp, width, height, y, xs, ys, rx, ry);
+            for (int x = 0; x < width; ++x, ++p) {
+                double xx = xs[x];
+                double yy = ys[x];
+                if (xx >= 0.0 && yy >= 0.0 && xx < xMax && yy < yMax) {
+                    int xbase = (int)xx;
+                    int ybase = (int)yy;
+                    double xf = xx - xbase;
+                    double yf = yy - ybase;
+                    int o = ybase * width + xbase;
+                    int ll = src[o] & 0xffff, lr = src[o + 1] & 0xffff;
+                    int ul = src[o + width] & 0xffff, ur = src[o + width + 1] & 0xffff;
+                    double lower = ll + xf * (lr - ll);
+                    double upper = ul + xf * (ur - ul);
+                    dst[p] = (short)(lower + yf * (upper - lower) + 0.5);
+                }
+                else
+                    dst[p] = toShort(edge(src, width, height, xx, yy, border));
+            }
+        }
+    }
+
+
+    static void shift(short[] dst, short[] src, int width, int height,
+                      int ix, int iy, int border)
+    {
+        int x0 = Math.max(0, -ix), x1 = Math.min(width, width - ix);
+        for (int y = 0; y < height; ++y) {
+            int p = y * width;
+            int ys = y + iy;
+            if (ys < 0 || ys >= height) {
+                if (border == BORDER_ZERO) {
+                    for (int x = 0; x < width; ++x)
+                        dst[p + x] = 0;
+                    continue;
+                }
+                ys = ys < 0 ? 0 : height - 1;
+            }
+            int o = ys * width;
+            if (x0 < x1)
+                System.arraycopy(src, o + x0 + ix, dst, p + x0, x1 - x0);
+            short left = border == BORDER_ZERO ? 0 : src[o];
+            short right = border == BORDER_ZERO ? 0 : src[o + width - 1];
+            for (int x = 0; x < x0 && x < width; ++x)
+                dst[p + x] = left;
+            for (int x = Math.max(x1, 0); x < width; ++x)
+                dst[p + x] = right;
+        }
+    }
+
+
+    static double edge(short[] src, int width, int height, double xx, double yy, int border) {
+        if (border == BORDER_ZERO &&
+                (xx < 0.0 || yy < 0.0 || xx > width - 1.0 || yy > height - 1.0))
+            return 0.0;
+        if (xx < 0.0) xx = 0.0;
+        if (xx >= width - 1.0) xx = width - 1.001;
+        if (yy < 0.0) yy = 0.0;
+        if (yy >= height - 1.0) yy = height - 1.001;
+        int xbase = (int)xx;
+        int ybase = (int)yy;
+        double xf = xx - xbase;
+        double yf = yy - ybase;
+        int o = ybase * width + xbase;
+        int ll = src[o] & 0xffff, lr = src[o + 1] & 0xffff;
+        int ul = src[o + width] & 0xffff, ur = src[o + width + 1] & 0xffff;
+        double lower = ll + xf * (lr - ll);
+        double upper = ul + xf * (ur - ul);
+        return lower + yf * (upper - lower);
+    }
+
+
+    static short toShort(double value) {
+        if (value < 0.0) value = 0.0;
+        if (value > 65535.0) value = 65535.0;
+        return (short)(value + 0.5);
+    }
+
+
+    //
+    // 8-bit
+    //
+
+    static void translate(byte[] dst, byte[] src, int width, int height,
+                          double tx, double ty, int border)
+    {
+        int ix = (int)Math.floor(tx);
+        int iy = (int)Math.floor(ty);
+        double fx = tx - ix;
+        double fy = ty - iy;
+
+        if (fx == 0.0 && fy == 0.0) {
+            shift(dst, src, width, height, ix, iy, border);
+            return;
+        }
+
+        int x0 = Math.max(0, -ix), x1 = Math.min(width, width - 1 - ix);
+        int y0 = Math.max(0, -iy), y1 = Math.min(height, height - 1 - iy);
+
+        for (int y = 0; y < height; ++y) {
+            int p = y * width;
+            if (y < y0 || y >= y1 || x0 >= x1) {
+                for (int x = 0; x < width; ++x)
+                    dst[p + x] = toByte(edge(src, width, height, x + tx, y + ty, border));
+                continue;
+            }
+            for (int x = 0; x < x0; ++x)
+                dst[p + x] = toByte(edge(src, width, height, x + tx, y + ty, border));
+            int o = (y + iy) * width + x0 + ix;
+            for (int x = x0; x < x1; ++x, ++o) {
+                int ll = src[o] & 0xff, lr = src[o + 1] & 0xff;
+                int ul = src[o + width] & 0xff, ur = src[o + width + 1] & 0xff;
+                double lower = ll + fx * (lr - ll);
+                double upper = ul + fx * (ur - ul);
+                dst[p + x] = (byte)(lower + fy * (upper - lower) + 0.5);
+            }
+            for (int x = x1; x < width; ++x)
+                dst[p + x] = toByte(edge(src, width, height, x + tx, y + ty, border));
+        }
+    }
+
+
+    static void affine(byte[] dst, byte[] src, int width, int height,
+                       double[][] wp, int border)
+    {
+        double a00 = 1.0 + wp[0][0], a01 = wp[0][1], a02 = wp[0][2];
+        double a10 = wp[1][0], a11 = 1.0 + wp[1][1], a12 = wp[1][2];
+        double xMax = width - 1.0;
+        double yMax = height - 1.0;
+
+        for (int p = 0, y = 0; y < height; ++y) {
+            double xx = a01 * y + a02;
+            double yy = a11 * y + a12;
+            for (int x = 0; x < width; ++x, ++p, xx += a00, yy += a10) {
+                if (xx >= 0.0 && yy >= 0.0 && xx < xMax && yy < yMax) {
+                    int xbase = (int)xx;
+                    int ybase = (int)yy;
+                    double xf = xx - xbase;
+                    double yf = yy - ybase;
+                    int o = ybase * width + xbase;
+                    int ll = src[o] & 0xff, lr = src[o + 1] & 0xff;
+                    int ul = src[o + width] & 0xff, ur = src[o + width + 1] & 0xff;
+                    double lower = ll + xf * (lr - ll);
+                    double upper = ul + xf * (ur - ul);
+                    dst[p] = (byte)(lower + yf * (upper - lower) + 0.5);
+                }
+                else
+                    dst[p] = toByte(edge(src, width, height, xx, yy, border));
+            }
+        }
+    }
+
+
+    static void piecewise(byte[] dst, byte[] src, int width, int height,
+                          double[][] wp, int border)
+    {
+        double[] xs = new double[width];
+        double[] ys = new double[width];
+        double[] rx = new double[(int)wp[2][0]];
+        double[] ry = new double[rx.length];
+        double xMax = width - 1.0;
+        double yMax = height - 1.0;
+
+        for (int p = 0, y = 0; y < height; ++y) {
+            PiecewiseRigid.sourceRow(wp, width, height, y, xs, ys, rx, ry);
+            for (int x = 0; x < width; ++x, ++p) {
+                double xx = xs[x];
+                double yy = ys[x];
+                if (xx >= 0.0 && yy >= 0.0 && xx < xMax && yy < yMax) {
+                    int xbase = (int)xx;
+                    int ybase = (int)yy;
+                    double xf = xx - xbase;
+                    double yf = yy - ybase;
+                    int o = ybase * width + xbase;
+                    int ll = src[o] & 0xff, lr = src[o + 1] & 0xff;
+                    int ul = src[o + width] & 0xff, ur = src[o + width + 1] & 0xff;
+                    double lower = ll + xf * (lr - ll);
+                    double upper = ul + xf * (ur - ul);
+                    dst[p] = (byte)(lower + yf * (upper - lower) + 0.5);
+                }
+                else
+                    dst[p] = toByte(edge(src, width, height, xx, yy, border));
+            }
+        }
+    }
+
+
+    static void shift(byte[] dst, byte[] src, int width, int height,
+                      int ix, int iy, int border)
+    {
+        int x0 = Math.max(0, -ix), x1 = Math.min(width, width - ix);
+        for (int y = 0; y < height; ++y) {
+            int p = y * width;
+            int ys = y + iy;
+            if (ys < 0 || ys >= height) {
+                if (border == BORDER_ZERO) {
+                    for (int x = 0; x < width; ++x)
+                        dst[p + x] = 0;
+                    continue;
+                }
+                ys = ys < 0 ? 0 : height - 1;
+            }
+            int o = ys * width;
+            if (x0 < x1)
+                System.arraycopy(src, o + x0 + ix, dst, p + x0, x1 - x0);
+            byte left = border == BORDER_ZERO ? 0 : src[o];
+            byte right = border == BORDER_ZERO ? 0 : src[o + width - 1];
+            for (int x = 0; x < x0 && x < width; ++x)
+                dst[p + x] = left;
+            for (int x = Math.max(x1, 0); x < width; ++x)
+                dst[p + x] = right;
+        }
+    }
+
+
+    static double edge(byte[] src, int width, int height, double xx, double yy, int border) {
+        if (border == BORDER_ZERO &&
+                (xx < 0.0 || yy < 0.0 || xx > width - 1.0 || yy > height - 1.0))
+            return 0.0;
+        if (xx < 0.0) xx = 0.0;
+        if (xx >= width - 1.0) xx = width - 1.001;
+        if (yy < 0.0) yy = 0.0;
+        if (yy >= height - 1.0) yy = height - 1.001;
+        int xbase = (int)xx;
+        int ybase = (int)yy;
+        double xf = xx - xbase;
+        double yf = yy - ybase;
+        int o = ybase * width + xbase;
+        int ll = src[o] & 0xff, lr = src[o + 1] & 0xff;
+        int ul = src[o + width] & 0xff, ur = src[o + width + 1] & 0xff;
+        double lower = ll + xf * (lr - ll);
+        double upper = ul + xf * (ur - ul);
+        return lower + yf * (upper - lower);
+    }
+
+
+    static byte toByte(double value) {
+        if (value < 0.0) value = 0.0;
+        if (value > 255.0) value = 255.0;
+        return (byte)(value + 0.5);
+    }
+
+
+    //
+    // RGB
+    //
+
+    static void translate(int[] dst, int[] src, int width, int height,
+                          double tx, double ty, int border)
+    {
+        int ix = (int)Math.floor(tx);
+        int iy = (int)Math.floor(ty);
+        double fx = tx - ix;
+        double fy = ty - iy;
+
+        if (fx == 0.0 && fy == 0.0) {
+            shift(dst, src, width, height, ix, iy, border);
+            return;
+        }
+
+        int x0 = Math.max(0, -ix), x1 = Math.min(width, width - 1 - ix);
+        int y0 = Math.max(0, -iy), y1 = Math.min(height, height - 1 - iy);
+
+        for (int y = 0; y < height; ++y) {
+            int p = y * width;
+            if (y < y0 || y >= y1 || x0 >= x1) {
+                for (int x = 0; x < width; ++x)
+                    dst[p + x] = edge(src, width, height, x + tx, y + ty, border);
+                continue;
+            }
+            for (int x = 0; x < x0; ++x)
+                dst[p + x] = edge(src, width, height, x + tx, y + ty, border);
+            int o = (y + iy) * width + x0 + ix;
+            for (int x = x0; x < x1; ++x, ++o)
+                dst[p + x] = interpolate(src[o], src[o + 1], src[o + width], src[o + width + 1], fx, fy);
+            for (int x = x1; x < width; ++x)
+                dst[p + x] = edge(src, width, height, x + tx, y + ty, border);
+        }
+    }
+
+
+    static void affine(int[] dst, int[] src, int width, int height,
+                       double[][] wp, int border)
+    {
+        double a00 = 1.0 + wp[0][0], a01 = wp[0][1], a02 = wp[0][2];
+        double a10 = wp[1][0], a11 = 1.0 + wp[1][1], a12 = wp[1][2];
+        double xMax = width - 1.0;
+        double yMax = height - 1.0;
+
+        for (int p = 0, y = 0; y < height; ++y) {
+            double xx = a01 * y + a02;
+            double yy = a11 * y + a12;
+            for (int x = 0; x < width; ++x, ++p, xx += a00, yy += a10) {
+                if (xx >= 0.0 && yy >= 0.0 && xx < xMax && yy < yMax) {
+                    int xbase = (int)xx;
+                    int ybase = (int)yy;
+                    int o = ybase * width + xbase;
+                    dst[p] = interpolate(src[o], src[o + 1], src[o + width], src[o + width + 1],
+                                         xx - xbase, yy - ybase);
+                }
+                else
+                    dst[p] = edge(src, width, height, xx, yy, border);
+            }
+        }
+    }
+
+
+    static void piecewise(int[] dst, int[] src, int width, int height,
+                          double[][] wp, int border)
+    {
+        double[] xs = new double[width];
+        double[] ys = new double[width];
+        double[] rx = new double[(int)wp[2][0]];
+        double[] ry = new double[rx.length];
+        double xMax = width - 1.0;
+        double yMax = height - 1.0;
+
+        for (int p = 0, y = 0; y < height; ++y) {
+            PiecewiseRigid.sourceRow(wp, width, height, y, xs, ys, rx, ry);
+            for (int x = 0; x < width; ++x, ++p) {
+                double xx = xs[x];
+                double yy = ys[x];
+                if (xx >= 0.0 && yy >= 0.0 && xx < xMax && yy < yMax) {
+                    int xbase = (int)xx;
+                    int ybase = (int)yy;
+                    int o = ybase * width + xbase;
+                    dst[p] = interpolate(src[o], src[o + 1], src[o + width], src[o + width + 1],
+                                         xx - xbase, yy - ybase);
+                }
+                else
+                    dst[p] = edge(src, width, height, xx, yy, border);
+            }
+        }
+    }
+
+
+    static void shift(int[] dst, int[] src, int width, int height,
+                      int ix, int iy, int border)
+    {
+        int x0 = Math.max(0, -ix), x1 = Math.min(width, width - ix);
+        for (int y = 0; y < height; ++y) {
+            int p = y * width;
+            int ys = y + iy;
+            if (ys < 0 || ys >= height) {
+                if (border == BORDER_ZERO) {
+                    for (int x = 0; x < width; ++x)
+                        dst[p + x] = 0xff000000;
+                    continue;
+                }
+                ys = ys < 0 ? 0 : height - 1;
+            }
+            int o = ys * width;
+            if (x0 < x1)
+                System.arraycopy(src, o + x0 + ix, dst, p + x0, x1 - x0);
+            int left = border == BORDER_ZERO ? 0xff000000 : src[o];
+            int right = border == BORDER_ZERO ? 0xff000000 : src[o + width - 1];
+            for (int x = 0; x < x0 && x < width; ++x)
+                dst[p + x] = left;
+            for (int x = Math.max(x1, 0); x < width; ++x)
+                dst[p + x] = right;
+        }
+    }
+
+
+    static int edge(int[] src, int width, int height, double xx, double yy, int border) {
+        if (border == BORDER_ZERO &&
+                (xx < 0.0 || yy < 0.0 || xx > width - 1.0 || yy > height - 1.0))
+            return 0xff000000;
+        if (xx < 0.0) xx = 0.0;
+        if (xx >= width - 1.0) xx = width - 1.001;
+        if (yy < 0.0) yy = 0.0;
+        if (yy >= height - 1.0) yy = height - 1.001;
+        int xbase = (int)xx;
+        int ybase = (int)yy;
+        int o = ybase * width + xbase;
+        return interpolate(src[o], src[o + 1], src[o + width], src[o + width + 1],
+                           xx - xbase, yy - ybase);
+    }
+
+
+    static int interpolate(int ll, int lr, int ul, int ur, double xf, double yf) {
+        int r = channel(ll >> 16, lr >> 16, ul >> 16, ur >> 16, xf, yf);
+        int g = channel(ll >> 8, lr >> 8, ul >> 8, ur >> 8, xf, yf);
+        int b = channel(ll, lr, ul, ur, xf, yf);
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+
+    static int channel(int ll, int lr, int ul, int ur, double xf, double yf) {
+        ll &= 0xff; lr &= 0xff; ul &= 0xff; ur &= 0xff;
+        double lower = ll + xf * (lr - ll);
+        double upper = ul + xf * (ur - ul);
+        return ((int)(lower + yf * (upper - lower) + 0.5)) & 0xff;
+    }
+}
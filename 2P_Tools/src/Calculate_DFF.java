@@ -1,4 +1,3 @@
-import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ij.plugin.MontageMaker;
 import ij.plugin.PlugIn;
@@ -19,8 +18,6 @@ import java.awt.event.ActionListener;
 import java.io.File;
 import java.io.IOException;
 
-import ij.plugin.ImageCalculator;
-import ij.plugin.filter.Analyzer;
 import ij.plugin.frame.RoiManager;
 import ij.util.Tools;
 
@@ -43,6 +40,7 @@ public class Calculate_DFF implements PlugIn {
 	private boolean imgStabilize;
 	private boolean deleteSlice;
 	private boolean bgSubtract;
+	private boolean traceSpace;
 	public static int defaultImg1=0;
 	private String workDir;
 	private ImageStack mosaicStack;
@@ -70,37 +68,6 @@ public class Calculate_DFF implements PlugIn {
 	}
 	
 
-		/**
-		 * Method to calculate the Z-axis profile of an image with a roi selection
-		 * 
-		 * @param roi
-		 * @param toAnalyze
-		 * @param minThreshold
-		 * @param maxThreshold 
-		 */
-		
-		float[] getZAxisProfile(Roi roi, ImagePlus toAnalyze, double minThreshold, double maxThreshold) {
-			ImageStack stack = toAnalyze.getStack();
-			int size = stack.getSize();
-			float[] values = new float[size];
-			Calibration cal = toAnalyze.getCalibration();
-			Analyzer analyzer = new Analyzer(toAnalyze);
-			@SuppressWarnings("static-access")
-			int measurements = analyzer.getMeasurements();
-			//int current = toAnalyze.getCurrentSlice();
-			for (int i=1; i<=size; i++) {
-				toAnalyze.setSlice(i);
-				ImageProcessor ip = stack.getProcessor(i);
-				if (minThreshold!=ImageProcessor.NO_THRESHOLD)
-					ip.setThreshold(minThreshold,maxThreshold,ImageProcessor.NO_LUT_UPDATE);
-				ip.setRoi(roi);
-				ImageStatistics stats = ImageStatistics.getStatistics(ip, measurements, cal);
-				analyzer.saveResults(stats, roi);			
-				//analyzer.displayResults();
-				values[i-1] = (float)stats.mean;
-			}
-			return values;
-		}
 	
 	//Execute plugin procedures
 	@Override
@@ -167,16 +134,21 @@ public class Calculate_DFF implements PlugIn {
   	gd.addNumericField("DFF_Maximum (%):", 7,1);
 	gd.addNumericField("Start for F0:", 5,1);
 	gd.addNumericField("End for F0:", 20,1);
+	gd.addNumericField("F0_window (frames, 0 for Start/End):", 0,0);
+	gd.addNumericField("F0_percentile:", 8,1);
+	gd.addNumericField("Chunk_size (slices, 0 for in memory):", 0,0);
 	gd.addNumericField("Gauss_radius:", 2,1);
-	//gd.addNumericField("Kalman bias:", 0.8,1);
+	gd.addNumericField("Prediction_bias:", 0.8,2);
+	gd.addNumericField("Noise_variance (Kalman):", 0.05,2);
 	gd.addCheckbox("Image_Stabilization", false);
-	//gd.addCheckbox("Kalman?", false);
+	gd.addChoice("Temporal_Denoising:", TemporalFilter.NAMES, TemporalFilter.NAMES[ TemporalFilter.NONE ] );
 	gd.addCheckbox("Gauss_Filter", false);
 	gd.addCheckbox("Delete_first_slice", false);
 	gd.addCheckbox("Background Subtraction", false);
 	gd.addMessage("Plot and save transients for a ROI set (optional):");
 	gd.addPanel(ROIFlowPanel);
 	gd.addCheckbox("Only save raw traces", false);
+	gd.addCheckbox("dF/F of the ROI traces only (no dF/F stack)", false);
 	gd.showDialog();
 
 	
@@ -187,13 +159,46 @@ public class Calculate_DFF implements PlugIn {
 	int dffmax = (int)gd.getNextNumber();
 	int startf0 = (int)gd.getNextNumber();
 	int endf0 = (int)gd.getNextNumber();
+	int f0Window = (int)gd.getNextNumber();
+	double f0Percentile = gd.getNextNumber();
+	int chunkSize = (int)gd.getNextNumber();
 	int gaussrad = (int)gd.getNextNumber();
+	double predictionBias = gd.getNextNumber();
+	double noiseVariance = gd.getNextNumber();
 	imgStabilize = gd.getNextBoolean();
 	gaussFlag = gd.getNextBoolean();
 	deleteSlice = gd.getNextBoolean();
 	bgSubtract = gd.getNextBoolean();
 	rawTraceFlag = gd.getNextBoolean();
+	traceSpace = gd.getNextBoolean();
 	stackImg = WindowManager.getImage( idList[ defaultImg1 = gd.getNextChoiceIndex() ] );
+	int denoise = gd.getNextChoiceIndex();
+	if (denoise != TemporalFilter.NONE && (predictionBias < 0.0 || predictionBias > 1.0
+			|| noiseVariance <= 0.0 || noiseVariance > 1.0)) {
+		IJ.error("Prediction bias must be within 0..1 and noise variance within (0, 1]");
+		return;
+	}
+	int nSlices = stackImg.getStackSize() - (deleteSlice ? 1 : 0);
+	if (f0Window < 0 || f0Percentile < 0.0 || f0Percentile > 100.0) {
+		IJ.error("The F0 window must be at least 0 and the F0 percentile within 0-100");
+		return;
+	}
+	if (f0Window == 0 && (startf0 < 1 || endf0 > nSlices || startf0 > endf0)) {
+		IJ.error("Start and end for F0 must be within 1-"+nSlices);
+		return;
+	}
+	if (chunkSize < 0 || (chunkSize > 0 && f0Window > 0)) {
+		IJ.error("The chunk size must be at least 0, and chunks need a Start/End F0");
+		return;
+	}
+	if (chunkSize > 0 && imgStabilize == true) {
+		IJ.error("Chunks cannot be combined with Image Stabilization");
+		return;
+	}
+	if (traceSpace == true && (RoiManager.getInstance() == null || RoiManager.getInstance().getCount() == 0)) {
+		IJ.error("dF/F of the ROI traces needs ROIs in the ROI Manager");
+		return;
+	}
 	workDir = stackImg.getOriginalFileInfo().directory;
 	
 	
@@ -214,119 +219,104 @@ public class Calculate_DFF implements PlugIn {
 		stackImg.hide();
 	}
 	
-	ImagePlus showCase = stackImg.duplicate();
-	
-	//Duplicate stack:
-	ImagePlus duplicateImg = stackImg.duplicate();
-
-	//Apply Gaussian Filter on duplicate image
-	if (gaussFlag==true) {
-		//duplicateYFP.show();
-		IJ.run(duplicateImg, "Gaussian Blur...", "radius="+gaussrad+" stack");
-		//duplicateYFP.hide();
-	}
-
-	// Background subtraction on image stack
-	ImageStatistics istats = duplicateImg.getStatistics();
-	int minVal = (int) istats.min;
-	int maxVal = (int) istats.max;
-	if (bgSubtract == true){
-		IJ.run(duplicateImg, "Subtract...", "value="+minVal+" stack");
-	}
-	duplicateImg.hide();
-	
-	
-	/*
-	 * DFF Calculations
-	 */
-	
-	//Calculate Average
-	IJ.run(duplicateImg, "Z Project...", "start=1 stop="+duplicateImg.getImageStackSize()+ " projection=[Average Intensity]");
-	ImagePlus averageImg = WindowManager.getImage("AVG_"+duplicateImg.getTitle());
-	averageImg.setTitle("Average of Stack");
-	averageImg.hide();
-	
-	//Calculate F0
-	IJ.run(duplicateImg, "Z Project...", "start="+startf0+" stop="+endf0+ " projection=[Average Intensity]");
-	ImagePlus f_zero = WindowManager.getImage("AVG_"+duplicateImg.getTitle());
-	f_zero.setTitle("F0");
-	f_zero.hide();
-	
-	//Calculate DF
-	ImageCalculator ic = new ImageCalculator();
-	ImagePlus deltaF = ic.run("Subtract create 32-bit stack", duplicateImg, f_zero);
-	deltaF.setTitle("DeltaF");
-	deltaF.hide();
-	
-	//Calculate DFF
-	ic = new ImageCalculator();
-	ImagePlus deltaFF = ic.run("Divide create 32-bit stack", deltaF, f_zero);
-	deltaFF.setTitle("DeltaF/F");
+	//Without a dF/F stack the ROI traces are measured on the source stack
+	//and converted to dF/F below
+	ImagePlus deltaFF = null;
+	float[][] chunkTraces = null;
+	if (traceSpace == false && chunkSize > 0) {
+		//Out of core: dF/F is written block by block to the result folder and opened
+		//as a virtual stack, and the ROI traces are measured on the blocks
+		File resultFolder = new File(workDir+"/dFF_"+stackImg.getShortTitle());
+		resultFolder.mkdir();
+		RoiManager rm = RoiManager.getInstance();
+		Roi[] rois = (rm != null && rm.getCount() > 0 && rawTraceFlag == false) ? rm.getRoisAsArray() : null;
+		File dffFile = new File(resultFolder, "dFF.tif");
+		try {
+			chunkTraces = new ChunkedRelativeChange(chunkSize, gaussFlag ? gaussrad / 2.5 : 0.0, bgSubtract,
+					denoise, predictionBias, noiseVariance).run(stackImg.getStack(), null, startf0, endf0,
+					new double[] {dffmin, dffmax}, rois, dffFile, new File(resultFolder, "dFF_weighted.tif"));
+		}
+		catch (IOException e){
+			IJ.error("Could not write dF/F to "+resultFolder+": "+e.getMessage());
+			return;
+		}
+		deltaFF = IJ.openVirtual(dffFile.getPath());
+		deltaFF.setTitle("DeltaF/F");
+		deltaFF.setCalibration(stackImg.getCalibration());
+		ImageStatistics deltaFstats = deltaFF.getStatistics();
+		IJ.setMinAndMax(deltaFF, (int)deltaFstats.min, (int)deltaFstats.max);
+		deltaFF.show();
+	} else if (traceSpace == false) {
+		//8-bit copy of the channel for the merged view
+		ImageStack channel = RelativeChange.toByte(stackImg.getStack(),
+				stackImg.getDisplayRangeMin(), stackImg.getDisplayRangeMax());
 	
-	// Express as relative change in percentage
-	IJ.run(deltaFF, "Multiply...", "stack value=100");
+		//Filter, background subtract and denoise a duplicate; without these steps
+		//dF/F is computed from the stack itself
+		ImageStack filtered = stackImg.getStack();
+		if (gaussFlag==true || bgSubtract==true || denoise != TemporalFilter.NONE) {
+			ImagePlus duplicateImg = new ImagePlus("DUP_"+stackImg.getTitle(), stackImg.getStack().duplicate());
+			duplicateImg.setCalibration(stackImg.getCalibration());
+			duplicateImg.setSlice(stackImg.getCurrentSlice());
 	
-	//Close all remaining images
-	f_zero.changes = false;
-	f_zero.close();
-	deltaF.changes = false;
-	deltaF.close();
+			//Apply Gaussian Filter on duplicate image
+			if (gaussFlag==true) {
+				IJ.run(duplicateImg, "Gaussian Blur...", "radius="+gaussrad+" stack");
+			}
 	
-	//Prepare the Average weighted dFF
-	ImageStatistics istatsAvg = averageImg.getStatistics();
-	int minAvg = (int) istatsAvg.min;
-	int maxAvg = (int) istatsAvg.max;
-	ImagePlus averageDup = averageImg.duplicate();
-	IJ.run(averageDup, "Subtract...", "value="+minAvg);
-	ic = new ImageCalculator();
-	ImagePlus deltaFFW = ic.run("Multiply create 32-bit stack", deltaFF, averageDup);
-	IJ.run(deltaFFW, "Divide...", "value="+maxAvg+" stack");
-	IJ.setMinAndMax(deltaFFW, dffmin, dffmax);
-	ImagePlus deltaFFWDuplicate = deltaFFW.duplicate();
-	deltaFFWDuplicate.setTitle("dFFDup");
-	deltaFFWDuplicate.hide();
+			// Background subtraction on image stack
+			if (bgSubtract == true){
+				ImageStatistics istats = duplicateImg.getStatistics();
+				int minVal = (int) istats.min;
+				IJ.run(duplicateImg, "Subtract...", "value="+minVal+" stack");
+			}
 	
+			//Temporal denoising (Kalman or running average) before F0 estimation
+			if (denoise != TemporalFilter.NONE) {
+				TemporalFilter.apply(duplicateImg.getStack(), denoise, predictionBias, noiseVariance);
+			}
+			filtered = duplicateImg.getStack();
+		}
 	
-	//Create an final result images to show user
-	IJ.run(duplicateImg, "Conversions...", "scale");
-	IJ.setMinAndMax(duplicateImg, minVal, maxVal);
-	IJ.run(duplicateImg, "8-bit", "");
-	duplicateImg.setTitle("Channel Average");
-	//channelAvg.hide();
-	//deltaRRWDuplicate.show();
-	IJ.run(deltaFFWDuplicate, "8-bit", "");
-	//deltaRRWDuplicate.hide();
 	
-	//Create merged view
-	duplicateImg.show();
-	deltaFFWDuplicate.show();
-	IJ.run(showCase, "8-bit", "");
-	showCase.setTitle("Channel");
-	showCase.show();
-	IJ.run("Merge Image Stacks", "gray=[Channel] red=dFFDup green=*None* blue=*None* keep");
+		/*
+		 * DFF Calculations: F0 and the average in one pass over the stack, dF/F and
+		 * the average weighted dF/F (8-bit, for the merged view) in a second one;
+		 * F0 is either the mean of Start..End or a sliding percentile of every pixel
+		 */
+		ImageStack[] dff = f0Window > 0
+				? PercentileBaseline.deltaFF(filtered, f0Window, f0Percentile, new double[] {dffmin, dffmax})
+				: RelativeChange.deltaFF(filtered, startf0, endf0, new double[] {dffmin, dffmax});
+		filtered = null;
+		deltaFF = new ImagePlus("DeltaF/F", dff[0]);
+		deltaFF.setCalibration(stackImg.getCalibration());
+		ImagePlus deltaFFWDuplicate = new ImagePlus("dFFDup", dff[1]);
 	
-	/*
-	 * --
-	 */
+		//Create merged view
+		ImagePlus showCase = new ImagePlus("Channel", channel);
+		deltaFFWDuplicate.show();
+		showCase.show();
+		IJ.run("Merge Image Stacks", "gray=[Channel] red=dFFDup green=*None* blue=*None* keep");
 	
+		/*
+		 * --
+		 */
 	
-	//Close temporary images
-	deltaFFWDuplicate.changes = false;
-	deltaFFWDuplicate.close();
 	
-	duplicateImg.changes = false;
-	duplicateImg.close();
-	stackImg.show();
-	showCase.changes = false;
-	showCase.close();
+		//Close temporary images
+		deltaFFWDuplicate.changes = false;
+		deltaFFWDuplicate.close();
+		stackImg.show();
+		showCase.changes = false;
+		showCase.close();
 	
-	//Recalibrate deltaFF histogram
-	ImageStatistics deltaFstats = deltaFF.getStatistics();
-	int minFF = (int)deltaFstats.min;
-	int maxFF = (int)deltaFstats.max;
-	IJ.setMinAndMax(deltaFF, minFF, maxFF);
-	deltaFF.show();
-	averageImg.close();
+		//Recalibrate deltaFF histogram
+		ImageStatistics deltaFstats = deltaFF.getStatistics();
+		int minFF = (int)deltaFstats.min;
+		int maxFF = (int)deltaFstats.max;
+		IJ.setMinAndMax(deltaFF, minFF, maxFF);
+		deltaFF.show();
+	}
 	
 	//Only generate a plot if the ROI-Manager instance is not empty
 	if (RoiManager.getInstance() != null){
@@ -355,18 +345,36 @@ public class Calculate_DFF implements PlugIn {
 		
 		int rCount = rm.getCount();
 		ResultsTable fancy = new ResultsTable();
-		float[] x = new float[deltaFF.getNSlices()];
+		float[] x = new float[stackImg.getNSlices()];
 		
+		//Means of all ROIs in one pass over the stack
+		IJ.showStatus("Extracting trace data: ");
+		float[][] traces;
+		if (chunkTraces != null) {
+			traces = chunkTraces;
+		} else if (traceSpace == true && rawTraceFlag == false) {
+			//Raw F of the ROIs; background, denoising and dF/F on the traces
+			traces = new RoiTraces(translatedROIs, stackImg.getWidth(), stackImg.getHeight())
+					.measure(stackImg.getStack());
+			if (bgSubtract == true) {
+				RelativeChange.subtract(traces, RelativeChange.background(stackImg.getProcessor(),
+						gaussFlag ? gaussrad / 2.5 : 0.0));
+			}
+			if (denoise != TemporalFilter.NONE) {
+				TemporalFilter.apply(traces, denoise, predictionBias, noiseVariance);
+			}
+			for (int i=0; i<traces.length; i++) {
+				traces[i] = f0Window > 0
+						? PercentileBaseline.deltaFF(traces[i], f0Window, f0Percentile)
+						: RelativeChange.deltaFF(traces[i], startf0, endf0);
+			}
+		} else {
+			traces = new RoiTraces(translatedROIs, deltaFF.getWidth(), deltaFF.getHeight())
+					.measure(deltaFF.getStack(), deltaFF.getCalibration());
+		}
 		for( int i=0; i<rCount; i++){
-			//Set ROI
-			deltaFF.setRoi(translatedROIs[i]);
-			IJ.showStatus("Extracting trace data: ");
 			IJ.showProgress(1.0*i/(translatedROIs.length));
-			
-			//Calibrate measurements
-			double minThreshold = deltaFF.getProcessor().getMinThreshold();
-			double maxThreshold = deltaFF.getProcessor().getMaxThreshold();
-			float [] y = getZAxisProfile(translatedROIs[i], deltaFF, minThreshold, maxThreshold);
+			float [] y = traces[i];
 			
 			//Initialize Table with zero values
 			if(i==0){
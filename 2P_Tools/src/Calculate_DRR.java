@@ -1,7 +1,6 @@
 
 
 
-import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ij.plugin.MontageMaker;
 import ij.plugin.PlugIn;
@@ -23,7 +22,6 @@ import java.io.File;
 import java.io.IOException;
 
 import ij.plugin.ImageCalculator;
-import ij.plugin.filter.Analyzer;
 import ij.plugin.frame.RoiManager;
 import ij.util.Tools;
 
@@ -52,6 +50,7 @@ public class Calculate_DRR implements PlugIn {
 	private String workDir;
 	private ImageStack mosaicStack;
 	private boolean bgSubtract;
+	private boolean traceSpace;
 	public static int defaultImg1=0;
 	public static int defaultImg2=1;
 	private ImageStack resultPlots;
@@ -61,38 +60,54 @@ public class Calculate_DRR implements PlugIn {
 	
 	
 	
+	
 	/**
-	 * Method to calculate the Z-axis profile of an image with a roi selection
+	 * Returns the stack of a channel, or a Gauss filtered, background subtracted
+	 * and temporally denoised duplicate of it if any of these are selected
 	 * 
-	 * @param roi
-	 * @param toAnalyze
-	 * @param minThreshold
-	 * @param maxThreshold 
+	 * @param imp
+	 * @param gaussrad
+	 * @param denoise
+	 * @param predictionBias
+	 * @param noiseVariance
 	 */
-	
-	float[] getZAxisProfile(Roi roi, ImagePlus toAnalyze, double minThreshold, double maxThreshold) {
-		ImageStack stack = toAnalyze.getStack();
-		int size = stack.getSize();
-		float[] values = new float[size];
-		Calibration cal = toAnalyze.getCalibration();
-		Analyzer analyzer = new Analyzer(toAnalyze);
-		@SuppressWarnings("static-access")
-		int measurements = analyzer.getMeasurements();
-		//int current = toAnalyze.getCurrentSlice();
-		for (int i=1; i<=size; i++) {
-			toAnalyze.setSlice(i);
-			ImageProcessor ip = stack.getProcessor(i);
-			if (minThreshold!=ImageProcessor.NO_THRESHOLD)
-				ip.setThreshold(minThreshold,maxThreshold,ImageProcessor.NO_LUT_UPDATE);
-			ip.setRoi(roi);
-			ImageStatistics stats = ImageStatistics.getStatistics(ip, measurements, cal);
-			analyzer.saveResults(stats, roi);			
-			//analyzer.displayResults();
-			values[i-1] = (float)stats.mean;
+	ImageStack filter(ImagePlus imp, int gaussrad, int denoise, double predictionBias, double noiseVariance) {
+		if (gaussFlag==false && bgSubtract==false && denoise == TemporalFilter.NONE)
+			return imp.getStack();
+		ImagePlus duplicate = new ImagePlus("DUP_"+imp.getTitle(), imp.getStack().duplicate());
+		duplicate.setCalibration(imp.getCalibration());
+		duplicate.setSlice(imp.getCurrentSlice());
+		if (gaussFlag==true) {
+			IJ.run(duplicate, "Gaussian Blur...", "radius="+gaussrad+" stack");
 		}
-		return values;
-	}	
-	
+		// background subtraction, here finding the minimum value and taking this as bkg
+		if (bgSubtract == true){
+			ImageStatistics istats = duplicate.getStatistics();
+			int minVal = (int) istats.min;
+			IJ.run(duplicate, "Subtract...", "value="+minVal+" stack");
+		}
+		//Temporal denoising (Kalman or running average) before R0 estimation
+		if (denoise != TemporalFilter.NONE) {
+			TemporalFilter.apply(duplicate.getStack(), denoise, predictionBias, noiseVariance);
+		}
+		return duplicate.getStack();
+	}
+
+	//Raw ROI traces of one channel with the steps of filter() done on the traces;
+	//the Gaussian filter only smooths the image the background is taken from
+	float[][] traces(RoiTraces roiTraces, ImagePlus imp, int gaussrad, int denoise,
+			double predictionBias, double noiseVariance) {
+		float[][] traces = roiTraces.measure(imp.getStack());
+		if (bgSubtract == true) {
+			RelativeChange.subtract(traces, RelativeChange.background(imp.getProcessor(),
+					gaussFlag ? gaussrad / 2.5 : 0.0));
+		}
+		if (denoise != TemporalFilter.NONE) {
+			TemporalFilter.apply(traces, denoise, predictionBias, noiseVariance);
+		}
+		return traces;
+	}
+
 	//Run methods in plugin
 	@Override
 	public void run(String arg) {
@@ -159,15 +174,18 @@ public class Calculate_DRR implements PlugIn {
   	gd.addNumericField("DRR_Maximum (%):", 7,1);
 	gd.addNumericField("Start for R0:", 5,1);
 	gd.addNumericField("End for R0:", 20,1);
+	gd.addNumericField("Chunk_size (slices, 0 for in memory):", 0,0);
 	gd.addNumericField("Gauss_radius:", 2,1);
-	//gd.addNumericField("Kalman bias:", 0.8,1);
+	gd.addNumericField("Prediction_bias:", 0.8,2);
+	gd.addNumericField("Noise_variance (Kalman):", 0.05,2);
 	gd.addCheckbox("Image_Stabilization", false);
-	//gd.addCheckbox("Kalman?", false);
+	gd.addChoice("Temporal_Denoising:", TemporalFilter.NAMES, TemporalFilter.NAMES[ TemporalFilter.NONE ] );
 	gd.addCheckbox("Gauss_Filter", false);
 	gd.addCheckbox("Delete_first_slice", false);
 	gd.addCheckbox("Background Subtraction", false);
 	gd.addMessage("Plot and save transients for a ROI set (optional):");
 	gd.addPanel(ROIFlowPanel);
+	gd.addCheckbox("dR/R of the ROI traces only (no dR/R stack)", false);
 	gd.showDialog();
 
 	
@@ -179,17 +197,48 @@ public class Calculate_DRR implements PlugIn {
 	int drrmax = (int)gd.getNextNumber();
 	int startr0 = (int)gd.getNextNumber();
 	int endr0 = (int)gd.getNextNumber();
+	int chunkSize = (int)gd.getNextNumber();
 	int gaussrad = (int)gd.getNextNumber();
-	//kalmanbias = (int)gd.getNextNumber();
+	double predictionBias = gd.getNextNumber();
+	double noiseVariance = gd.getNextNumber();
 	imgStabilize = gd.getNextBoolean();
-	//kalmanFlag = gd.getNextBoolean();
 	gaussFlag = gd.getNextBoolean();
 	deleteSlice = gd.getNextBoolean();
 	bgSubtract = gd.getNextBoolean();
+	traceSpace = gd.getNextBoolean();
 
 	
 	stackImgCFP = WindowManager.getImage( idList[ defaultImg1 = gd.getNextChoiceIndex() ] );
 	stackImgYFP = WindowManager.getImage( idList[ defaultImg2 = gd.getNextChoiceIndex() ] ); 
+	int denoise = gd.getNextChoiceIndex();
+	if (denoise != TemporalFilter.NONE && (predictionBias < 0.0 || predictionBias > 1.0
+			|| noiseVariance <= 0.0 || noiseVariance > 1.0)) {
+		IJ.error("Prediction bias must be within 0..1 and noise variance within (0, 1]");
+		return;
+	}
+	if (stackImgYFP.getStackSize() != stackImgCFP.getStackSize()
+			|| stackImgYFP.getWidth() != stackImgCFP.getWidth()
+			|| stackImgYFP.getHeight() != stackImgCFP.getHeight()) {
+		IJ.error("CFP and YFP time series must be of the same size");
+		return;
+	}
+	int nSlices = stackImgYFP.getStackSize() - (deleteSlice ? 1 : 0);
+	if (startr0 < 1 || endr0 > nSlices || startr0 > endr0) {
+		IJ.error("Start and end for R0 must be within 1-"+nSlices);
+		return;
+	}
+	if (chunkSize < 0) {
+		IJ.error("The chunk size must be at least 0");
+		return;
+	}
+	if (chunkSize > 0 && imgStabilize == true) {
+		IJ.error("Chunks cannot be combined with Image Stabilization");
+		return;
+	}
+	if (traceSpace == true && (RoiManager.getInstance() == null || RoiManager.getInstance().getCount() == 0)) {
+		IJ.error("dR/R of the ROI traces needs ROIs in the ROI Manager");
+		return;
+	}
 	workDir = stackImgCFP.getOriginalFileInfo().directory;
 
 	
@@ -201,139 +250,89 @@ public class Calculate_DRR implements PlugIn {
 		IJ.run(stackImgCFP, "Delete Slice", "");
 	}
 	
-	//Run Image Stabilizer on YFP Image Stack
+	//Run Image Stabilizer on YFP and apply the same shifts to CFP in the same pass
 	if (imgStabilize==true) {
-		stackImgYFP.show();
-		IJ.run(stackImgYFP, "Image Stabilizer", "transformation=Translation maximum_pyramid_levels=1 " +
-				"template_update_coefficient=0.90 maximum_iterations=200 error_tolerance=0.0000001 " +
-				"log_transformation_coefficients");
-		stackImgYFP.hide();
-		//reapply filter on CFP channel
-		stackImgCFP.show();
-		IJ.run(stackImgCFP, "Image Stabilizer Log Applier", " ");
-		stackImgCFP.hide();
-	}
-	
-	//Duplicate YFP stack:
-	ImagePlus duplicateYFP = stackImgYFP.duplicate();
-
-	//Apply Gaussian Filter on duplicate image
-	if (gaussFlag==true) {
-		//duplicateYFP.show();
-		IJ.run(duplicateYFP, "Gaussian Blur...", "radius="+gaussrad+" stack");
-		//duplicateYFP.hide();
-	}
-
-	// background subtraction Stack 1, here finding the minimum value and taking this as bkg
-	if(bgSubtract == true){
-		ImageStatistics istatsYFP = duplicateYFP.getStatistics();
-		int minValYFP = (int) istatsYFP.min;
-		IJ.run(duplicateYFP, "Subtract...", "value="+minValYFP+" stack");
-	}
-	duplicateYFP.hide();
-	
-	//Calculate Average
-	IJ.run(duplicateYFP, "Z Project...", "start=1 stop="+duplicateYFP.getImageStackSize()+ " projection=[Average Intensity]");
-	ImagePlus averageYFP = WindowManager.getImage("AVG_"+duplicateYFP.getTitle());
-	averageYFP.setTitle("Avg");
-	averageYFP.hide();
-
-	
-	//duplicate the CFP image and apply a gauss filter on it
-	ImagePlus duplicateCFP = stackImgCFP.duplicate();
-	if (gaussFlag==true) {
-		IJ.run(duplicateCFP, "Gaussian Blur...", "radius="+gaussrad+" stack");
-	}
-	
-	// Background subtraction of second duplicated image (duplicatedCFP)
-	if (bgSubtract == true){
-		ImageStatistics istatsCFP = duplicateCFP.getStatistics();
-		int minValCFP = (int) istatsCFP.min;
-		IJ.run(duplicateCFP, "Subtract...", "value="+minValCFP+" stack");
+		if (!Image_Stabilizer.stabilizeChannels(new ImagePlus[] { stackImgYFP, stackImgCFP }, 1,
+				Image_Stabilizer.TRANSLATION, 1, 0.90, 200, 0.0000001))
+			return;
 	}
-	duplicateCFP.hide();
-
-	//Calculate DRR
-	//First: YFP/CFP
-	ImageCalculator ic = new ImageCalculator();
-	ImagePlus ratioR = ic.run("Divide create 32-bit stack", duplicateYFP, duplicateCFP);
-	ratioR.setTitle("Ratio");
-	ratioR.hide();
-	
-	//Calculate R0
-	IJ.run(ratioR, "Z Project...", "start="+startr0+" stop="+endr0+ " projection=[Average Intensity]");
-	ImagePlus ratio_zero = WindowManager.getImage("AVG_"+ratioR.getTitle());
-	ratio_zero.setTitle("R0");
-	ratio_zero.hide();
-	
-	//Calculate DeltaR
-	ic = new ImageCalculator();
-	ImagePlus deltaR = ic.run("Subtract create 32-bit stack", ratioR, ratio_zero);
-	deltaR.setTitle("DeltaR");
-	
-	//Calculate DeltaR/R
-	ic = new ImageCalculator();
-	ImagePlus deltaRR = ic.run("Divide create 32-bit stack", deltaR, ratio_zero);
-	deltaRR.setTitle("dRR");
-	// Express as relative change in percentage
-	IJ.run(deltaRR, "Multiply...", "stack value=100");
 	
-	//Close all remaining images
-	ratioR.changes = false;
-	ratioR.close();
-	ratio_zero.changes = false;
-	ratio_zero.close();
-	deltaR.changes = false;
-	deltaR.close();
+	//Without a dR/R stack the ROI traces of both channels are measured on the
+	//source stacks and converted to dR/R below
+	ImagePlus deltaRR = null;
+	float[][] chunkTraces = null;
+	if (traceSpace == false && chunkSize > 0) {
+		//Out of core: dR/R is written block by block to the result folder and opened
+		//as a virtual stack, and the ROI traces are measured on the blocks
+		File resultFolder = new File(workDir+"/dRR_"+stackImgYFP.getShortTitle());
+		resultFolder.mkdir();
+		RoiManager rm = RoiManager.getInstance();
+		Roi[] rois = (rm != null && rm.getCount() > 0) ? rm.getRoisAsArray() : null;
+		File drrFile = new File(resultFolder, "dRR.tif");
+		try {
+			chunkTraces = new ChunkedRelativeChange(chunkSize, gaussFlag ? gaussrad / 2.5 : 0.0, bgSubtract,
+					denoise, predictionBias, noiseVariance).run(stackImgYFP.getStack(), stackImgCFP.getStack(),
+					startr0, endr0, new double[] {drrmin, drrmax}, rois, drrFile,
+					new File(resultFolder, "dRR_weighted.tif"));
+		}
+		catch (IOException e){
+			IJ.error("Could not write dR/R to "+resultFolder+": "+e.getMessage());
+			return;
+		}
+		deltaRR = IJ.openVirtual(drrFile.getPath());
+		deltaRR.setTitle("Delta R/R");
+		deltaRR.setCalibration(stackImgYFP.getCalibration());
+		ImageStatistics deltaRstats = deltaRR.getStatistics();
+		IJ.setMinAndMax(deltaRR, (int)deltaRstats.min, (int)deltaRstats.max);
+		deltaRR.show();
+	} else if (traceSpace == false) {
+		//Filter, background subtract and denoise duplicates of both channels
+		ImageStack filteredYFP = filter(stackImgYFP, gaussrad, denoise, predictionBias, noiseVariance);
+		ImageStack filteredCFP = filter(stackImgCFP, gaussrad, denoise, predictionBias, noiseVariance);
 	
-	//Prepare the Average weighted dRR
-	ImageStatistics istatsAvg = averageYFP.getStatistics();
-	int minAvg = (int) istatsAvg.min;
-	int maxAvg = (int) istatsAvg.max;
-	IJ.run(averageYFP, "Subtract...", "value="+minAvg);
-	ic = new ImageCalculator();
-	ImagePlus deltaRRW = ic.run("Multiply create 32-bit stack", deltaRR, averageYFP);
-	IJ.run(deltaRRW, "Divide...", "value="+maxAvg+" stack");
-	IJ.setMinAndMax(deltaRRW, drrmin, drrmax);
-	ImagePlus deltaRRWDuplicate = deltaRRW.duplicate();
-	deltaRRWDuplicate.setTitle("dRRDup");
-	deltaRRWDuplicate.hide();
+		/*
+		 * DRR Calculations: R0 of the ratio YFP/CFP and the YFP average in one pass,
+		 * dR/R and the average weighted dR/R (8-bit, for the merged view) in a second one
+		 */
+		ImageStack[] drr = RelativeChange.deltaRR(filteredYFP, filteredCFP, startr0, endr0,
+				new double[] {drrmin, drrmax});
+		filteredYFP = null;
+		filteredCFP = null;
+		deltaRR = new ImagePlus("Delta R/R", drr[0]);
+		deltaRR.setCalibration(stackImgYFP.getCalibration());
+		ImagePlus deltaRRWDuplicate = new ImagePlus("dRRDup", drr[1]);
 	
 	
-	//Create an final result images to show user
-	ic = new ImageCalculator();
-	ImagePlus channelAvg = ic.run("Average create stack", stackImgYFP, stackImgCFP);
-	channelAvg.setTitle("Channel Average");
-	ImageStatistics istatschannel = channelAvg.getStatistics();
-	int minchannel = (int) istatschannel.min;
-	int maxchannel = (int) istatschannel.max;
-	IJ.setMinAndMax(channelAvg, minchannel, maxchannel);
-	IJ.run(channelAvg, "Conversions...", "scale");
-	IJ.run(channelAvg, "8-bit", "");
-	IJ.run(deltaRRWDuplicate, "8-bit", "");
+		//Create an final result images to show user
+		ImageCalculator ic = new ImageCalculator();
+		ImagePlus average = ic.run("Average create stack", stackImgYFP, stackImgCFP);
+		ImageStatistics istatschannel = average.getStatistics();
+		int minchannel = (int) istatschannel.min;
+		int maxchannel = (int) istatschannel.max;
+		ImagePlus channelAvg = new ImagePlus("Channel Average",
+				RelativeChange.toByte(average.getStack(), minchannel, maxchannel));
+		average = null;
 	
-	//Create merged view
-	channelAvg.show();
-	deltaRRWDuplicate.show();
-	IJ.run("Merge Image Stacks", "gray=[Channel Average] red=dRRDup green=*None* blue=*None* keep");
+		//Create merged view
+		channelAvg.show();
+		deltaRRWDuplicate.show();
+		IJ.run("Merge Image Stacks", "gray=[Channel Average] red=dRRDup green=*None* blue=*None* keep");
 	
 	
-	//Close temporary images
-	deltaRRWDuplicate.changes = false;
-	deltaRRWDuplicate.close();
-	averageYFP.changes = false;
-	averageYFP.close();
+		//Close temporary images
+		deltaRRWDuplicate.changes = false;
+		deltaRRWDuplicate.close();
 	
-	channelAvg.changes = false;
-	channelAvg.close();
+		channelAvg.changes = false;
+		channelAvg.close();
 	
-	deltaRR.setTitle("Delta R/R");
-	//Recalibrate deltaFF histogram
-	ImageStatistics deltaRstats = deltaRR.getStatistics();
-	int minRR = (int)deltaRstats.min;
-	int maxRR = (int)deltaRstats.max;
-	IJ.setMinAndMax(deltaRR, minRR, maxRR);
-	deltaRR.show();
+		//Recalibrate deltaFF histogram
+		ImageStatistics deltaRstats = deltaRR.getStatistics();
+		int minRR = (int)deltaRstats.min;
+		int maxRR = (int)deltaRstats.max;
+		IJ.setMinAndMax(deltaRR, minRR, maxRR);
+		deltaRR.show();
+	}
 	stackImgCFP.show();
 	stackImgYFP.show();
 	
@@ -356,19 +355,29 @@ public class Calculate_DRR implements PlugIn {
 		
 		int rCount = rm.getCount();
 		ResultsTable fancy = new ResultsTable();
-		float[] x = new float[deltaRR.getNSlices()];
+		float[] x = new float[stackImgYFP.getNSlices()];
 		
 		
+		//Means of all ROIs in one pass over the stack
+		IJ.showStatus("Extracting trace data: ");
+		float[][] traces;
+		if (chunkTraces != null) {
+			traces = chunkTraces;
+		} else if (traceSpace == true) {
+			//Raw YFP and CFP of the ROIs; background, denoising and dR/R on the traces
+			RoiTraces roiTraces = new RoiTraces(translatedROIs, stackImgYFP.getWidth(), stackImgYFP.getHeight());
+			traces = traces(roiTraces, stackImgYFP, gaussrad, denoise, predictionBias, noiseVariance);
+			float[][] tracesCFP = traces(roiTraces, stackImgCFP, gaussrad, denoise, predictionBias, noiseVariance);
+			for (int i=0; i<traces.length; i++) {
+				traces[i] = RelativeChange.deltaRR(traces[i], tracesCFP[i], startr0, endr0);
+			}
+		} else {
+			traces = new RoiTraces(translatedROIs, deltaRR.getWidth(), deltaRR.getHeight())
+					.measure(deltaRR.getStack(), deltaRR.getCalibration());
+		}
 		for( int i=0; i<rCount; i++){
-			//Set ROI
-			deltaRR.setRoi(translatedROIs[i]);
-			IJ.showStatus("Extracting trace data: ");
 			IJ.showProgress(1.0*i/(translatedROIs.length));
-			
-			//Calibrate measurements
-			double minThreshold = deltaRR.getProcessor().getMinThreshold();
-			double maxThreshold = deltaRR.getProcessor().getMaxThreshold();
-			float [] y = getZAxisProfile(translatedROIs[i], deltaRR, minThreshold, maxThreshold);
+			float [] y = traces[i];
 			
 			//Initialize Table with zero values
 			if(i==0){
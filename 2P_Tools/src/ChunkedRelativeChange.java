@@ -0,0 +1,204 @@
+import java.io.File;
+import java.io.IOException;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.*;
+
+/**
+    Delta F/F and Delta R/R of recordings larger than memory, read from
+      (virtual) stacks in blocks of consecutive slices.
+
+    The first pass streams the blocks through the preprocessing (Gauss
+      filter, background subtraction and temporal denoising, as on the
+      duplicates of the plugins) and reduces them to F0 (R0) and the
+      average. The second pass preprocesses the blocks again, computes
+      dF/F (dR/R) and its weighted copy with RelativeChange, writes them
+      to TIFF files with TiffStreamWriter and measures the ROI traces on
+      them. Besides one image each of F0, the average and the state of
+      the denoising, only about a block of the input and of both results
+      is in memory at a time, whatever the length of the recording. The
+      slices of virtual stacks are read ahead by a SlicePrefetcher.
+
+    F0 is the mean of a fixed range of slices; a sliding percentile F0
+      needs the whole time series of every pixel and is not available here.
+*/
+class ChunkedRelativeChange {
+
+    final int chunkSize;
+    final double gaussSigma;    // 0 for no filter
+    final boolean bgSubtract;   // subtract the minimum of the first slice
+    final int denoise;
+    final double predictionBias;
+    final double noiseVariance;
+
+
+    ChunkedRelativeChange(int chunkSize, double gaussSigma, boolean bgSubtract,
+                          int denoise, double predictionBias, double noiseVariance)
+    {
+        if (chunkSize < 1)
+            throw new IllegalArgumentException("The chunk size must be at least 1 slice");
+        this.chunkSize = chunkSize;
+        this.gaussSigma = gaussSigma;
+        this.bgSubtract = bgSubtract;
+        this.denoise = denoise;
+        this.predictionBias = predictionBias;
+        this.noiseVariance = noiseVariance;
+    }
+
+
+    /**
+        Writes dF/F (dR/R of stack / denominator if the latter is given) and
+          its weighted copy to the files that are not null, 32-bit and, if
+          weightedRange is given, 8-bit as by RelativeChange.deltaFF().
+          Returns the traces[r][slice - 1] of the ROIs, or null if there
+          are none.
+    */
+    float[][] run(ImageStack stack, ImageStack denominator, int startF0, int endF0,
+                  double[] weightedRange, Roi[] rois, File resultFile, File weightedFile)
+        throws IOException
+    {
+        int nSlices = stack.getSize();
+        RelativeChange.checkRange(nSlices, startF0, endF0);
+        int width = stack.getWidth();
+        int height = stack.getHeight();
+        if (denominator != null && (denominator.getSize() != nSlices
+                || denominator.getWidth() != width || denominator.getHeight() != height))
+            throw new IllegalArgumentException("YFP and CFP stacks differ in size");
+        ImageStack[] channels = denominator != null
+            ? new ImageStack[] { stack, denominator } : new ImageStack[] { stack };
+        int[] backgrounds = new int[channels.length];
+        if (bgSubtract)
+            for (int c = 0; c < channels.length; ++c)
+                backgrounds[c] = RelativeChange.background(channels[c].getProcessor(1), gaussSigma);
+
+        // First pass: F0 (R0) and the average
+        int n = width * height;
+        float[] average = new float[n];
+        float[] f0 = new float[n];
+        float[] ratio = denominator != null ? new float[n] : null;
+        Reader reader = new Reader(channels, backgrounds);
+        try {
+            for (int first = 1; first <= nSlices; first += chunkSize) {
+                ImageStack[] block = reader.next(first, Math.min(nSlices, first + chunkSize - 1));
+                for (int j = 1; j <= block[0].getSize(); ++j) {
+                    int slice = first + j - 1;
+                    Object pixels = RelativeChange.pixels(block[0], j);
+                    RelativeChange.add(pixels, average);
+                    if (slice < startF0 || slice > endF0)
+                        continue;
+                    if (ratio == null)
+                        RelativeChange.add(pixels, f0);
+                    else {
+                        RelativeChange.ratio(RelativeChange.toFloat(block[0], j),
+                                             RelativeChange.toFloat(block[1], j), ratio);
+                        RelativeChange.add(ratio, f0);
+                    }
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        RelativeChange.divide(average, nSlices);
+        RelativeChange.divide(f0, endF0 - startF0 + 1);
+
+        // Second pass: dF/F (dR/R), its weighted copy and the traces
+        TiffStreamWriter result = null;
+        TiffStreamWriter weighted = null;
+        RoiTraces roiTraces = rois != null ? new RoiTraces(rois, width, height) : null;
+        float[][] traces = rois != null ? new float[rois.length][nSlices] : null;
+        reader = new Reader(channels, backgrounds);
+        try {
+            if (resultFile != null)
+                result = new TiffStreamWriter(resultFile, width, height, 32, nSlices, false);
+            if (weightedFile != null)
+                weighted = new TiffStreamWriter(weightedFile, width, height,
+                                                weightedRange != null ? 8 : 32, nSlices, false);
+            for (int first = 1; first <= nSlices; first += chunkSize) {
+                ImageStack[] block = reader.next(first, Math.min(nSlices, first + chunkSize - 1));
+                ImageStack[] out = RelativeChange.relativeChange(block[0],
+                    denominator != null ? block[1] : null, f0, average, weightedRange);
+                for (int j = 1; j <= out[0].getSize(); ++j) {
+                    if (result != null)
+                        result.write(first + j - 2, out[0].getPixels(j));
+                    if (weighted != null)
+                        weighted.write(first + j - 2, out[1].getPixels(j));
+                }
+                if (roiTraces != null) {
+                    float[][] means = roiTraces.measure(out[0]);
+                    for (int r = 0; r < means.length; ++r)
+                        System.arraycopy(means[r], 0, traces[r], first - 1, means[r].length);
+                }
+            }
+        }
+        finally {
+            reader.close();
+            if (result != null)
+                result.close();
+            if (weighted != null)
+                weighted.close();
+        }
+        return traces;
+    }
+
+
+    /**
+        Preprocessed blocks of the channels, read in order from slice 1,
+          with their own denoising state.
+    */
+    class Reader {
+        final ImageStack[] channels;
+        final int[] backgrounds;
+        final TemporalFilter.Stream[] streams;
+        final SlicePrefetcher[] prefetchers;
+        final GaussianBlur blur = new GaussianBlur();
+        final boolean preprocess = gaussSigma > 0.0 || bgSubtract || denoise != TemporalFilter.NONE;
+
+        Reader(ImageStack[] channels, int[] backgrounds) {
+            this.channels = channels;
+            this.backgrounds = backgrounds;
+            streams = new TemporalFilter.Stream[channels.length];
+            prefetchers = new SlicePrefetcher[channels.length];
+            int[] order = new int[channels[0].getSize()];
+            for (int i = 0; i < order.length; ++i)
+                order[i] = i + 1;
+            for (int c = 0; c < channels.length; ++c) {
+                streams[c] = new TemporalFilter.Stream(denoise, predictionBias, noiseVariance,
+                                                       channels[c].getSize());
+                // The reader thread holds at most one block beyond the current one.
+                if (channels[c].isVirtual())
+                    prefetchers[c] = new SlicePrefetcher(channels[c], order, chunkSize);
+            }
+        }
+
+        /** The slices first..last of every channel, which must follow the previous block. */
+        ImageStack[] next(int first, int last) {
+            ImageStack[] blocks = new ImageStack[channels.length];
+            for (int c = 0; c < channels.length; ++c) {
+                ImageStack block = new ImageStack(channels[c].getWidth(), channels[c].getHeight());
+                for (int slice = first; slice <= last; ++slice) {
+                    ImageProcessor ip = prefetchers[c] != null
+                        ? prefetchers[c].next(slice) : channels[c].getProcessor(slice);
+                    // The slices of the stack (or the cache of a virtual one) stay unchanged.
+                    if (preprocess)
+                        ip = ip.duplicate();
+                    if (gaussSigma > 0.0)
+                        blur.blurGaussian(ip, gaussSigma);
+                    if (bgSubtract)
+                        ip.subtract(backgrounds[c]);
+                    block.addSlice(channels[c].getSliceLabel(slice), ip);
+                }
+                streams[c].apply(block);
+                blocks[c] = block;
+            }
+            return blocks;
+        }
+
+        void close() {
+            for (SlicePrefetcher prefetcher : prefetchers)
+                if (prefetcher != null)
+                    prefetcher.close();
+        }
+    }
+}
@@ -0,0 +1,600 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.measure.*;
+import ij.plugin.FolderOpener;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.*;
+
+/**
+    Command-line runner for the stabilization and Delta F/F (Delta R/R)
+      pipeline of Calculate_DFF and Calculate_DRR, for machines without
+      a display.
+
+    Every recording is a job: it is opened, optionally stabilized,
+      filtered and background subtracted, and its dF/F (or dR/R) stack is
+      computed as in the plugins and saved with the ROI traces as a CSV
+      table. No image windows, dialogs or the RoiManager are involved.
+      The jobs run concurrently, one per core by default.
+
+    Usage:
+      java -Djava.awt.headless=true -cp ij.jar:TwoPhoton.jar HeadlessRunner
+           [options] [--dff stack]... [--drr yfp cfp]... [--config file]
+
+    The options apply to all jobs. A config file holds one job per line,
+      written with the same flags as the command line, and options on a
+      line apply to the jobs of that line only; '#' starts a comment.
+
+      --dff <stack>             dF/F of a single channel recording
+      --drr <yfp> <cfp>         dR/R of the ratio YFP/CFP
+      --rois <zip|roi>          ROI set for the traces
+      --out <dir>               output directory (default: of the input)
+      --f0 <first>:<last>       slices of the baseline F0 / R0 (5:20)
+      --f0-window <frames>      sliding percentile F0 / R0 of a window of
+                                frames around every frame instead
+      --f0-percentile <p>       percentile of the sliding F0 / R0 (8)
+      --stabilize               image stabilization before the analysis
+      --transform <name>        translation, affine or piecewise
+      --telemetry               save the per-frame stabilization telemetry
+      --gauss <radius>          Gaussian filter of the given radius
+      --denoise <filter>        kalman or average, before F0 / R0
+      --bias <b>                prediction bias of the denoising (0.8)
+      --noise-variance <v>      noise variance of the Kalman filter (0.05)
+      --delete-first-slice
+      --subtract-background     subtract the minimum of the first slice
+      --raw-traces              traces of the raw stack instead of dF/F
+      --no-stacks               save the traces only
+      --trace-space             dF/F or dR/R of the raw ROI traces; the
+                                stacks are only computed to be saved
+      --chunk <slices>          read the inputs as virtual stacks and compute
+                                dF/F or dR/R in blocks of this many slices,
+                                for recordings larger than memory
+      --threads <n>             concurrent jobs (default: all cores)
+*/
+class HeadlessRunner {
+
+    /** Settings and inputs of one recording. */
+    static class Job implements Cloneable {
+        String[] inputs = null;    // the stack, or YFP and CFP for dR/R
+        String   rois = null;
+        String   outputDir = null;
+        int      startF0 = 5;
+        int      endF0 = 20;
+        int      f0Window = 0;      // 0 for the mean of startF0..endF0
+        double   f0Percentile = 8.0;
+        boolean  stabilize = false;
+        int      transform = Image_Stabilizer.TRANSLATION;
+        boolean  telemetry = false;
+        double   gaussRadius = 0.0; // 0 for no filter
+        int      denoise = TemporalFilter.NONE;
+        double   predictionBias = 0.8;
+        double   noiseVariance = 0.05;
+        boolean  deleteSlice = false;
+        boolean  bgSubtract = false;
+        boolean  rawTraces = false;
+        boolean  saveStacks = true;
+        boolean  traceSpace = false;
+        int      chunkSize = 0;     // 0 to process the stacks in memory
+
+        boolean isRatio() {
+            return inputs.length == 2;
+        }
+
+        Job copy() {
+            try {
+                return (Job)clone();
+            }
+            catch (CloneNotSupportedException e) {
+                throw new AssertionError(e);
+            }
+        }
+    }
+
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        List<Job> jobs = new ArrayList<Job>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        try {
+            Job settings = new Job();
+            List<String[]> inputs = new ArrayList<String[]>();
+            List<String> configs = new ArrayList<String>();
+            threads = parse(args, settings, inputs, configs, threads);
+            for (String[] in : inputs)
+                jobs.add(newJob(settings, in));
+            for (String config : configs)
+                readConfig(config, settings, jobs);
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        catch (IOException e) {
+            System.err.println("Could not read the config file: " + e.getMessage());
+            System.exit(2);
+        }
+        if (jobs.isEmpty()) {
+            System.err.println("No recordings given; use --dff, --drr or --config.");
+            System.exit(2);
+        }
+        System.exit(runAll(jobs, threads) ? 0 : 1);
+    }
+
+
+    /**
+        Runs the jobs on a pool of the given number of threads and returns
+          true if all of them succeeded.
+    */
+    static boolean runAll(List<Job> jobs, int threads) {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        List<Future<?>> futures = new ArrayList<Future<?>>();
+        for (final Job job : jobs) {
+            futures.add(pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    long t0 = System.nanoTime();
+                    try {
+                        process(job);
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e.getMessage(), e);
+                    }
+                    System.out.println(job.inputs[0] + ": done in "
+                        + String.format("%.1f", (System.nanoTime() - t0) / 1e9) + " s");
+                }
+            }));
+        }
+        pool.shutdown();
+        boolean ok = true;
+        for (int i = 0; i < futures.size(); ++i) {
+            try {
+                futures.get(i).get();
+            }
+            catch (Exception e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                System.err.println(jobs.get(i).inputs[0] + ": failed: " + cause.getMessage());
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+
+    //
+    // command line
+    //
+
+    /**
+        Applies the options in args to settings and collects the inputs of
+          the jobs and the config files. Returns the number of threads.
+    */
+    static int parse(String[] args, Job settings, List<String[]> inputs,
+                     List<String> configs, int threads)
+    {
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (arg.equals("--dff"))
+                inputs.add(new String[] { value(args, ++i, arg) });
+            else if (arg.equals("--drr")) {
+                String yfp = value(args, ++i, arg);
+                inputs.add(new String[] { yfp, value(args, ++i, arg) });
+            }
+            else if (arg.equals("--config") && configs != null)
+                configs.add(value(args, ++i, arg));
+            else if (arg.equals("--rois"))
+                settings.rois = value(args, ++i, arg);
+            else if (arg.equals("--out"))
+                settings.outputDir = value(args, ++i, arg);
+            else if (arg.equals("--f0")) {
+                String range = value(args, ++i, arg);
+                int colon = range.indexOf(':');
+                if (colon < 0)
+                    throw new IllegalArgumentException("--f0 expects <first>:<last>");
+                settings.startF0 = toInt(range.substring(0, colon), arg);
+                settings.endF0 = toInt(range.substring(colon + 1), arg);
+            }
+            else if (arg.equals("--f0-window"))
+                settings.f0Window = toInt(value(args, ++i, arg), arg);
+            else if (arg.equals("--f0-percentile"))
+                settings.f0Percentile = toDouble(value(args, ++i, arg), arg);
+            else if (arg.equals("--stabilize"))
+                settings.stabilize = true;
+            else if (arg.equals("--telemetry"))
+                settings.telemetry = true;
+            else if (arg.equals("--transform"))
+                settings.transform = toTransform(value(args, ++i, arg));
+            else if (arg.equals("--gauss"))
+                settings.gaussRadius = toDouble(value(args, ++i, arg), arg);
+            else if (arg.equals("--denoise"))
+                settings.denoise = toDenoise(value(args, ++i, arg));
+            else if (arg.equals("--bias"))
+                settings.predictionBias = toDouble(value(args, ++i, arg), arg);
+            else if (arg.equals("--noise-variance"))
+                settings.noiseVariance = toDouble(value(args, ++i, arg), arg);
+            else if (arg.equals("--delete-first-slice"))
+                settings.deleteSlice = true;
+            else if (arg.equals("--subtract-background"))
+                settings.bgSubtract = true;
+            else if (arg.equals("--raw-traces"))
+                settings.rawTraces = true;
+            else if (arg.equals("--no-stacks"))
+                settings.saveStacks = false;
+            else if (arg.equals("--trace-space"))
+                settings.traceSpace = true;
+            else if (arg.equals("--chunk"))
+                settings.chunkSize = toInt(value(args, ++i, arg), arg);
+            else if (arg.equals("--threads") && configs != null)
+                threads = toInt(value(args, ++i, arg), arg);
+            else
+                throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+        return threads;
+    }
+
+
+    /** Adds the jobs of a config file, one line each. */
+    static void readConfig(String path, Job settings, List<Job> jobs) throws IOException {
+        BufferedReader reader = new BufferedReader(new FileReader(path));
+        try {
+            int lineNumber = 0;
+            for (String line; (line = reader.readLine()) != null; ) {
+                ++lineNumber;
+                int comment = line.indexOf('#');
+                if (comment >= 0)
+                    line = line.substring(0, comment);
+                String[] args = tokenize(line);
+                if (args.length == 0)
+                    continue;
+                Job lineSettings = settings.copy();
+                List<String[]> inputs = new ArrayList<String[]>();
+                try {
+                    parse(args, lineSettings, inputs, null, 0);
+                }
+                catch (IllegalArgumentException e) {
+                    throw new IllegalArgumentException(path + ":" + lineNumber + ": " + e.getMessage());
+                }
+                for (String[] in : inputs)
+                    jobs.add(newJob(lineSettings, in));
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+
+    /** Splits a line at white space; double quotes enclose paths with spaces. */
+    static String[] tokenize(String line) {
+        List<String> tokens = new ArrayList<String>();
+        StringBuilder sb = null;
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); ++i) {
+            char c = line.charAt(i);
+            if (c == '"')
+                quoted = !quoted;
+            else if (Character.isWhitespace(c) && !quoted) {
+                if (sb != null)
+                    tokens.add(sb.toString());
+                sb = null;
+                continue;
+            }
+            if (sb == null)
+                sb = new StringBuilder();
+            if (c != '"')
+                sb.append(c);
+        }
+        if (sb != null)
+            tokens.add(sb.toString());
+        return tokens.toArray(new String[tokens.size()]);
+    }
+
+
+    static Job newJob(Job settings, String[] inputs) {
+        Job job = settings.copy();
+        job.inputs = inputs;
+        return job;
+    }
+
+
+    static String value(String[] args, int i, String option) {
+        if (i >= args.length)
+            throw new IllegalArgumentException(option + " expects a value");
+        return args[i];
+    }
+
+
+    static int toInt(String s, String option) {
+        try {
+            return Integer.parseInt(s.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + ": not a number: " + s);
+        }
+    }
+
+
+    static double toDouble(String s, String option) {
+        try {
+            return Double.parseDouble(s.trim());
+        }
+        catch (NumberFormatException e) {
+            throw new IllegalArgumentException(option + ": not a number: " + s);
+        }
+    }
+
+
+    static int toTransform(String name) {
+        if (name.equalsIgnoreCase("translation"))
+            return Image_Stabilizer.TRANSLATION;
+        if (name.equalsIgnoreCase("affine"))
+            return Image_Stabilizer.AFFINE;
+        if (name.equalsIgnoreCase("piecewise"))
+            return Image_Stabilizer.PIECEWISE_RIGID;
+        throw new IllegalArgumentException("Unknown transformation: " + name);
+    }
+
+
+    static int toDenoise(String name) {
+        if (name.equalsIgnoreCase("none"))
+            return TemporalFilter.NONE;
+        if (name.equalsIgnoreCase("kalman"))
+            return TemporalFilter.KALMAN;
+        if (name.equalsIgnoreCase("average"))
+            return TemporalFilter.RUNNING_AVERAGE;
+        throw new IllegalArgumentException("Unknown denoising filter: " + name);
+    }
+
+
+    //
+    // pipeline
+    //
+
+    /** Runs the pipeline of one recording and saves its results. */
+    static void process(Job job) throws IOException {
+        if (job.chunkSize < 0)
+            throw new IOException("The chunk size must be at least 0");
+        if (job.chunkSize > 0 && (job.stabilize || job.f0Window > 0))
+            throw new IOException("--chunk cannot be combined with --stabilize or --f0-window");
+        ImagePlus[] imps = new ImagePlus[job.inputs.length];
+        for (int c = 0; c < imps.length; ++c) {
+            imps[c] = job.chunkSize > 0 ? openVirtual(job.inputs[c]) : IJ.openImage(job.inputs[c]);
+            if (imps[c] == null)
+                throw new IOException("Could not open " + job.inputs[c]);
+            if (imps[c].getStackSize() < 2)
+                throw new IOException(job.inputs[c] + " is not a stack");
+        }
+        Roi[] rois = job.rois != null ? openRois(job.rois) : null;
+        if (job.traceSpace && rois == null)
+            throw new IOException("--trace-space needs --rois");
+
+        if (job.deleteSlice)
+            for (int c = 0; c < imps.length; ++c)
+                imps[c].getStack().deleteSlice(1);
+        int nSlices = imps[0].getStackSize();
+        if (job.f0Window < 0 || job.f0Percentile < 0.0 || job.f0Percentile > 100.0)
+            throw new IOException("The F0 window must be at least 0 and the F0 percentile within 0-100");
+        if (job.f0Window == 0 && (job.startF0 < 1 || job.endF0 > nSlices || job.startF0 > job.endF0))
+            throw new IOException("The F0 slices must satisfy 1 <= first <= last <= " + nSlices);
+        if (job.predictionBias < 0.0 || job.predictionBias > 1.0
+                || job.noiseVariance <= 0.0 || job.noiseVariance > 1.0)
+            throw new IOException("The prediction bias must be within 0..1 and the noise variance within (0, 1]");
+
+        // The YFP channel leads and the CFP channel gets its shifts.
+        StabilizerTelemetry telemetry =
+            job.stabilize && job.telemetry ? new StabilizerTelemetry(nSlices) : null;
+        if (job.stabilize && !Image_Stabilizer.stabilizeChannels(imps, 1,
+                job.transform, 1, 0.90, 200, 0.0000001, telemetry))
+            throw new IOException("The channels could not be stabilized together");
+
+        String prefix = job.isRatio() ? "dRR" : job.rawTraces ? "F" : "dFF";
+        File inputFile = new File(job.inputs[0]);
+        String dir = job.outputDir != null ? job.outputDir : inputFile.getAbsoluteFile().getParent();
+        File saveDir = new File(dir, prefix + "_" + imps[0].getShortTitle());
+        if (!saveDir.isDirectory() && !saveDir.mkdirs())
+            throw new IOException("Could not create " + saveDir.getPath());
+        String name = job.isRatio() ? "dRR" : "dFF";
+
+        // In trace space the pixelwise stacks are only computed to be saved.
+        ImageStack result = null;
+        float[][] chunkTraces = null;
+        if (job.chunkSize > 0 && (!job.traceSpace || job.saveStacks)) {
+            // Blocks are written straight to the files and the traces measured on them.
+            boolean measure = rois != null && !job.traceSpace && !(job.rawTraces && !job.isRatio());
+            chunkTraces = new ChunkedRelativeChange(job.chunkSize, job.gaussRadius / 2.5,
+                    job.bgSubtract, job.denoise, job.predictionBias, job.noiseVariance)
+                .run(imps[0].getStack(), job.isRatio() ? imps[1].getStack() : null,
+                     job.startF0, job.endF0, null, measure ? rois : null,
+                     job.saveStacks ? new File(saveDir, name + ".tif") : null,
+                     job.saveStacks ? new File(saveDir, name + "_weighted.tif") : null);
+        }
+        else if (!job.traceSpace || job.saveStacks) {
+            ImageStack[] filtered = new ImageStack[imps.length];
+            for (int c = 0; c < imps.length; ++c)
+                filtered[c] = prepare(imps[c], job);
+            ImageStack[] out;
+            if (job.f0Window > 0)
+                out = job.isRatio()
+                    ? PercentileBaseline.deltaRR(filtered[0], filtered[1], job.f0Window, job.f0Percentile, null)
+                    : PercentileBaseline.deltaFF(filtered[0], job.f0Window, job.f0Percentile, null);
+            else
+                out = job.isRatio()
+                    ? RelativeChange.deltaRR(filtered[0], filtered[1], job.startF0, job.endF0)
+                    : RelativeChange.deltaFF(filtered[0], job.startF0, job.endF0);
+            result = out[0];
+            if (job.saveStacks) {
+                saveStack(out[0], new File(saveDir, name + ".tif"), imps[0].getCalibration());
+                saveStack(out[1], new File(saveDir, name + "_weighted.tif"), imps[0].getCalibration());
+            }
+        }
+
+        if (telemetry != null)
+            telemetry.save(new File(saveDir, "Stabilization.csv").getPath());
+
+        if (rois != null) {
+            ResultsTable table;
+            if (job.rawTraces && !job.isRatio())
+                table = traces(imps[0].getStack(), rois);
+            else if (job.traceSpace)
+                table = table(relativeTraces(imps, rois, job), rois);
+            else if (chunkTraces != null)
+                table = table(chunkTraces, rois);
+            else
+                table = traces(result, rois);
+            table.saveAs(new File(saveDir, prefix + "Data.csv").getPath());
+        }
+    }
+
+
+    /**
+        Filtered, background subtracted and temporally denoised copy of a
+          channel, as computed on the duplicate in the plugins.
+    */
+    static ImageStack prepare(ImagePlus imp, Job job) {
+        ImageStack stack = imp.getStack();
+        ImageStack copy = new ImageStack(stack.getWidth(), stack.getHeight());
+        GaussianBlur blur = new GaussianBlur();
+        for (int slice = 1; slice <= stack.getSize(); ++slice) {
+            ImageProcessor ip = stack.getProcessor(slice).duplicate();
+            // The plugins' "radius" is the old macro radius of 2.5 sigma.
+            if (job.gaussRadius > 0.0)
+                blur.blurGaussian(ip, job.gaussRadius / 2.5);
+            copy.addSlice(stack.getSliceLabel(slice), ip);
+        }
+        if (job.bgSubtract) {
+            // The background is the minimum of the current (first) slice.
+            ImageProcessor current = copy.getProcessor(imp.getCurrentSlice());
+            int min = (int)ImageStatistics.getStatistics(current, Measurements.MIN_MAX, null).min;
+            for (int slice = 1; slice <= copy.getSize(); ++slice)
+                copy.getProcessor(slice).subtract(min);
+        }
+        TemporalFilter.apply(copy, job.denoise, job.predictionBias, job.noiseVariance);
+        return copy;
+    }
+
+
+    /**
+        dF/F or dR/R of the mean raw signal of every ROI, with the steps of
+          prepare() done on the traces instead of the stacks. The Gaussian
+          filter only smooths the slice the background is taken from.
+    */
+    static float[][] relativeTraces(ImagePlus[] imps, Roi[] rois, Job job) {
+        RoiTraces roiTraces = new RoiTraces(rois, imps[0].getWidth(), imps[0].getHeight());
+        float[][][] channels = new float[imps.length][][];
+        for (int c = 0; c < imps.length; ++c) {
+            channels[c] = roiTraces.measure(imps[c].getStack());
+            if (job.bgSubtract)
+                RelativeChange.subtract(channels[c],
+                    RelativeChange.background(imps[c].getProcessor(), job.gaussRadius / 2.5));
+            TemporalFilter.apply(channels[c], job.denoise, job.predictionBias, job.noiseVariance);
+        }
+        float[][] traces = channels[0];
+        for (int r = 0; r < traces.length; ++r) {
+            if (job.f0Window > 0)
+                traces[r] = job.isRatio()
+                    ? PercentileBaseline.deltaRR(channels[0][r], channels[1][r], job.f0Window, job.f0Percentile)
+                    : PercentileBaseline.deltaFF(channels[0][r], job.f0Window, job.f0Percentile);
+            else
+                traces[r] = job.isRatio()
+                    ? RelativeChange.deltaRR(channels[0][r], channels[1][r], job.startF0, job.endF0)
+                    : RelativeChange.deltaFF(channels[0][r], job.startF0, job.endF0);
+        }
+        return traces;
+    }
+
+
+    /** Opens a TIFF file or a folder of images as a virtual stack. */
+    static ImagePlus openVirtual(String path) {
+        if (new File(path).isDirectory())
+            return FolderOpener.open(path, "virtual");
+        return IJ.openVirtual(path);
+    }
+
+
+    //
+    // ROIs and traces
+    //
+
+    /** Reads a single .roi file or all ROIs of a RoiManager .zip file. */
+    static Roi[] openRois(String path) throws IOException {
+        if (!path.toLowerCase().endsWith(".zip")) {
+            Roi roi = RoiDecoder.open(path);
+            if (roi == null)
+                throw new IOException("Could not open " + path);
+            return new Roi[] { roi };
+        }
+        List<Roi> rois = new ArrayList<Roi>();
+        ZipInputStream in = new ZipInputStream(new FileInputStream(path));
+        try {
+            for (ZipEntry entry; (entry = in.getNextEntry()) != null; ) {
+                String name = entry.getName();
+                if (!name.endsWith(".roi"))
+                    continue;
+                Roi roi = new RoiDecoder(readAll(in), name).getRoi();
+                if (roi != null) {
+                    if (roi.getName() == null)
+                        roi.setName(name.substring(0, name.length() - 4));
+                    rois.add(roi);
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        if (rois.isEmpty())
+            throw new IOException("No ROIs could be found in " + path);
+        return rois.toArray(new Roi[rois.size()]);
+    }
+
+
+    static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        for (int n; (n = in.read(buffer)) > 0; )
+            out.write(buffer, 0, n);
+        return out.toByteArray();
+    }
+
+
+    /** Mean of every ROI in every slice, a column per ROI. */
+    static ResultsTable traces(ImageStack stack, Roi[] rois) {
+        return table(new RoiTraces(rois, stack.getWidth(), stack.getHeight()).measure(stack), rois);
+    }
+
+
+    /** Traces[r][slice - 1] of the ROIs as a table, a column per ROI. */
+    static ResultsTable table(float[][] traces, Roi[] rois) {
+        String[] names = new String[rois.length];
+        for (int r = 0; r < rois.length; ++r)
+            names[r] = rois[r].getName() != null ? rois[r].getName() : Integer.toString(r);
+        ResultsTable table = new ResultsTable();
+        for (int slice = 1; slice <= traces[0].length; ++slice) {
+            table.incrementCounter();
+            table.addValue("Slice", slice);
+            for (int r = 0; r < rois.length; ++r)
+                table.addValue(names[r], traces[r][slice - 1]);
+        }
+        return table;
+    }
+
+
+    static void saveStack(ImageStack stack, File file, Calibration cal) throws IOException {
+        ImagePlus imp = new ImagePlus(file.getName(), stack);
+        imp.setCalibration(cal);
+        if (!new FileSaver(imp).saveAsTiffStack(file.getPath()))
+            throw new IOException("Could not save " + file.getPath());
+    }
+}
@@ -0,0 +1,255 @@
+import ij.process.*;
+
+/**
+    Gradient magnitude pyramid used by the Image_Stabilizer.
+
+    Level 0 holds the Sobel gradient magnitude of the image at full
+      resolution. Every further level is computed from the level above it
+      by a separable [1 2 1]/4 anti-aliasing filter followed by dropping
+      every other row and column, so pixel (x, y) of level k lies at
+      (2^k x, 2^k y) of level 0. Levels are added as long as both
+      dimensions stay at or above MIN_SIZE, up to the requested depth.
+
+    A reference pyramid additionally keeps the x and y derivatives of
+      every level, which the Lucas-Kanade iterations need for the
+      steepest descent images. They are computed once per template by
+      buildDerivatives() and shared by all slices aligned against it.
+      For the affine model buildSteepestDescent() also precomputes the
+      six steepest descent images, as consecutive planes of one array
+      per level, and their Hessian, so the iterations only read them.
+*/
+class ImagePyramid {
+
+    static final int MIN_SIZE = 50;
+
+    final FloatProcessor[] levels;
+    float[][] dx = null;
+    float[][] dy = null;
+
+    /* affine steepest descent images, six planes of width * height each */
+    float[][] sd = null;
+
+    /* 6x6 Hessians of the affine model and their inverses, row-major;
+         an inverse is null if the Hessian is singular */
+    double[][] hessian = null;
+    double[][] hInv = null;
+
+    private final float[] tmp;
+
+
+    /** Creates a pyramid with at most maxLevel levels below full resolution. */
+    ImagePyramid(int width, int height, int maxLevel) {
+        int depth = 1;
+        while (depth <= maxLevel && (width >> depth) >= MIN_SIZE && (height >> depth) >= MIN_SIZE)
+            ++depth;
+        levels = new FloatProcessor[depth];
+        for (int k = 0; k < depth; ++k)
+            levels[k] = new FloatProcessor(levelSize(width, k), levelSize(height, k));
+        tmp = new float[levelSize(width, 1) * height];
+    }
+
+
+    static int levelSize(int size, int level) {
+        return level == 0 ? size : size >> level;
+    }
+
+
+    int getDepth() {
+        return levels.length;
+    }
+
+
+    int getWidth(int level) {
+        return levels[level].getWidth();
+    }
+
+
+    int getHeight(int level) {
+        return levels[level].getHeight();
+    }
+
+
+    float[] getPixels(int level) {
+        return (float[])levels[level].getPixels();
+    }
+
+
+    /** Fills the pyramid from a 32-bit image. */
+    void build(ImageProcessor ip) {
+        build(ip, levels.length);
+    }
+
+
+    /** Fills only the first depth levels of the pyramid from a 32-bit image. */
+    void build(ImageProcessor ip, int depth) {
+        gradient(getPixels(0), (float[])ip.getPixels(), ip.getWidth(), ip.getHeight());
+        downsample(depth);
+    }
+
+
+    /** Fills the levels 1..depth-1 from level 0. */
+    void downsample(int depth) {
+        for (int k = 1; k < depth && k < levels.length; ++k)
+            downsample(getPixels(k), getWidth(k), getHeight(k),
+                       getPixels(k - 1), getWidth(k - 1), getHeight(k - 1), tmp);
+    }
+
+
+    /** Computes the x and y derivatives of every level. */
+    void buildDerivatives() {
+        if (dx == null) {
+            dx = new float[levels.length][];
+            dy = new float[levels.length][];
+            for (int k = 0; k < levels.length; ++k) {
+                dx[k] = new float[getWidth(k) * getHeight(k)];
+                dy[k] = new float[getWidth(k) * getHeight(k)];
+            }
+        }
+        for (int k = 0; k < levels.length; ++k) {
+            dx(dx[k], getPixels(k), getWidth(k), getHeight(k));
+            dy(dy[k], getPixels(k), getWidth(k), getHeight(k));
+        }
+    }
+
+
+    /**
+        Computes the six affine steepest descent images of every level,
+          (dx x, dy x, dx y, dy y, dx, dy) at each pixel, and their 6x6
+          Hessian. Requires buildDerivatives().
+    */
+    void buildSteepestDescent() {
+        if (sd == null) {
+            sd = new float[levels.length][];
+            hessian = new double[levels.length][36];
+            for (int k = 0; k < levels.length; ++k)
+                sd[k] = new float[6 * getWidth(k) * getHeight(k)];
+        }
+        for (int k = 0; k < levels.length; ++k) {
+            int width = getWidth(k);
+            int height = getHeight(k);
+            int n = width * height;
+            float[] gx = dx[k];
+            float[] gy = dy[k];
+            float[] s = sd[k];
+            for (int i = 0, y = 0; y < height; ++y) {
+                for (int x = 0; x < width; ++x, ++i) {
+                    s[i] = gx[i] * x;
+                    s[n + i] = gy[i] * x;
+                    s[2 * n + i] = gx[i] * y;
+                    s[3 * n + i] = gy[i] * y;
+                    s[4 * n + i] = gx[i];
+                    s[5 * n + i] = gy[i];
+                }
+            }
+            double[] h = hessian[k];
+            for (int a = 0; a < 6; ++a)
+                for (int b = a; b < 6; ++b)
+                    h[a * 6 + b] = h[b * 6 + a] = dot(s, a * n, b * n, n);
+        }
+    }
+
+
+    /** Dot product of the n values of s starting at offsets a and b. */
+    static double dot(float[] s, int a, int b, int n) {
+        double sum = 0.0;
+        for (int i = 0; i < n; ++i)
+            sum += s[a + i] * s[b + i];
+        return sum;
+    }
+
+
+    /**
+        Halves an image with the [1 2 1]/4 filter centred on the even
+          source pixels; tmp must hold dstWidth * srcHeight values.
+    */
+    static void downsample(float[] dst, int dstWidth, int dstHeight,
+                           float[] src, int srcWidth, int srcHeight, float[] tmp)
+    {
+        // horizontal pass on every source row
+        for (int y = 0; y < srcHeight; ++y) {
+            int row = y * srcWidth;
+            for (int x = 0; x < dstWidth; ++x) {
+                int xs = 2 * x;
+                int l = xs > 0 ? xs - 1 : 0;
+                int r = xs + 1 < srcWidth ? xs + 1 : srcWidth - 1;
+                tmp[y * dstWidth + x] = 0.25f * (src[row + l] + 2f * src[row + xs] + src[row + r]);
+            }
+        }
+        // vertical pass on the even rows
+        for (int y = 0; y < dstHeight; ++y) {
+            int ys = 2 * y;
+            int u = (ys > 0 ? ys - 1 : 0) * dstWidth;
+            int c = ys * dstWidth;
+            int d = (ys + 1 < srcHeight ? ys + 1 : srcHeight - 1) * dstWidth;
+            int p = y * dstWidth;
+            for (int x = 0; x < dstWidth; ++x)
+                dst[p + x] = 0.25f * (tmp[u + x] + 2f * tmp[c + x] + tmp[d + x]);
+        }
+    }
+
+
+    static void gradient(float[] outPixels, float[] pixels, int width, int height) {
+        for (int y = 1; y + 1 < height; ++y) {
+            int offset = 1 + y * width;
+
+            //
+            // nw---n---ne
+            //  |   |   |
+            //  w---o---e
+            //  |   |   |
+            // sw---s---se
+            //
+
+            double p1 = 0f;
+            double p2 = pixels[offset - width - 1]; // nw
+            double p3 = pixels[offset - width];     // n
+            double p4 = 0f;                         // ne
+            double p5 = pixels[offset - 1];         // w
+            double p6 = pixels[offset];             // o
+            double p7 = 0f;                         // e
+            double p8 = pixels[offset + width - 1]; // sw
+            double p9 = pixels[offset + width];     // s
+
+            for (int x = 1; x + 1 < width; ++x) {
+                p1 = p2; p2 = p3; p3 = pixels[offset - width + 1];
+                p4 = p5; p5 = p6; p6 = pixels[offset + 1];
+                p7 = p8; p8 = p9; p9 = pixels[offset + width + 1];
+                double a = p1 + 2 * p2 + p3 - p7 - 2 * p8 - p9;
+                double b = p1 + 2 * p4 + p7 - p3 - 2 * p6 - p9;
+                outPixels[offset++] = (float)Math.sqrt(a * a + b * b);
+            }
+        }
+    }
+
+
+    static void dx(float[] outPixels, float[] pixels, int width, int height) {
+        for (int y = 0; y < height; ++y) {
+            // Take forward/backward difference on edges.
+            outPixels[y * width] = pixels[y * width + 1] - pixels[y * width];
+            outPixels[y * width + width - 1] = pixels[y * width + width - 1]
+                                                     - pixels[y * width + width - 2];
+
+            // Take central difference in interior.
+            for (int x = 1; x + 1 < width; ++x) {
+                outPixels[y * width + x] = (float)((pixels[y * width + x + 1] -
+                                                    pixels[y * width + x - 1]) * 0.5);
+            } // x
+        } // y
+    }
+
+
+    static void dy(float[] outPixels, float[] pixels, int width, int height) {
+        for (int x = 0; x < width; ++x) {
+            // Take forward/backward difference on edges.
+            outPixels[x] = pixels[width + x] - pixels[x];
+            outPixels[(height - 1) * width + x] = pixels[width * (height - 1) + x]
+                                                        - pixels[width * (height - 2) + x];
+
+            // Take central difference in interior.
+            for (int y = 1; y + 1 < height; ++y) {
+                outPixels[y * width + x] = (float)((pixels[width * (y + 1) + x] -
+                                                    pixels[width * (y - 1) + x]) * 0.5);
+            } // y
+        } // x
+    }
+}
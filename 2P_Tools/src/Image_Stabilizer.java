@@ -8,7 +8,7 @@
               Steven Kang (sskang AT andrew.cmu.edu)
 
     Requires: ImageJ 1.38q or later
-              JRE 5.0 or later
+              JRE 7.0 or later
 
     Installation:
       Download  Image_Stabilizer.java  to the  plugins  folder or  subfolder.
@@ -63,6 +63,10 @@ FITNESS FOR ANY PARTICULAR PURPOSE.
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import ij.*;
 import ij.gui.*;
 import ij.process.*;
@@ -76,6 +80,16 @@ public class Image_Stabilizer implements PlugInFilter {
 
     static final int TRANSLATION = 0;
     static final int AFFINE = 1;
+    static final int PIECEWISE_RIGID = 2;
+
+    static final int LUCAS_KANADE = 0;
+    static final int PHASE_CORRELATION = 1;
+    static final int PHASE_CORRELATION_LUCAS_KANADE = 2;
+
+    static final int IMAGE_SEQUENCE = 0;
+    static final int MULTIPAGE_TIFF = 1;
+    static final int BIG_TIFF = 2;
+    static final int WARP_ON_DEMAND = 3;
 
     ImagePlus  imp = null;
     ImageStack stack = null;
@@ -84,15 +98,72 @@ public class Image_Stabilizer implements PlugInFilter {
     boolean    stackVirtual = false;
     boolean    outputNewStack = false;
     int        transform = TRANSLATION;
+    int        estimator = LUCAS_KANADE;
     int        pyramidLevel = 1;
     int        maxIter = 200;
     double     tol = 1e-7;
     double     alpha = 0.9;
+    int        border = BilinearWarp.BORDER_CLAMP;
+
+    /* fixed template (slice-parallel) mode */
+    boolean    fixedTemplate = false;
+    int        templateFirst = 1;
+    int        templateLast = 1;
+
+    /* temporal binning: the motion is estimated on averages of binSize frames */
+    int        binSize = 1;
+    boolean    refineFrames = false;
+
+    /* piecewise rigid model: a translation per tile of a grid */
+    int        tilesX = 4;
+    int        tilesY = 4;
+    int        tileOverlap = 16;
+    ForkJoinPool tilePool = null;
+    final ThreadLocal<float[][]> tileBuffers = new ThreadLocal<float[][]>() {
+        @Override
+        protected float[][] initialValue() {
+            return new float[4][0];
+        }
+    };
+
+    /* multi-channel (hyperstack) mode: a frame is nChannels slices */
+    int        nChannels = 1;
+    int        refChannel = 1;   // 1..nChannels, 0 for the sum of all channels
+
+    /* phase correlation against the current template (translation only) */
+    PhaseCorrelation phaseCorrelation = null;
+
+    /* per-thread Lucas-Kanade scratch memory */
+    final ThreadLocal<LucasKanadeWorkspace> workspace =
+        new ThreadLocal<LucasKanadeWorkspace>() {
+            @Override
+            protected LucasKanadeWorkspace initialValue() {
+                return new LucasKanadeWorkspace();
+            }
+        };
+
+    /* streaming I/O for virtual stacks */
+    int        virtualOutput = IMAGE_SEQUENCE;
+    int        ioQueueLength = 16;
+    SlicePrefetcher  prefetcher = null;
+    SliceWriteQueue  writeQueue = null;
+    TiffStreamWriter tiffWriter = null;
+
+    /* wp of every slice when the output is warped on demand */
+    double[][][] transforms = null;
+    int        cacheSize = 64;
 
     /* transformation coefficient Log */
     boolean    logEnabled = false;
     Editor     logEditor = null;
 
+    /* binary transformation log, see TransformLog */
+    File       binaryLogFile = null;
+    TransformLog.Writer transformLog = null;
+
+    /* per-frame iterations, RMSE and phase timings, or null */
+    StabilizerTelemetry telemetry = null;
+
     @Override
 	public int setup(String arg, ImagePlus imp) {
         IJ.register(Image_Stabilizer.class);
@@ -140,29 +211,90 @@ public class Image_Stabilizer implements PlugInFilter {
             outputNewStack = false;
         }
 
+        int nc = imp.getNChannels();
+        if (nc > 1 && stackSize % nc == 0)
+            nChannels = nc;
+        int current = (imp.getCurrentSlice() - 1) / nChannels + 1;
+        int nFrames = stackSize / nChannels;
+        templateFirst = current;
+        templateLast = current;
+
         if (!showDialog(ip))
             return;
 
-        int current = imp.getCurrentSlice();
-        ImageProcessor ipRef = stack.getProcessor(current);
+        ImageProcessor ipRef = nChannels == 1 ? stack.getProcessor(current)
+                                              : referenceOf(readFrame(current));
 
-        if (outputNewStack)
-            stackOut = new ImageStack(ip.getWidth(), ip.getHeight());
+        // The fixed template is read before the prefetch thread of a virtual
+        //   stack starts, which is then the only reader of the stack.
+        ImageProcessor ipTemplate = fixedTemplate ? createTemplate(ipRef) : null;
+
+        if (stackVirtual && !openStreams(ipRef, current))
+            return;
+
+        if (binaryLogFile != null) {
+            try {
+                transformLog = new TransformLog.Writer(binaryLogFile, transform,
+                    TransformLog.paramCount(transform, tilesX * tilesY), nChannels);
+            }
+            catch (IOException e) {
+                IJ.error("Could not create " + binaryLogFile.getPath() + ": " + e.getMessage());
+                if (stackVirtual)
+                    closeStreams();
+                return;
+            }
+        }
 
         showProgress(0.0);
-        if (!IJ.escapePressed()) {
-            process(ipRef, current - 1, 1, -1, 1);
-            if (!IJ.escapePressed())
-                process(ipRef, current, stackSize, 1, current);
+        try {
+            if (binSize > 1) {
+                if (outputNewStack)
+                    stackOut = new ImageStack(ip.getWidth(), ip.getHeight());
+                if (!IJ.escapePressed())
+                    processBinned(ipRef, ipTemplate, current);
+            }
+            else if (fixedTemplate) {
+                if (outputNewStack)
+                    stackOut = new ImageStack(ip.getWidth(), ip.getHeight(), stackSize);
+                if (!IJ.escapePressed())
+                    processFixedTemplate(ipRef, ipTemplate, current);
+            }
+            else {
+                if (outputNewStack)
+                    stackOut = new ImageStack(ip.getWidth(), ip.getHeight());
+                if (!IJ.escapePressed()) {
+                    process(ipRef, current - 1, 1, -1, 1);
+                    if (!isCancelled())
+                        process(ipRef, current, nFrames, 1, current);
+                }
+            }
+        }
+        finally {
+            if (stackVirtual)
+                closeStreams();
+            closeTransformLog();
+            if (tilePool != null)
+                tilePool.shutdown();
         }
 
-        if (!outputNewStack) // in-place processing
+        if (telemetry != null)
+            telemetry.show(imp.getShortTitle());
+
+        if (transforms != null) {
+            ImagePlus impOut = new ImagePlus("Stablized " + imp.getShortTitle(),
+                new StabilizedVirtualStack(stack, transforms, cacheSize, border));
+            impOut.setCalibration(imp.getCalibration());
+            setDimensions(impOut);
+            impOut.show();
+        }
+        else if (!outputNewStack) // in-place processing
             imp.updateAndDraw();
         else if (stackOut.getSize() > 0) {
             // Create new image using the new stack.
             ImagePlus impOut = new ImagePlus(
                 "Stablized " + imp.getShortTitle(), stackOut);
             impOut.setStack(null, stackOut);
+            setDimensions(impOut);
 
             // Display the new stacks.
             impOut.show();
@@ -174,53 +306,151 @@ public class Image_Stabilizer implements PlugInFilter {
         int xform = TRANSLATION;
         if (name.compareTo("Affine") == 0)
             xform = AFFINE;
+        else if (name.compareTo("Piecewise Rigid") == 0)
+            xform = PIECEWISE_RIGID;
         return xform;
     }
 
 
+    int getEstimator(String name) {
+        int method = LUCAS_KANADE;
+        if (name.compareTo("Phase Correlation") == 0)
+            method = PHASE_CORRELATION;
+        else if (name.compareTo("Phase Correlation + Lucas-Kanade") == 0)
+            method = PHASE_CORRELATION_LUCAS_KANADE;
+        return method;
+    }
+
+
+    String getEstimatorName(int method) {
+        String name = "Lucas-Kanade";
+        if (method == PHASE_CORRELATION)
+            name = "Phase Correlation";
+        else if (method == PHASE_CORRELATION_LUCAS_KANADE)
+            name = "Phase Correlation + Lucas-Kanade";
+        return name;
+    }
+
+
     String getTransformName(int xform) {
         String name = "Translation";
         if (xform == AFFINE)
             name = "Affine";
+        else if (xform == PIECEWISE_RIGID)
+            name = "Piecewise Rigid";
         return name;
     }
 
 
     boolean showDialog(ImageProcessor ip) {
-        final String[] transformNames = { "Translation", "Affine" };
-        final String[] pyramidLevelNames = { "0", "1", "2", "3", "4" };
+        final String[] transformNames = { "Translation", "Affine", "Piecewise Rigid" };
+        final String[] estimatorNames = { "Lucas-Kanade", "Phase Correlation",
+                                          "Phase Correlation + Lucas-Kanade" };
+        final String[] pyramidLevelNames = { "0", "1", "2", "3", "4", "5", "6", "7", "8" };
+        final String[] outputNames = { "Image Sequence", "Multi-page TIFF", "BigTIFF",
+                                       "Warp on Demand" };
         GenericDialog gd = new GenericDialog("Image Stabilizer");
         gd.addChoice("Transformation:", transformNames, getTransformName(transform));
+        gd.addChoice("Translation_Estimator:", estimatorNames, getEstimatorName(estimator));
         gd.addChoice("Maximum_Pyramid_Levels:", pyramidLevelNames, Integer.toString(pyramidLevel));
+        String[] channelNames = new String[nChannels + 1];
+        if (nChannels > 1) {
+            for (int c = 1; c <= nChannels; ++c)
+                channelNames[c - 1] = Integer.toString(c);
+            channelNames[nChannels] = "Sum of Channels";
+            gd.addChoice("Reference_Channel:", channelNames,
+                channelNames[refChannel == 0 ? nChannels : refChannel - 1]);
+        }
         gd.addNumericField("Template_Update_Coefficient (0..1):", alpha, 2, 11, null);
         gd.addNumericField("Maximum_Iterations:", maxIter, 0, 11, null);
         gd.addNumericField("Error_Tolerance:", tol, 7, 11, null);
+        gd.addNumericField("Tiles_X (piecewise rigid):", tilesX, 0, 11, null);
+        gd.addNumericField("Tiles_Y (piecewise rigid):", tilesY, 0, 11, null);
+        gd.addNumericField("Tile_Overlap (pixels):", tileOverlap, 0, 11, null);
+        gd.addNumericField("Temporal_Bin_Size (frames):", binSize, 0, 11, null);
         gd.addCheckbox("Log_Transformation_Coefficients", false);
+        gd.addCheckbox("Save_Binary_Log", false);
         if (!stackVirtual)
             gd.addCheckbox("Output_to_a_New_Stack", false);
+        else
+            gd.addChoice("Virtual_Stack_Output:", outputNames, outputNames[virtualOutput]);
+        gd.addCheckbox("Fixed_Template (slice-parallel)", false);
+        gd.addCheckbox("Refine_Binned_Frames", false);
+        gd.addCheckbox("Record_Telemetry", false);
+        gd.addNumericField("Template_First_Slice:", templateFirst, 0, 11, null);
+        gd.addNumericField("Template_Last_Slice:", templateLast, 0, 11, null);
 
         gd.showDialog();
 
         if (gd.wasCanceled())
             return false;
         transform = getTransform(gd.getNextChoice());
+        estimator = getEstimator(gd.getNextChoice());
         pyramidLevel = Integer.parseInt(gd.getNextChoice());
+        if (nChannels > 1)
+            refChannel = (gd.getNextChoiceIndex() + 1) % (nChannels + 1);
         alpha = gd.getNextNumber();
         maxIter = (int)gd.getNextNumber();
         tol = gd.getNextNumber();
+        tilesX = (int)gd.getNextNumber();
+        tilesY = (int)gd.getNextNumber();
+        tileOverlap = (int)gd.getNextNumber();
+        binSize = Math.max(1, (int)gd.getNextNumber());
+        templateFirst = (int)gd.getNextNumber();
+        templateLast = (int)gd.getNextNumber();
+
+        if (transform == PIECEWISE_RIGID && (tilesX < 1 || tilesY < 1
+                || tilesX > ip.getWidth() / 8 || tilesY > ip.getHeight() / 8 || tileOverlap < 0)) {
+            IJ.error("Tiles must be at least 8 pixels wide and high, the overlap at least 0.");
+            return false;
+        }
 
-        if (logEnabled = gd.getNextBoolean()){
+        logEnabled = gd.getNextBoolean();
+        boolean saveLog = gd.getNextBoolean();
+        if (!stackVirtual)
+            outputNewStack = gd.getNextBoolean();
+        else
+            virtualOutput = gd.getNextChoiceIndex();
+
+        // A template that is never updated (alpha = 1) makes every slice
+        //   independent, so it can use the slice-parallel path as well.
+        fixedTemplate = gd.getNextBoolean() || alpha >= 1.0;
+        refineFrames = gd.getNextBoolean();
+        boolean collectTelemetry = gd.getNextBoolean();
+
+        int nFrames = stack.getSize() / nChannels;
+        if (fixedTemplate && (templateFirst < 1 || templateLast > nFrames
+                || templateFirst > templateLast)) {
+            IJ.error("Template slices must satisfy 1 <= first <= last <= " + nFrames + ".");
+            return false;
+        }
+
+        if (logEnabled){
+            // With several channels the records are frames, whose number of
+            //   slices follows the transformation.
             logEditor = new Editor();
             logEditor.display(
                 imp.getShortTitle() + ".log",
                 "Image Stabilizer Log File for " 
                     + "\"" + imp.getShortTitle() + "\"\n"
-                    + transform + "\n"
+                    + transform + (nChannels > 1 ? "," + nChannels : "") + "\n"
             );
         }
 
-        if (!stackVirtual)
-            outputNewStack = gd.getNextBoolean();
+        if (saveLog) {
+            if (stackVirtual)
+                binaryLogFile = new File(outputDir, getBaseName(imp.getTitle()) + ".istl");
+            else {
+                SaveDialog sd = new SaveDialog("Save Transformation Log",
+                                               imp.getShortTitle(), ".istl");
+                if (sd.getFileName() == null)
+                    return false;
+                binaryLogFile = new File(sd.getDirectory(), sd.getFileName());
+            }
+        }
+
+        if (collectTelemetry)
+            telemetry = new StabilizerTelemetry(nFrames);
         return true;
     }
 
@@ -230,6 +460,13 @@ public class Image_Stabilizer implements PlugInFilter {
     }
 
 
+    /**
+        Stabilizes the frames firstSlice..lastSlice in steps of interval
+          against a template that follows the stabilized frames. A frame is
+          a slice, or in multi-channel mode the nChannels slices of one
+          time point; all of its channels get the transformation estimated
+          on the reference.
+    */
     void process(ImageProcessor ipRef,
                  int            firstSlice,
                  int            lastSlice,
@@ -238,7 +475,7 @@ public class Image_Stabilizer implements PlugInFilter {
     {
         int width = ipRef.getWidth();
         int height = ipRef.getHeight();
-        int stackSize = stack.getSize();
+        int nFrames = stack.getSize() / nChannels;
 
         ImageProcessor ipFloatRef = null;
 
@@ -248,46 +485,26 @@ public class Image_Stabilizer implements PlugInFilter {
             ipFloatRef = ipRef.convertToFloat();
 
         // workspaces
-        ImageProcessor[] ipPyramid = { null, null, null, null, null };
-        ImageProcessor[] ipRefPyramid = { null, null, null, null, null };
-
-        ipPyramid[0] = new FloatProcessor(width, height);
-        ipRefPyramid[0] = new FloatProcessor(width, height);
-
-        if (pyramidLevel >= 1 && width >= 100 && height >= 100) {
-            int width2 = width / 2;
-            int height2 = height / 2;
-            ipPyramid[1] = new FloatProcessor(width2, height2);
-            ipRefPyramid[1] = new FloatProcessor(width2, height2);
-            if (pyramidLevel >= 2 && width >= 200 && height >= 200) {
-                int width4 = width / 4;
-                int height4 = height / 4;
-                ipPyramid[2] = new FloatProcessor(width4, height4);
-                ipRefPyramid[2] = new FloatProcessor(width4, height4);
-                if (pyramidLevel >= 3 && width >= 400 && height >= 400) {
-                    int width8 = width / 8;
-                    int height8 = height / 8;
-                    ipPyramid[3] = new FloatProcessor(width8, height8);
-                    ipRefPyramid[3] = new FloatProcessor(width8, height8);
-                    if (pyramidLevel >= 4 && width >= 800 && height >= 800) {
-                        int width16 = width / 16;
-                        int height16 = height / 16;
-                        ipPyramid[4] = new FloatProcessor(width16, height16);
-                        ipRefPyramid[4] = new FloatProcessor(width16, height16);
-                    }
-                }
-            }
-        }
+        ImagePyramid pyramid = createPyramid(width, height);
+        ImagePyramid refPyramid = createPyramid(width, height);
 
         for (int slice = firstSlice; interval * slice <= interval * lastSlice; slice += interval) {
-            if (IJ.escapePressed() || imp.getWindow().isClosed())
+            if (isCancelled())
                 break;
 
-            String label = stack.getSliceLabel(slice);
             if (slice == firstSlice && interval > 0) {
-                IJ.showStatus("Skipping " + slice + "/" + stackSize + " ...");
+                IJ.showStatus("Skipping " + slice + "/" + nFrames + " ...");
                 
-                if (transform == TRANSLATION){
+                logTransform(slice, interval, identityTransform());
+
+                if (transform == PIECEWISE_RIGID) {
+                    if (logEditor != null) {
+                        StringBuilder sb = new StringBuilder();
+                        appendLogLine(sb, slice, interval, identityTransform());
+                        logEditor.append(sb.toString());
+                    }
+                }
+                else if (transform == TRANSLATION){
                    if (logEditor != null) {
                        logEditor.append(
                            Integer.toString(slice) + "," + 
@@ -306,29 +523,31 @@ public class Image_Stabilizer implements PlugInFilter {
                    }
                 }
                 
-                if (stackOut != null)
-                    stackOut.addSlice(label, ipRef);
+                if (nChannels == 1)
+                    outputSlice(ipRef, slice, 1, interval);
                 else {
-                    if (!stackVirtual)
-                        stack.setPixels(ipRef.getPixels(), slice);
-                    else
-                        saveImage(ipRef, slice);
+                    ImageProcessor[] ips = readFrame(slice);
+                    for (int c = 0; c < nChannels; ++c)
+                        outputSlice(ips[c], slice, c + 1, interval);
                 }
-                showProgress(tick / (double)stackSize);
+                recordFrame(slice);
+                showProgress(tick / (double)nFrames);
                 ++tick;
             }
             else {
-                IJ.showStatus("Stabilizing " + slice + "/" + stackSize + 
+                IJ.showStatus("Stabilizing " + slice + "/" + nFrames + 
                     " ... (Press 'ESC' to Cancel)");
 
-                ImageProcessor ip = stack.getProcessor(slice);
-                ImageProcessor ipFloat = ip.convertToFloat();
+                long start = phaseStart();
+                ImageProcessor[] ips = readFrame(slice);
+                ImageProcessor ipFloat = referenceOf(ips);
+                phaseEnd(StabilizerTelemetry.READ, start);
 
                 double[][] wp = null;
 
                 if (transform == TRANSLATION){
                     wp = estimateTranslation(
-                        ipFloat, ipFloatRef, ipPyramid, ipRefPyramid, maxIter, tol);
+                        ipFloat, ipFloatRef, pyramid, refPyramid, maxIter, tol);
                     
                     if (logEnabled) {
                         logEditor.append(
@@ -338,9 +557,19 @@ public class Image_Stabilizer implements PlugInFilter {
                             "\n");
                     }
                 }
+                else if (transform == PIECEWISE_RIGID) {
+                    wp = estimatePiecewise(
+                        ipFloat, ipFloatRef, pyramid, refPyramid, maxIter, tol);
+
+                    if (logEnabled) {
+                        StringBuilder sb = new StringBuilder();
+                        appendLogLine(sb, slice, interval, wp);
+                        logEditor.append(sb.toString());
+                    }
+                }
                 else {
                     wp = estimateAffine(
-                        ipFloat, ipFloatRef, ipPyramid, ipRefPyramid, maxIter, tol);
+                        ipFloat, ipFloatRef, pyramid, refPyramid, maxIter, tol);
                     
                     if (logEnabled) {
                         logEditor.append(
@@ -355,83 +584,861 @@ public class Image_Stabilizer implements PlugInFilter {
                     }
                 }
                 
+                logTransform(slice, interval, wp);
+
+                start = phaseStart();
                 FloatProcessor ipFloatOut = new FloatProcessor(width, height);
                 
                 if (transform == TRANSLATION)
                     warpTranslation(ipFloatOut, ipFloat, wp);
-                else
+                else if (transform == AFFINE)
                     warpAffine(ipFloatOut, ipFloat, wp);
+                else
+                    BilinearWarp.warp(ipFloatOut, ipFloat, wp, border);
+
+                // The warped reference is the output of a single channel
+                //   and of the reference channel.
+                for (int c = 0; c < nChannels; ++c) {
+                    boolean isReference = nChannels == 1 || c + 1 == refChannel;
+                    outputSlice(warpOutput(ips[c], isReference ? ipFloatOut : null, wp),
+                                slice, c + 1, interval);
+                }
+                phaseEnd(StabilizerTelemetry.WARP, start);
 
-                if (ip instanceof ColorProcessor) {
-                    ColorProcessor ipColorOut = new ColorProcessor(width, height);
+                start = phaseStart();
+                combine(ipFloatRef, ipFloatOut);
+                phaseEnd(StabilizerTelemetry.TEMPLATE, start);
+                recordFrame(slice);
 
-                    if (transform == TRANSLATION)
-                        warpColorTranslation(ipColorOut, (ColorProcessor)ip, wp);
-                    else
-                        warpColorAffine(ipColorOut, (ColorProcessor)ip, wp);
+                showProgress(tick / (double)nFrames);
+                ++tick;
+            }
+        }
+    }
 
-                    if (stackOut == null) {
-                        if (!stackVirtual)
-                            stack.setPixels(ipColorOut.getPixels(), slice);
-                        else
-                            saveImage(ipColorOut, slice);
-                    }
-                    else if (interval < 0)
-                        stackOut.addSlice(label, ipColorOut, 0);
-                    else
-                        stackOut.addSlice(label, ipColorOut);
+
+    /**
+        Warps one channel for the output of process(). Gray images are
+          warped in float and converted back to their type; ipFloatOut is
+          the float warp of ip if it is already known, or null.
+    */
+    ImageProcessor warpOutput(ImageProcessor ip, ImageProcessor ipFloatOut, double[][] wp) {
+        int width = ip.getWidth();
+        int height = ip.getHeight();
+        if (ip instanceof ColorProcessor) {
+            ColorProcessor ipColorOut = new ColorProcessor(width, height);
+            if (transform == TRANSLATION)
+                warpColorTranslation(ipColorOut, (ColorProcessor)ip, wp);
+            else if (transform == AFFINE)
+                warpColorAffine(ipColorOut, (ColorProcessor)ip, wp);
+            else
+                BilinearWarp.warp(ipColorOut, ip, wp, border);
+            return ipColorOut;
+        }
+        if (ipFloatOut == null) {
+            ipFloatOut = new FloatProcessor(width, height);
+            if (transform == TRANSLATION)
+                warpTranslation(ipFloatOut, ip.convertToFloat(), wp);
+            else if (transform == AFFINE)
+                warpAffine(ipFloatOut, ip.convertToFloat(), wp);
+            else
+                BilinearWarp.warp(ipFloatOut, ip.convertToFloat(), wp, border);
+        }
+        if (ip instanceof ByteProcessor)
+            return ipFloatOut.convertToByte(false);
+        if (ip instanceof ShortProcessor)
+            return ipFloatOut.convertToShort(false);
+        return ipFloatOut;
+    }
+
+
+    /**
+        Stores a processed channel of a frame in place or in stackOut, or
+          saves it. With a negative interval the frames are prepended to
+          stackOut, each with its channels in order.
+    */
+    void outputSlice(ImageProcessor ipOut, int frame, int channel, int interval) {
+        int slice = stackIndex(frame, channel);
+        String label = stack.getSliceLabel(slice);
+        if (stackOut == null) {
+            if (!stackVirtual)
+                stack.setPixels(ipOut.getPixels(), slice);
+            else
+                saveImage(ipOut, slice);
+        }
+        else if (interval < 0)
+            stackOut.addSlice(label, ipOut, channel - 1);
+        else
+            stackOut.addSlice(label, ipOut);
+    }
+
+
+    /**
+        Stabilizes all slices against a fixed template.
+
+        The template ipFloatRef is that of createTemplate(), the mean of
+          the slices templateFirst..templateLast, and is never updated, so
+          its pyramid is built only once and the slices are processed in
+          parallel. The log and the output stack are identical in format
+          and order to those written by the serial process(). In
+          multi-channel mode the slices are frames, as in process().
+    */
+    void processFixedTemplate(ImageProcessor ipRef, ImageProcessor ipFloatRef, int current) {
+        final int width = ipRef.getWidth();
+        final int height = ipRef.getHeight();
+        final int stackSize = stack.getSize() / nChannels;
+
+        // When the template is the current slice alone, that slice is
+        //   passed through unchanged just like in the serial mode.
+        final int skipSlice =
+            (templateFirst == current && templateLast == current) ? current : 0;
+
+        final ImagePyramid refPyramid = createPyramid(width, height);
+        prepareReference(ipFloatRef, refPyramid);
+
+        final double[][][] wps = new double[stackSize + 1][][];
+        final AtomicInteger done = new AtomicInteger(0);
+        final ThreadLocal<ImagePyramid> pyramids = new ThreadLocal<ImagePyramid>() {
+            @Override
+            protected ImagePyramid initialValue() {
+                return createPyramid(width, height);
+            }
+        };
+
+        IJ.showStatus("Stabilizing " + stackSize + " slices against a fixed template"
+            + " ... (Press 'ESC' to Cancel)");
+
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new ParallelRange.Each(1, stackSize + 1) {
+                @Override
+                boolean stopped() {
+                    return Image_Stabilizer.this.isCancelled();
                 }
-                else {
-                    if (ip instanceof ByteProcessor) {
-                        ImageProcessor ipByteOut = ipFloatOut.convertToByte(false);
-                        if (stackOut == null) {
-                            if (!stackVirtual)
-                                stack.setPixels(ipByteOut.getPixels(), slice);
-                            else
-                                saveImage(ipByteOut, slice);
-                        }
-                        else if (interval < 0)
-                            stackOut.addSlice(label, ipByteOut, 0);
-                        else
-                            stackOut.addSlice(label, ipByteOut);
-                    }
-                    else if (ip instanceof ShortProcessor) {
-                        ImageProcessor ipShortOut = ipFloatOut.convertToShort(false);
-                        if (stackOut == null) {
-                            if (!stackVirtual)
-                                stack.setPixels(ipShortOut.getPixels(), slice);
-                            else
-                                saveImage(ipShortOut, slice);
-                        }
-                        else if (interval < 0)
-                            stackOut.addSlice(label, ipShortOut, 0);
-                        else
-                            stackOut.addSlice(label, ipShortOut);
+
+                @Override
+                void process(int slice) {
+                    long start = phaseStart();
+                    ImageProcessor[] ips = readFrame(slice);
+                    if (slice == skipSlice) {
+                        wps[slice] = identityTransform();
+                        for (int c = 0; c < nChannels; ++c)
+                            storeSlice(ips[c].duplicate(), stackIndex(slice, c + 1));
                     }
                     else {
-                        if (stackOut == null) {
-                            if (!stackVirtual)
-                                stack.setPixels(ipFloatOut.getPixels(), slice);
-                            else
-                                saveImage(ipFloatOut, slice);
-                        }
-                        else if (interval < 0)
-                            stackOut.addSlice(label, ipFloatOut, 0);
+                        ImageProcessor ipFloat = referenceOf(ips);
+                        phaseEnd(StabilizerTelemetry.READ, start);
+                        ImagePyramid pyramid = pyramids.get();
+                        if (transform == TRANSLATION)
+                            wps[slice] = estimateTranslation(
+                                ipFloat, pyramid, refPyramid, maxIter, tol);
+                        else if (transform == AFFINE)
+                            wps[slice] = estimateAffine(
+                                ipFloat, pyramid, refPyramid, maxIter, tol);
                         else
-                            stackOut.addSlice(label, ipFloatOut);
+                            wps[slice] = estimatePiecewise(
+                                ipFloat, pyramid, refPyramid, maxIter, tol);
+                        start = phaseStart();
+                        for (int c = 0; c < nChannels; ++c)
+                            storeSlice(warpSlice(ips[c], wps[slice]), stackIndex(slice, c + 1));
+                        phaseEnd(StabilizerTelemetry.WARP, start);
                     }
+                    recordFrame(slice);
+                    showProgress(done.incrementAndGet() / (double)stackSize);
+                }
+            });
+        }
+        finally {
+            pool.shutdown();
+        }
+
+        // Reproduce the order of the serial mode: backward from the
+        //   slice before the current one, then forward from the current.
+        StringBuilder sb = new StringBuilder();
+        for (int slice = current - 1; slice >= 1; --slice) {
+            appendLogLine(sb, slice, -1, wps[slice]);
+            logTransform(slice, -1, wps[slice]);
+        }
+        for (int slice = current; slice <= stackSize; ++slice) {
+            appendLogLine(sb, slice, 1, wps[slice]);
+            logTransform(slice, 1, wps[slice]);
+        }
+        if (logEnabled)
+            logEditor.append(sb.toString());
+    }
+
+
+    /**
+        Stabilizes the frames in temporal bins of binSize frames. The motion
+          is estimated on the average of every bin against the template,
+          and the transformation of a frame is interpolated linearly
+          between the centres of the neighbouring bins, which takes about
+          1/binSize of the estimation time of process(). With refineFrames
+          every frame is aligned once more at full resolution, starting
+          from its interpolated transformation. With a fixed template the
+          template is ipFixedRef from createTemplate(), otherwise it follows
+          the stabilized bins. As in process(), the frames are logged
+          backward from the current bin and then forward, and the output
+          is in frame order.
+    */
+    void processBinned(ImageProcessor ipRef, ImageProcessor ipFixedRef, int current) {
+        int currentBin = (current - 1) / binSize;
+        int[] tick = { 1 };
+        processBins(ipRef, ipFixedRef, currentBin, -1, tick);
+        if (!isCancelled())
+            processBins(ipRef, ipFixedRef, currentBin, 1, tick);
+    }
+
+
+    /**
+        One pass of processBinned(), from the bin of the current frame
+          towards the first (interval -1) or the last bin (interval 1).
+          The forward pass outputs the frames from the first of the current
+          bin on, the backward pass those before it; both start from the
+          transformation of the current bin.
+    */
+    void processBins(ImageProcessor ipRef,
+                     ImageProcessor ipFixedRef,
+                     int            currentBin,
+                     int            interval,
+                     int[]          tick)
+    {
+        int width = ipRef.getWidth();
+        int height = ipRef.getHeight();
+        int nFrames = stack.getSize() / nChannels;
+        int nBins = (nFrames + binSize - 1) / binSize;
+        int firstOwned = currentBin * binSize + 1;
+
+        ImageProcessor ipFloatRef = ipFixedRef;
+        if (ipFloatRef == null)
+            ipFloatRef = (ipRef instanceof FloatProcessor) ? ipRef.duplicate() : ipRef.convertToFloat();
+
+        // workspaces
+        ImagePyramid pyramid = createPyramid(width, height);
+        ImagePyramid refPyramid = createPyramid(width, height);
+        // A fixed template is prepared only once, an updated one after combine().
+        prepareReference(ipFloatRef, refPyramid);
+
+        ImageProcessor[][] prevFrames = null;
+        double[][] prevWp = null;
+        int prevFirst = 0;
+        double prevCentre = 0.0;
+
+        int lastBin = interval > 0 ? nBins - 1 : 0;
+        for (int bin = currentBin; interval * bin <= interval * lastBin; bin += interval) {
+            if (isCancelled())
+                return;
+
+            int first = bin * binSize + 1;
+            int last = Math.min(first + binSize - 1, nFrames);
+            double centre = 0.5 * (first + last);
+            IJ.showStatus("Stabilizing " + first + "-" + last + "/" + nFrames
+                + " ... (Press 'ESC' to Cancel)");
+
+            long start = phaseStart();
+            ImageProcessor[][] frames = new ImageProcessor[last - first + 1][];
+            float[] average = new float[width * height];
+            for (int i = 0; i < frames.length; ++i) {
+                frames[i] = readFrame(first + i);
+                float[] pixels = (float[])referenceOf(frames[i]).getPixels();
+                for (int p = 0; p < average.length; ++p)
+                    average[p] += pixels[p];
+            }
+            float count = frames.length;
+            for (int p = 0; p < average.length; ++p)
+                average[p] /= count;
+            FloatProcessor ipAverage = new FloatProcessor(width, height, average, null);
+            phaseEnd(StabilizerTelemetry.READ, start);
+
+            double[][] wp = estimate(ipAverage, pyramid, refPyramid);
+
+            // Frames between the centre of the previous bin and this one.
+            if (prevFrames != null) {
+                for (int i = 0; i < prevFrames.length; ++i) {
+                    int frame = prevFirst + (interval > 0 ? i : prevFrames.length - 1 - i);
+                    if (interval * (frame - prevCentre) > 0 && owns(frame, firstOwned, interval))
+                        outputBinnedFrame(prevFrames[frame - prevFirst], frame, interval,
+                            interpolate(prevWp, wp, (frame - prevCentre) / (centre - prevCentre)),
+                            pyramid, refPyramid, tick);
                 }
+            }
+            for (int i = 0; i < frames.length; ++i) {
+                int frame = first + (interval > 0 ? i : frames.length - 1 - i);
+                if (interval * (frame - centre) <= 0 && owns(frame, firstOwned, interval))
+                    outputBinnedFrame(frames[frame - first], frame, interval,
+                        prevFrames == null ? interpolate(wp, wp, 0.0)
+                            : interpolate(prevWp, wp, (frame - prevCentre) / (centre - prevCentre)),
+                        pyramid, refPyramid, tick);
+            }
 
+            if (ipFixedRef == null) {
+                start = phaseStart();
+                FloatProcessor ipFloatOut = new FloatProcessor(width, height);
+                BilinearWarp.warp(ipFloatOut, ipAverage, wp, border);
                 combine(ipFloatRef, ipFloatOut);
+                phaseEnd(StabilizerTelemetry.TEMPLATE, start);
+                // The frames after the centre of the last bin are refined
+                //   against the template of that bin.
+                if (bin != lastBin)
+                    prepareReference(ipFloatRef, refPyramid);
+            }
 
-                showProgress(tick / (double)stackSize);
-                ++tick;
+            prevFrames = frames;
+            prevWp = wp;
+            prevFirst = first;
+            prevCentre = centre;
+        }
+
+        // The frames beyond the centre of the last bin keep its transformation.
+        if (prevFrames != null && !isCancelled()) {
+            for (int i = 0; i < prevFrames.length; ++i) {
+                int frame = prevFirst + (interval > 0 ? i : prevFrames.length - 1 - i);
+                if (interval * (frame - prevCentre) > 0 && owns(frame, firstOwned, interval))
+                    outputBinnedFrame(prevFrames[frame - prevFirst], frame, interval,
+                        interpolate(prevWp, prevWp, 0.0), pyramid, refPyramid, tick);
+            }
+        }
+    }
+
+
+    static boolean owns(int frame, int firstOwned, int interval) {
+        return interval > 0 ? frame >= firstOwned : frame < firstOwned;
+    }
+
+
+    /** Refines, logs, warps and outputs a frame of processBins(). */
+    void outputBinnedFrame(ImageProcessor[] ips,
+                           int              frame,
+                           int              interval,
+                           double[][]       wp,
+                           ImagePyramid     pyramid,
+                           ImagePyramid     refPyramid,
+                           int[]            tick)
+    {
+        long start = phaseStart();
+        ImageProcessor ipFloat = referenceOf(ips);
+        phaseEnd(StabilizerTelemetry.READ, start);
+        if (refineFrames)
+            wp = refine(ipFloat, wp, pyramid, refPyramid);
+
+        if (logEnabled) {
+            StringBuilder sb = new StringBuilder();
+            appendLogLine(sb, frame, interval, wp);
+            logEditor.append(sb.toString());
+        }
+        logTransform(frame, interval, wp);
+
+        start = phaseStart();
+        FloatProcessor ipFloatOut = new FloatProcessor(ipFloat.getWidth(), ipFloat.getHeight());
+        BilinearWarp.warp(ipFloatOut, ipFloat, wp, border);
+        for (int c = 0; c < nChannels; ++c) {
+            boolean isReference = nChannels == 1 || c + 1 == refChannel;
+            outputSlice(warpOutput(ips[c], isReference ? ipFloatOut : null, wp),
+                        frame, c + 1, interval);
+        }
+        phaseEnd(StabilizerTelemetry.WARP, start);
+        recordFrame(frame);
+
+        showProgress(tick[0] / (double)(stack.getSize() / nChannels));
+        ++tick[0];
+    }
+
+
+    /**
+        Linear interpolation between two transformations of the same
+          model, coefficient by coefficient; t = 0 gives a copy of wp0.
+    */
+    static double[][] interpolate(double[][] wp0, double[][] wp1, double t) {
+        double[][] wp = new double[wp0.length][];
+        for (int r = 0; r < wp0.length; ++r) {
+            wp[r] = new double[wp0[r].length];
+            for (int c = 0; c < wp0[r].length; ++c)
+                wp[r][c] = wp0[r][c] + t * (wp1[r][c] - wp0[r][c]);
+        }
+        return wp;
+    }
+
+
+    /**
+        Estimates the transformation of ip with the selected model against
+          a reference pyramid that was already built by prepareReference().
+    */
+    double[][] estimate(ImageProcessor ip, ImagePyramid pyramid, ImagePyramid refPyramid) {
+        if (transform == TRANSLATION)
+            return estimateTranslation(ip, pyramid, refPyramid, maxIter, tol);
+        if (transform == AFFINE)
+            return estimateAffine(ip, pyramid, refPyramid, maxIter, tol);
+        return estimatePiecewise(ip, pyramid, refPyramid, maxIter, tol);
+    }
+
+
+    /**
+        Aligns ip at full resolution only, starting from wp, which is
+          overwritten. The reference pyramid must have been prepared.
+    */
+    double[][] refine(ImageProcessor ip, double[][] wp, ImagePyramid pyramid, ImagePyramid refPyramid) {
+        buildPyramid(pyramid, ip, 1);
+        if (transform == TRANSLATION)
+            return estimateTranslation(wp, pyramid, refPyramid, 0, maxIter, tol);
+        if (transform == AFFINE)
+            return estimateAffine(wp, pyramid, refPyramid, 0, maxIter, tol);
+        return refineTiles(wp, pyramid, refPyramid, maxIter, tol);
+    }
+
+
+    long phaseStart() {
+        return telemetry != null ? System.nanoTime() : 0L;
+    }
+
+
+    void phaseEnd(int phase, long start) {
+        if (telemetry != null)
+            telemetry.add(phase, System.nanoTime() - start);
+    }
+
+
+    void recordFrame(int frame) {
+        if (telemetry != null)
+            telemetry.record(frame);
+    }
+
+
+    /** Builds depth levels of a pyramid, timing the gradient and the levels apart. */
+    void buildPyramid(ImagePyramid pyramid, ImageProcessor ip, int depth) {
+        if (telemetry == null) {
+            pyramid.build(ip, depth);
+            return;
+        }
+        long start = System.nanoTime();
+        ImagePyramid.gradient(pyramid.getPixels(0), (float[])ip.getPixels(), ip.getWidth(), ip.getHeight());
+        long gradientEnd = System.nanoTime();
+        pyramid.downsample(depth);
+        telemetry.add(StabilizerTelemetry.GRADIENT, gradientEnd - start);
+        telemetry.add(StabilizerTelemetry.PYRAMID, System.nanoTime() - gradientEnd);
+    }
+
+
+    boolean isImageClosed() {
+        ImageWindow win = imp.getWindow();
+        return null != win && win.isClosed();
+    }
+
+
+    boolean isCancelled() {
+        return IJ.escapePressed() || isImageClosed()
+            || (writeQueue != null && writeQueue.failed());
+    }
+
+
+    ImageProcessor createTemplate(ImageProcessor ipRef) {
+        if (templateFirst == templateLast) {
+            ImageProcessor ip = nChannels == 1 ? stack.getProcessor(templateFirst)
+                                               : referenceOf(readFrame(templateFirst));
+            if (ip instanceof FloatProcessor)
+                return ip.duplicate();
+            return ip.convertToFloat();
+        }
+        int n = templateLast - templateFirst + 1;
+        float[] sum = new float[ipRef.getWidth() * ipRef.getHeight()];
+        for (int slice = templateFirst; slice <= templateLast; ++slice) {
+            float[] pixels = (float[])referenceOf(readFrame(slice)).getPixels();
+            for (int i = 0; i < sum.length; ++i)
+                sum[i] += pixels[i];
+        }
+        for (int i = 0; i < sum.length; ++i)
+            sum[i] /= n;
+        return new FloatProcessor(ipRef.getWidth(), ipRef.getHeight(), sum, null);
+    }
+
+
+    ImageProcessor readSlice(int slice) {
+        if (prefetcher != null)
+            return prefetcher.next(slice);
+        if (!stackVirtual)
+            return stack.getProcessor(slice);
+        // Virtual stacks share a single file opener.
+        synchronized (stack) {
+            return stack.getProcessor(slice);
+        }
+    }
+
+
+    /**
+        Stabilizes channels held in separate images of equal size in one
+          pass and in place: the motion is estimated on channel refChannel
+          (1-based, 0 for the sum of all channels) against a running
+          template that starts at the first slice, and every channel gets
+          the same transformation. Returns false if the images cannot be
+          processed together.
+    */
+    static boolean stabilizeChannels(ImagePlus[] channels,
+                                     int          refChannel,
+                                     int          transform,
+                                     int          pyramidLevel,
+                                     double       alpha,
+                                     int          maxIter,
+                                     double       tol)
+    {
+        return stabilizeChannels(channels, refChannel, transform, pyramidLevel,
+                                 alpha, maxIter, tol, null);
+    }
+
+
+    /** As above, recording into telemetry unless it is null. */
+    static boolean stabilizeChannels(ImagePlus[]         channels,
+                                     int                 refChannel,
+                                     int                 transform,
+                                     int                 pyramidLevel,
+                                     double              alpha,
+                                     int                 maxIter,
+                                     double              tol,
+                                     StabilizerTelemetry telemetry)
+    {
+        ImageStack first = channels[0].getStack();
+        int nFrames = first.getSize();
+        // The interleaved stack shares the pixel arrays of the channels.
+        ImageStack stack = new ImageStack(first.getWidth(), first.getHeight());
+        for (int c = 0; c < channels.length; ++c) {
+            ImageStack cs = channels[c].getStack();
+            if (cs.isVirtual() || cs.getSize() != nFrames
+                    || cs.getWidth() != first.getWidth() || cs.getHeight() != first.getHeight()) {
+                IJ.error("Image Stabilizer", "The channels must be stacks of equal size in memory.");
+                return false;
+            }
+        }
+        for (int frame = 1; frame <= nFrames; ++frame)
+            for (int c = 0; c < channels.length; ++c) {
+                ImageStack cs = channels[c].getStack();
+                stack.addSlice(cs.getSliceLabel(frame), cs.getPixels(frame));
+            }
+
+        Image_Stabilizer s = new Image_Stabilizer();
+        s.imp = new ImagePlus(channels[0].getTitle(), stack);
+        s.stack = stack;
+        s.nChannels = channels.length;
+        s.refChannel = refChannel;
+        s.transform = transform;
+        s.pyramidLevel = pyramidLevel;
+        s.alpha = alpha;
+        s.maxIter = maxIter;
+        s.tol = tol;
+        s.telemetry = telemetry;
+        try {
+            s.process(s.referenceOf(s.readFrame(1)), 1, nFrames, 1, 1);
+        }
+        finally {
+            if (s.tilePool != null)
+                s.tilePool.shutdown();
+        }
+
+        for (int frame = 1; frame <= nFrames; ++frame)
+            for (int c = 0; c < channels.length; ++c)
+                channels[c].getStack().setPixels(
+                    stack.getPixels(s.stackIndex(frame, c + 1)), frame);
+        for (int c = 0; c < channels.length; ++c)
+            channels[c].updateAndDraw();
+        return true;
+    }
+
+
+    /** Stack index of a channel (1-based) of a frame. */
+    int stackIndex(int frame, int channel) {
+        return (frame - 1) * nChannels + channel;
+    }
+
+
+    /** Reads all channels of a frame. */
+    ImageProcessor[] readFrame(int frame) {
+        ImageProcessor[] ips = new ImageProcessor[nChannels];
+        for (int c = 0; c < nChannels; ++c)
+            ips[c] = readSlice(stackIndex(frame, c + 1));
+        return ips;
+    }
+
+
+    /**
+        The image the motion of a frame is estimated on, as float: the
+          slice itself, the reference channel or the sum of all channels.
+    */
+    ImageProcessor referenceOf(ImageProcessor[] ips) {
+        if (ips.length == 1)
+            return ips[0].convertToFloat();
+        if (refChannel > 0)
+            return ips[refChannel - 1].convertToFloat();
+        int width = ips[0].getWidth();
+        int height = ips[0].getHeight();
+        float[] sum = new float[width * height];
+        for (int c = 0; c < ips.length; ++c) {
+            float[] pixels = (float[])ips[c].convertToFloat().getPixels();
+            for (int i = 0; i < sum.length; ++i)
+                sum[i] += pixels[i];
+        }
+        return new FloatProcessor(width, height, sum, null);
+    }
+
+
+    /** Gives an output image the hyperstack layout of the input. */
+    void setDimensions(ImagePlus impOut) {
+        if (!imp.isHyperStack() || impOut.getStackSize() != imp.getStackSize())
+            return;
+        impOut.setDimensions(imp.getNChannels(), imp.getNSlices(), imp.getNFrames());
+        impOut.setOpenAsHyperStack(true);
+    }
+
+
+    void storeSlice(ImageProcessor ipOut, int slice) {
+        if (stackOut != null) {
+            stackOut.setPixels(ipOut.getPixels(), slice);
+            stackOut.setSliceLabel(stack.getSliceLabel(slice), slice);
+        }
+        else if (!stackVirtual)
+            stack.setPixels(ipOut.getPixels(), slice);
+        else
+            saveImage(ipOut, slice);
+    }
+
+
+    ImageProcessor warpSlice(ImageProcessor ip, double[][] wp) {
+        ImageProcessor ipOut = ip.createProcessor(ip.getWidth(), ip.getHeight());
+        BilinearWarp.warp(ipOut, ip, wp, border);
+        return ipOut;
+    }
+
+
+    void appendLogLine(StringBuilder sb, int slice, int interval, double[][] wp) {
+        if (wp == null)
+            return; // cancelled before this slice was processed
+        sb.append(slice).append(',').append(interval).append(',');
+        if (transform == TRANSLATION)
+            sb.append(wp[0][0]).append(',').append(wp[1][0]).append('\n');
+        else if (transform == PIECEWISE_RIGID) {
+            // tx of all tiles, ty of all tiles, then the grid size
+            for (int r = 0; r < wp.length; ++r)
+                for (int c = 0; c < wp[r].length; ++c)
+                    sb.append(wp[r][c]).append(r == 2 && c == 1 ? '\n' : ',');
+        }
+        else
+            sb.append(wp[0][0]).append(',').append(wp[0][1]).append(',')
+              .append(wp[0][2]).append(',').append(wp[1][0]).append(',')
+              .append(wp[1][1]).append(',').append(wp[1][2]).append(",\n");
+    }
+
+
+    /** The transformation of a slice that is not moved. */
+    double[][] identityTransform() {
+        if (transform == TRANSLATION)
+            return new double[2][1];
+        if (transform == AFFINE)
+            return new double[2][3];
+        return PiecewiseRigid.create(tilesX, tilesY);
+    }
+
+
+    void logTransform(int slice, int interval, double[][] wp) {
+        if (wp == null)
+            return;
+        if (transforms != null)
+            for (int c = 1; c <= nChannels; ++c)
+                transforms[stackIndex(slice, c)] = wp;
+        if (transformLog == null)
+            return;
+        try {
+            transformLog.append(slice, interval, wp);
+        }
+        catch (IOException e) {
+            IJ.error("Could not write the transformation log: " + e.getMessage());
+            closeTransformLog();
+        }
+    }
+
+
+    void closeTransformLog() {
+        if (transformLog == null)
+            return;
+        try {
+            transformLog.close();
+        }
+        catch (IOException e) {
+            IJ.error("Could not write the transformation log: " + e.getMessage());
+        }
+        transformLog = null;
+    }
+
+
+    ImagePyramid createPyramid(int width, int height) {
+        return new ImagePyramid(width, height, pyramidLevel);
+    }
+
+
+    /**
+        Builds the pyramid and the derivatives of a new template. This is
+          done once per template update and shared by all levels. For the
+          affine model the steepest descent images and the inverse of
+          their Hessian are computed here as well, so all iterations and
+          all slices aligned against the template reuse them.
+    */
+    void prepareReference(ImageProcessor ipRef, ImagePyramid refPyramid) {
+        long start = phaseStart();
+        refPyramid.build(ipRef);
+        refPyramid.buildDerivatives();
+        if (transform == AFFINE) {
+            refPyramid.buildSteepestDescent();
+            if (refPyramid.hInv == null)
+                refPyramid.hInv = new double[refPyramid.getDepth()][];
+            LucasKanadeWorkspace ws = workspace.get();
+            for (int k = 0; k < refPyramid.getDepth(); ++k) {
+                if (!ws.invert6x6(refPyramid.hessian[k]))
+                    refPyramid.hInv[k] = null; // singular, no update
+                else {
+                    if (refPyramid.hInv[k] == null)
+                        refPyramid.hInv[k] = new double[36];
+                    System.arraycopy(ws.hInv, 0, refPyramid.hInv[k], 0, 36);
+                }
+            }
+        }
+        if (transform != AFFINE && estimator != LUCAS_KANADE) {
+            int width = ipRef.getWidth();
+            int height = ipRef.getHeight();
+            if (phaseCorrelation == null || phaseCorrelation.width != width
+                    || phaseCorrelation.height != height)
+                phaseCorrelation = new PhaseCorrelation(width, height);
+            phaseCorrelation.setReference((float[])ipRef.getPixels());
+        }
+        phaseEnd(StabilizerTelemetry.TEMPLATE, start);
+    }
+
+
+    /**
+        Sets up the streaming I/O of a virtual stack: slices are read ahead
+          in processing order by a prefetch thread (serial mode only, the
+          parallel mode reads in no fixed order) and written behind by a
+          writer thread, either as an image sequence or into one
+          multi-page TIFF file in the output directory. With
+          WARP_ON_DEMAND nothing is written; the transformations are
+          collected for a StabilizedVirtualStack instead.
+    */
+    boolean openStreams(ImageProcessor ipRef, int current) {
+        int stackSize = stack.getSize();
+        if (virtualOutput == WARP_ON_DEMAND)
+            transforms = new double[stackSize + 1][][];
+        else if (virtualOutput != IMAGE_SEQUENCE) {
+            File file = new File(outputDir, getBaseName(imp.getTitle()) + ".tif");
+            try {
+                tiffWriter = new TiffStreamWriter(file, ipRef.getWidth(), ipRef.getHeight(),
+                    imp.getBitDepth(), stackSize, virtualOutput == BIG_TIFF);
+            }
+            catch (IOException e) {
+                IJ.error("Could not create " + file.getPath() + ": " + e.getMessage());
+                return false;
             }
         }
+        if (transforms == null) {
+            writeQueue = new SliceWriteQueue(ioQueueLength, new SliceWriteQueue.Sink() {
+                @Override
+                public void write(int slice, ImageProcessor ip) throws IOException {
+                    if (tiffWriter != null)
+                        tiffWriter.write(slice - 1, ip.getPixels());
+                    else
+                        writeImage(ip, slice);
+                }
+            });
+        }
+        if (binSize > 1)
+            prefetcher = new SlicePrefetcher(stack, binnedOrder(current), ioQueueLength);
+        else if (!fixedTemplate) {
+            // process() reads current-1..1, then current+1..nFrames; the
+            //   current slice itself is the template and is not read again,
+            //   but in multi-channel mode its channels are.
+            int nFrames = stackSize / nChannels;
+            int first = nChannels == 1 ? current + 1 : current;
+            int[] order = new int[(current - 1 + nFrames - first + 1) * nChannels];
+            int n = 0;
+            for (int frame = current - 1; frame >= 1; --frame)
+                for (int c = 1; c <= nChannels; ++c)
+                    order[n++] = stackIndex(frame, c);
+            for (int frame = first; frame <= nFrames; ++frame)
+                for (int c = 1; c <= nChannels; ++c)
+                    order[n++] = stackIndex(frame, c);
+            prefetcher = new SlicePrefetcher(stack, order, ioQueueLength);
+        }
+        return true;
+    }
+
+
+    /**
+        Order in which processBinned() reads the slices: the bins from the
+          current one back to the first, then from the current one to the
+          last, each bin frame by frame.
+    */
+    int[] binnedOrder(int current) {
+        int nFrames = stack.getSize() / nChannels;
+        int nBins = (nFrames + binSize - 1) / binSize;
+        int currentBin = (current - 1) / binSize;
+        int currentBinFrames = Math.min(binSize, nFrames - currentBin * binSize);
+        int[] order = new int[(nFrames + currentBinFrames) * nChannels];
+        int n = 0;
+        for (int pass = -1; pass <= 1; pass += 2) {
+            int lastBin = pass > 0 ? nBins - 1 : 0;
+            for (int bin = currentBin; pass * bin <= pass * lastBin; bin += pass) {
+                int first = bin * binSize + 1;
+                int last = Math.min(first + binSize - 1, nFrames);
+                for (int frame = first; frame <= last; ++frame)
+                    for (int c = 1; c <= nChannels; ++c)
+                        order[n++] = stackIndex(frame, c);
+            }
+        }
+        return order;
+    }
+
+
+    void closeStreams() {
+        if (prefetcher != null) {
+            prefetcher.close();
+            prefetcher = null;
+        }
+        try {
+            if (writeQueue != null)
+                writeQueue.close();
+        }
+        catch (IOException e) {
+            IJ.error("Could not write the stabilized images: " + e.getMessage());
+        }
+        finally {
+            writeQueue = null;
+            try {
+                if (tiffWriter != null)
+                    tiffWriter.close();
+            }
+            catch (IOException e) {
+                IJ.error("Could not close the output file: " + e.getMessage());
+            }
+            tiffWriter = null;
+        }
     }
 
 
     void saveImage(ImageProcessor ip, int slice) {
+        if (transforms != null)
+            return; // warped on demand
+        if (writeQueue == null) {
+            try {
+                writeImage(ip, slice);
+            }
+            catch (IOException e) {
+                IJ.error(e.getMessage());
+            }
+            return;
+        }
+        try {
+            writeQueue.put(slice, ip);
+        }
+        catch (IOException e) {
+            // reported by closeStreams(); isCancelled() stops the loops
+        }
+    }
+
+
+    void writeImage(ImageProcessor ip, int slice) throws IOException {
         VirtualStack virtualStack = (VirtualStack)stack;
         String fileName = null;
         try {
@@ -459,7 +1466,8 @@ public class Image_Stabilizer implements PlugInFilter {
             }
         }
         FileSaver fs = new FileSaver(new ImagePlus(fileName, ip));
-        fs.saveAsTiff(outputDir + File.separator + fileName);
+        if (!fs.saveAsTiff(outputDir + File.separator + fileName))
+            throw new IOException("Could not save " + fileName);
     }
 
 
@@ -472,94 +1480,83 @@ public class Image_Stabilizer implements PlugInFilter {
     }
 
 
-    double[][] estimateAffine(ImageProcessor   ip,
-                              ImageProcessor   ipRef,
-                              ImageProcessor[] ipPyramid,
-                              ImageProcessor[] ipRefPyramid,
-                              int              maxIter,
-                              double           tol)
+    double[][] estimateAffine(ImageProcessor ip,
+                              ImageProcessor ipRef,
+                              ImagePyramid   pyramid,
+                              ImagePyramid   refPyramid,
+                              int            maxIter,
+                              double         tol)
+    {
+        prepareReference(ipRef, refPyramid);
+        return estimateAffine(ip, pyramid, refPyramid, maxIter, tol);
+    }
+
+
+    /**
+        Estimates the affine transformation of ip against a reference
+          pyramid that was already built by prepareReference().
+    */
+    double[][] estimateAffine(ImageProcessor ip,
+                              ImagePyramid   pyramid,
+                              ImagePyramid   refPyramid,
+                              int            maxIter,
+                              double         tol)
     {
         double[][] wp = { {0.0, 0.0, 0.0 }, 
                           {0.0, 0.0, 0.0} };
 
         // We operate on the gradient magnitude of the image
         //   rather than on the original pixel intensity.
-        gradient(ipPyramid[0], ip);
-        gradient(ipRefPyramid[0], ipRef);
-
-        if (ipPyramid[4] != null && ipRefPyramid[4] != null) {
-            resize(ipPyramid[4], ipPyramid[0]);
-            resize(ipRefPyramid[4], ipRefPyramid[0]);
-            wp = estimateAffine(
-                wp, ipPyramid[4], ipRefPyramid[4], maxIter, tol);
-            wp[0][2] *= 16;
-            wp[1][2] *= 16;
-        }
-
-        if (ipPyramid[3] != null && ipRefPyramid[3] != null) {
-            resize(ipPyramid[3], ipPyramid[0]);
-            resize(ipRefPyramid[3], ipRefPyramid[0]);
-            wp = estimateAffine(
-                wp, ipPyramid[3], ipRefPyramid[3], maxIter, tol);
-            wp[0][2] *=  8;
-            wp[1][2] *=  8;
-        }
-
-        if (ipPyramid[2] != null && ipRefPyramid[2] != null) {
-            resize(ipPyramid[2], ipPyramid[0]);
-            resize(ipRefPyramid[2], ipRefPyramid[0]);
-            wp = estimateAffine(
-                wp, ipPyramid[2], ipRefPyramid[2], maxIter, tol);
-            wp[0][2] *=  4;
-            wp[1][2] *=  4;
-        }
-
-        if (ipPyramid[1] != null && ipRefPyramid[1] != null) {
-            resize(ipPyramid[1], ipPyramid[0]);
-            resize(ipRefPyramid[1], ipRefPyramid[0]);
-            wp = estimateAffine(
-                wp, ipPyramid[1], ipRefPyramid[1], maxIter, tol);
-            wp[0][2] *=  2;
-            wp[1][2] *=  2;
+        buildPyramid(pyramid, ip, pyramid.getDepth());
+
+        // Coarse to fine; the translation doubles from level to level.
+        for (int k = pyramid.getDepth() - 1; k >= 0; --k) {
+            wp = estimateAffine(wp, pyramid, refPyramid, k, maxIter, tol);
+            if (k > 0) {
+                wp[0][2] *= 2;
+                wp[1][2] *= 2;
+            }
         }
 
-        wp = estimateAffine(wp, ipPyramid[0], ipRefPyramid[0], maxIter, tol);
-
         return wp;
     }
 
 
-    double[][] estimateAffine(double[][]     wp,
-                              ImageProcessor ip,
-                              ImageProcessor ipRef,
-                              int            maxIter,
-                              double         tol)
+    double[][] estimateAffine(double[][]   wp,
+                              ImagePyramid pyramid,
+                              ImagePyramid refPyramid,
+                              int          level,
+                              int          maxIter,
+                              double       tol)
     {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
-
-        float[] jx = new float[width * height];
-        float[] jy = new float[width * height];
-
-        for (int y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                jx[y * width + x] = x;
-                jy[y * width + x] = y;
-            }
-        }
-
-        float[][] sd = new float[6][];
-
-        sd[4] = dx(ipRef);
-        sd[5] = dy(ipRef);
-        sd[0] = dot(sd[4], jx);
-        sd[1] = dot(sd[5], jx);
-        sd[2] = dot(sd[4], jy);
-        sd[3] = dot(sd[5], jy);
+        long start = phaseStart();
+        wp = estimateAffine(wp,
+            pyramid.getPixels(level), refPyramid.getPixels(level),
+            refPyramid.sd[level], refPyramid.hInv[level],
+            pyramid.getWidth(level), pyramid.getHeight(level), maxIter, tol);
+        if (telemetry != null)
+            telemetry.addSolve(workspace.get(), System.nanoTime() - start);
+        return wp;
+    }
 
-        ImageProcessor ipOut = ip.duplicate();
 
-        double[] dp = { 0.0, 0.0, 0.0, 0.0, 0.0, 0.0 };
+    /**
+        Inverse compositional affine iterations on one pyramid level. sd
+          holds the six steepest descent planes of the reference and hInv
+          the inverse of their Hessian, or null if it is singular; both
+          are computed by prepareReference().
+    */
+    double[][] estimateAffine(double[][] wp,
+                              float[]    pixels,
+                              float[]    refPixels,
+                              float[]    sd,
+                              double[]   hInv,
+                              int        width,
+                              int        height,
+                              int        maxIter,
+                              double     tol)
+    {
+        LucasKanadeWorkspace ws = workspace.get();
 
         double[][] bestWp = new double[2][3];
         bestWp[0][0] = wp[0][0];
@@ -569,32 +1566,20 @@ public class Image_Stabilizer implements PlugInFilter {
         bestWp[1][1] = wp[1][1];
         bestWp[1][2] = wp[1][2];
 
-        double[][] d = { {1.0, 0.0, 0.0},
-                         {0.0, 1.0, 0.0},
-                         {0.0, 0.0, 1.0} };
-        double[][] w = { {1.0, 0.0, 0.0},
-                         {0.0, 1.0, 0.0},
-                         {0.0, 0.0, 1.0} };
-
-        double[][] h = new double[6][6];
-
-        for (int y = 0; y < 6; ++y) {
-            for (int x = 0; x < 6; ++x) {
-                h[y][x] = dotSum(sd[x], sd[y]);
-            }
+        if (hInv == null) {
+            ws.setResult(0, false, Double.NaN);
+            return bestWp;
         }
-        h = invert(h);
 
         double oldRmse = Double.MAX_VALUE;
         double minRmse = Double.MAX_VALUE;
 
-        for (int iter = 0; iter < maxIter; ++iter) {
-
-            warpAffine(ipOut, ip, wp);
+        int iter = 0;
+        boolean converged = false;
+        for (; iter < maxIter; ++iter) {
 
-            subtract(ipOut, ipRef);
-
-            double rmse = rootMeanSquare(ipOut);
+            // Warp, residual, error and steepest descent update in one pass.
+            double rmse = ws.residualAffine(pixels, refPixels, sd, width, height, wp);
 
             if (iter > 0) {
                 if (rmse < minRmse) {
@@ -607,154 +1592,264 @@ public class Image_Stabilizer implements PlugInFilter {
                     minRmse      = rmse;
                 }
                 if (Math.abs((oldRmse - rmse) /
-                        (oldRmse + Double.MIN_VALUE)) < tol)
+                        (oldRmse + Double.MIN_VALUE)) < tol) {
+                    converged = true;
                     break;
+                }
             }
             oldRmse = rmse;
 
-            float[] error = (float[])ipOut.getPixels();
-
-            dp[0] = dotSum(sd[0], error);
-            dp[1] = dotSum(sd[1], error);
-            dp[2] = dotSum(sd[2], error);
-            dp[3] = dotSum(sd[3], error);
-            dp[4] = dotSum(sd[4], error);
-            dp[5] = dotSum(sd[5], error);
-
-            dp = prod(h, dp);
-
-            d[0][0] = dp[0] + 1.0;
-            d[0][1] = dp[2];
-            d[0][2] = dp[4];
-            d[1][0] = dp[1];
-            d[1][1] = dp[3] + 1.0;
-            d[1][2] = dp[5];
-            d[2][0] = 0.0;
-            d[2][1] = 0.0;
-            d[2][2] = 1.0;
-
-            w[0][0] = wp[0][0] + 1.0;
-            w[0][1] = wp[0][1];
-            w[0][2] = wp[0][2];
-            w[1][0] = wp[1][0];
-            w[1][1] = wp[1][1] + 1.0;
-            w[1][2] = wp[1][2];
-            w[2][0] = 0.0;
-            w[2][1] = 0.0;
-            w[2][2] = 1.0;
-
-            w = prod(w, invert(d));
-
-            wp[0][0] = w[0][0] - 1.0;
-            wp[0][1] = w[0][1];
-            wp[0][2] = w[0][2];
-            wp[1][0] = w[1][0];
-            wp[1][1] = w[1][1] - 1.0;
-            wp[1][2] = w[1][2];
+            ws.solve(hInv, 6);
+            ws.composeAffine(wp);
         }
 
+        ws.setResult(converged ? iter + 1 : iter, converged,
+                     minRmse < Double.MAX_VALUE ? minRmse : oldRmse);
         return bestWp;
     }
 
 
-    double[][] estimateTranslation(ImageProcessor   ip,
-                                   ImageProcessor   ipRef,
-                                   ImageProcessor[] ipPyramid,
-                                   ImageProcessor[] ipRefPyramid,
-                                   int              maxIter,
-                                   double           tol)
+    double[][] estimatePiecewise(ImageProcessor ip,
+                                 ImageProcessor ipRef,
+                                 ImagePyramid   pyramid,
+                                 ImagePyramid   refPyramid,
+                                 int            maxIter,
+                                 double         tol)
     {
-        double[][] wp = { {0.0}, {0.0} };
+        prepareReference(ipRef, refPyramid);
+        return estimatePiecewise(ip, pyramid, refPyramid, maxIter, tol);
+    }
 
-        // We operate on the gradient magnitude of the image
-        //   rather than on the original pixel intensity.
-        gradient(ipPyramid[0], ip);
-        gradient(ipRefPyramid[0], ipRef);
-        
-        if (ipPyramid[4] != null && ipRefPyramid[4] != null) {
-            resize(ipPyramid[4], ipPyramid[0]);
-            resize(ipRefPyramid[4], ipRefPyramid[0]);
-            wp = estimateTranslation(
-                wp, ipPyramid[4], ipRefPyramid[4], maxIter, tol);
-            wp[0][0] *= 16;
-            wp[1][0] *= 16;
-        }
-
-        if (ipPyramid[3] != null && ipRefPyramid[3] != null) {
-            resize(ipPyramid[3], ipPyramid[0]);
-            resize(ipRefPyramid[3], ipRefPyramid[0]);
-            wp = estimateTranslation(
-                wp, ipPyramid[3], ipRefPyramid[3], maxIter, tol);
-            wp[0][0] *=  8;
-            wp[1][0] *=  8;
-        }
-
-        if (ipPyramid[2] != null && ipRefPyramid[2] != null) {
-            resize(ipPyramid[2], ipPyramid[0]);
-            resize(ipRefPyramid[2], ipRefPyramid[0]);
-            wp = estimateTranslation(
-                wp, ipPyramid[2], ipRefPyramid[2], maxIter, tol);
-            wp[0][0] *=  4;
-            wp[1][0] *=  4;
-        }
-
-        if (ipPyramid[1] != null && ipRefPyramid[1] != null) {
-            resize(ipPyramid[1], ipPyramid[0]);
-            resize(ipRefPyramid[1], ipRefPyramid[0]);
-            wp = estimateTranslation(
-                wp, ipPyramid[1], ipRefPyramid[1], maxIter, tol);
-            wp[0][0] *=  2;
-            wp[1][0] *=  2;
-        }
-
-        wp = estimateTranslation(wp, ipPyramid[0], ipRefPyramid[0], maxIter, tol);
+
+    /**
+        Estimates the piecewise rigid transformation of ip against a
+          reference pyramid that was already built by prepareReference().
+          The translation of the whole frame is estimated first, which
+          copes with large motion through the pyramid or the phase
+          correlation. Starting from it, the translation of every tile is
+          refined by refineTiles().
+    */
+    double[][] estimatePiecewise(ImageProcessor ip,
+                                 ImagePyramid   pyramid,
+                                 ImagePyramid   refPyramid,
+                                 int            maxIter,
+                                 double         tol)
+    {
+        double[][] global = estimateTranslation(ip, pyramid, refPyramid, maxIter, tol);
+        if (estimator == PHASE_CORRELATION && phaseCorrelation != null)
+            buildPyramid(pyramid, ip, 1); // the tiles are aligned on the gradient magnitude
+        double[][] wp = PiecewiseRigid.create(tilesX, tilesY);
+        Arrays.fill(wp[0], global[0][0]);
+        Arrays.fill(wp[1], global[1][0]);
+        return refineTiles(wp, pyramid, refPyramid, maxIter, tol);
+    }
+
+
+    /**
+        Refines the translation of every tile of a piecewise rigid
+          transformation at full resolution, the tiles in parallel, on
+          level 0 of a pyramid that is already built. A tile that would
+          move by more than tileOverlap pixels from its start, or that
+          has no texture to align on, keeps its start.
+    */
+    double[][] refineTiles(final double[][]   start,
+                           final ImagePyramid pyramid,
+                           final ImagePyramid refPyramid,
+                           final int          maxIter,
+                           final double       tol)
+    {
+        final double[][] wp = PiecewiseRigid.create(tilesX, tilesY);
+        final int width = pyramid.getWidth(0);
+        final int height = pyramid.getHeight(0);
+        final int nTiles = tilesX * tilesY;
+
+        // The tiles run on other threads, so their results are collected
+        //   per tile and added to the telemetry of this thread afterwards.
+        final int[] tileIterations = telemetry != null ? new int[nTiles] : null;
+        final boolean[] tileConverged = telemetry != null ? new boolean[nTiles] : null;
+        final double[] tileRmse = telemetry != null ? new double[nTiles] : null;
+        final long[] tileNanos = telemetry != null ? new long[nTiles] : null;
+
+        ParallelRange task = new ParallelRange.Each(0, nTiles) {
+            @Override
+            void process(int tile) {
+                long begin = phaseStart();
+                int[] bounds = new int[4];
+                PiecewiseRigid.tileBounds(tile, tilesX, tilesY, width, height, tileOverlap, bounds);
+                int tileWidth = bounds[2] - bounds[0];
+                int tileHeight = bounds[3] - bounds[1];
+                float[][] buffers = tileBuffers.get();
+                if (buffers[0].length < tileWidth * tileHeight)
+                    for (int i = 0; i < buffers.length; ++i)
+                        buffers[i] = new float[tileWidth * tileHeight];
+                PiecewiseRigid.crop(buffers[0], pyramid.getPixels(0), width, bounds);
+                PiecewiseRigid.crop(buffers[1], refPyramid.getPixels(0), width, bounds);
+                PiecewiseRigid.crop(buffers[2], refPyramid.dx[0], width, bounds);
+                PiecewiseRigid.crop(buffers[3], refPyramid.dy[0], width, bounds);
+
+                // A translation is the same in tile and frame coordinates.
+                double[][] twp = { {start[0][tile]}, {start[1][tile]} };
+                twp = estimateTranslation(twp, buffers[0], buffers[1], buffers[2], buffers[3],
+                                          tileWidth, tileHeight, maxIter, tol);
+                if (telemetry != null) {
+                    LucasKanadeWorkspace ws = workspace.get();
+                    tileIterations[tile] = ws.iterations;
+                    tileConverged[tile] = ws.converged;
+                    tileRmse[tile] = ws.rmse;
+                    tileNanos[tile] = System.nanoTime() - begin;
+                }
+                if (Math.abs(twp[0][0] - start[0][tile]) > tileOverlap
+                        || Math.abs(twp[1][0] - start[1][tile]) > tileOverlap) {
+                    twp[0][0] = start[0][tile];
+                    twp[1][0] = start[1][tile];
+                }
+                wp[0][tile] = twp[0][0];
+                wp[1][tile] = twp[1][0];
+            }
+        };
+        // Slices processed in parallel estimate their tiles in the same pool.
+        if (ForkJoinTask.inForkJoinPool())
+            task.invoke();
+        else {
+            if (tilePool == null)
+                tilePool = new ForkJoinPool();
+            tilePool.invoke(task);
+        }
+
+        if (telemetry != null) {
+            // The RMSE of the frame is the root mean square over the
+            //   tiles that could be aligned.
+            int iterations = 0;
+            boolean converged = true;
+            double sum = 0.0;
+            int aligned = 0;
+            long nanos = 0L;
+            for (int t = 0; t < nTiles; ++t) {
+                iterations += tileIterations[t];
+                converged &= tileConverged[t];
+                if (!Double.isNaN(tileRmse[t])) {
+                    sum += tileRmse[t] * tileRmse[t];
+                    ++aligned;
+                }
+                nanos += tileNanos[t];
+            }
+            telemetry.counters().add(iterations, converged,
+                aligned > 0 ? Math.sqrt(sum / aligned) : Double.NaN);
+            telemetry.add(StabilizerTelemetry.SOLVE, nanos);
+        }
 
         return wp;
     }
 
 
-    double[][] estimateTranslation(double[][]     wp,
-                                   ImageProcessor ip,
+    double[][] estimateTranslation(ImageProcessor ip,
                                    ImageProcessor ipRef,
+                                   ImagePyramid   pyramid,
+                                   ImagePyramid   refPyramid,
+                                   int            maxIter,
+                                   double         tol)
+    {
+        prepareReference(ipRef, refPyramid);
+        return estimateTranslation(ip, pyramid, refPyramid, maxIter, tol);
+    }
+
+
+    /**
+        Estimates the translation of ip against a reference pyramid that
+          was already built by prepareReference().
+    */
+    double[][] estimateTranslation(ImageProcessor ip,
+                                   ImagePyramid   pyramid,
+                                   ImagePyramid   refPyramid,
                                    int            maxIter,
                                    double         tol)
     {
-        float[] dxRef = dx(ipRef);
-        float[] dyRef = dy(ipRef);
+        if (estimator != LUCAS_KANADE && phaseCorrelation != null) {
+            long start = phaseStart();
+            double[] shift = phaseCorrelation.estimate((float[])ip.getPixels());
+            phaseEnd(StabilizerTelemetry.SOLVE, start);
+            double[][] wp = { {shift[0]}, {shift[1]} };
+            if (estimator == PHASE_CORRELATION)
+                return wp;
+
+            // The phase correlation guess is within a pixel, so the
+            //   coarse pyramid levels can be skipped.
+            buildPyramid(pyramid, ip, 1);
+            return estimateTranslation(wp, pyramid, refPyramid, 0, maxIter, tol);
+        }
+
+        double[][] wp = { {0.0}, {0.0} };
+
+        // We operate on the gradient magnitude of the image
+        //   rather than on the original pixel intensity.
+        buildPyramid(pyramid, ip, pyramid.getDepth());
+
+        // Coarse to fine; the translation doubles from level to level.
+        for (int k = pyramid.getDepth() - 1; k >= 0; --k) {
+            wp = estimateTranslation(wp, pyramid, refPyramid, k, maxIter, tol);
+            if (k > 0) {
+                wp[0][0] *= 2;
+                wp[1][0] *= 2;
+            }
+        }
+
+        return wp;
+    }
+
+
+    double[][] estimateTranslation(double[][]   wp,
+                                   ImagePyramid pyramid,
+                                   ImagePyramid refPyramid,
+                                   int          level,
+                                   int          maxIter,
+                                   double       tol)
+    {
+        long start = phaseStart();
+        wp = estimateTranslation(wp,
+            pyramid.getPixels(level), refPyramid.getPixels(level),
+            refPyramid.dx[level], refPyramid.dy[level],
+            pyramid.getWidth(level), pyramid.getHeight(level), maxIter, tol);
+        if (telemetry != null)
+            telemetry.addSolve(workspace.get(), System.nanoTime() - start);
+        return wp;
+    }
 
-        ImageProcessor ipOut = ip.duplicate();
 
-        double[] dp = { 0.0, 0.0 };
+    double[][] estimateTranslation(double[][] wp,
+                                   float[]    pixels,
+                                   float[]    refPixels,
+                                   float[]    dxRef,
+                                   float[]    dyRef,
+                                   int        width,
+                                   int        height,
+                                   int        maxIter,
+                                   double     tol)
+    {
+        int n = width * height;
+
+        LucasKanadeWorkspace ws = workspace.get();
 
         double[][] bestWp = new double[2][1];
         bestWp[0][0] = wp[0][0];
         bestWp[1][0] = wp[1][0];
 
-        double[][] d = { {1.0, 0.0, 0.0},
-                         {0.0, 1.0, 0.0},
-                         {0.0, 0.0, 1.0} };
-        double[][] w = { {1.0, 0.0, 0.0},
-                         {0.0, 1.0, 0.0},
-                         {0.0, 0.0, 1.0} };
-
-        double[][] h = new double[2][2];
-
-        h[0][0] = dotSum(dxRef, dxRef);
-        h[1][0] = dotSum(dxRef, dyRef);
-        h[0][1] = dotSum(dyRef, dxRef);
-        h[1][1] = dotSum(dyRef, dyRef);
-        h = invert(h);
+        if (!ws.invert2x2(dotSum(dxRef, dxRef, n),
+                          dotSum(dxRef, dyRef, n),
+                          dotSum(dyRef, dyRef, n))) {
+            ws.setResult(0, false, Double.NaN);
+            return bestWp;
+        }
 
         double oldRmse = Double.MAX_VALUE;
         double minRmse = Double.MAX_VALUE;
 
-        for (int iter = 0; iter < maxIter; ++iter) {
-
-            warpTranslation(ipOut, ip, wp);
+        int iter = 0;
+        boolean converged = false;
+        for (; iter < maxIter; ++iter) {
 
-            subtract(ipOut, ipRef);
-
-            double rmse = rootMeanSquare(ipOut);
+            // Warp, residual, error and steepest descent update in one pass.
+            double rmse = ws.residualTranslation(pixels, refPixels, dxRef, dyRef,
+                                                 width, height, wp[0][0], wp[1][0]);
 
             if (iter > 0) {
                 if (rmse < minRmse) {
@@ -763,281 +1858,30 @@ public class Image_Stabilizer implements PlugInFilter {
                     minRmse      = rmse;
                 }
                 if (Math.abs((oldRmse - rmse) /
-                        (oldRmse + Double.MIN_VALUE)) < tol)
+                        (oldRmse + Double.MIN_VALUE)) < tol) {
+                    converged = true;
                     break;
+                }
             }
             oldRmse = rmse;
 
-            float[] error = (float[])ipOut.getPixels();
-
-            dp[0] = dotSum(dxRef, error);
-            dp[1] = dotSum(dyRef, error);
-
-            dp = prod(h, dp);
-
-            d[0][0] = 1.0; d[0][1] = 0.0; d[0][2] = dp[0];
-            d[1][0] = 0.0; d[1][1] = 1.0; d[1][2] = dp[1];
-            d[2][0] = 0.0; d[2][1] = 0.0; d[2][2] = 1.0;
-
-            w[0][0] = 1.0; w[0][1] = 0.0; w[0][2] = wp[0][0];
-            w[1][0] = 0.0; w[1][1] = 1.0; w[1][2] = wp[1][0];
-            w[2][0] = 0.0; w[2][1] = 0.0; w[2][2] = 1.0;
-
-            w = prod(w, invert(d));
-
-            wp[0][0] = w[0][2];
-            wp[1][0] = w[1][2];
+            ws.solve(ws.hInv, 2);
+            ws.composeTranslation(wp);
         }
 
+        ws.setResult(converged ? iter + 1 : iter, converged,
+                     minRmse < Double.MAX_VALUE ? minRmse : oldRmse);
         return bestWp;
     }
-    
-    
-    void gradient(ImageProcessor ipOut, ImageProcessor ip) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
-        float[] pixels = (float[])ip.getPixels();
-        float[] outPixels = (float[])ipOut.getPixels();
-
-        for (int y = 1; y + 1 < height; ++y) {
-            int offset = 1 + y * width;
-
-            //
-            // nw---n---ne
-            //  |   |   |
-            //  w---o---e
-            //  |   |   |
-            // sw---s---se
-            //
-
-            double p1 = 0f;
-            double p2 = pixels[offset - width - 1]; // nw
-            double p3 = pixels[offset - width];     // n
-            double p4 = 0f;                         // ne
-            double p5 = pixels[offset - 1];         // w
-            double p6 = pixels[offset];             // o
-            double p7 = 0f;                         // e
-            double p8 = pixels[offset + width - 1]; // sw
-            double p9 = pixels[offset + width];     // s
-
-            for (int x = 1; x + 1 < width; ++x) {
-                p1 = p2; p2 = p3; p3 = pixels[offset - width + 1];
-                p4 = p5; p5 = p6; p6 = pixels[offset + 1];
-                p7 = p8; p8 = p9; p9 = pixels[offset + width + 1];
-                double a = p1 + 2 * p2 + p3 - p7 - 2 * p8 - p9;
-                double b = p1 + 2 * p4 + p7 - p3 - 2 * p6 - p9;
-                outPixels[offset++] = (float)Math.sqrt(a * a + b * b);
-            }
-        }
-    }
 
 
-    void resize(ImageProcessor ipOut, ImageProcessor ip) {
-        int widthOut = ipOut.getWidth();
-        int heightOut = ipOut.getHeight();
-        double xScale = ip.getWidth() / (double)widthOut;
-        double yScale = ip.getHeight() / (double)heightOut;
-        float[] pixelsOut = (float[])ipOut.getPixels();
-        for (int i = 0, y = 0; y < heightOut; ++y) {
-            double ys = y * yScale;
-            for (int x = 0; x < widthOut; ++x) {
-                pixelsOut[i++] = (float)ip.getInterpolatedPixel(x * xScale, ys);
-            }
-        }
-    }
-    
-    
-    double[] prod(double[][] m, double[] v) {
-        int n = v.length;
-        double[] out = new double[n];
-        for (int j = 0; j < n; ++j) {
-            out[j] = 0.0;
-            for (int i = 0; i < n; ++i)
-                out[j] = out[j] + m[j][i] * v[i];
-        }
-        return out;
-    }
-
-
-    double[][] prod(double[][] a, double[][] b) {
-        double[][] out = new double[a.length][b[0].length];
-        for (int i = 0; i < a.length; ++i) {
-            for (int j = 0; j < b[i].length; ++j) {
-                out[i][j] = 0.0;
-                for (int k = 0; k < a[i].length; ++k)
-                    out[i][j] = out[i][j] + a[i][k] * b[k][j];
-            }
-        }
-        return out;
-    }
-
-
-    float[] dx(ImageProcessor ip) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
-
-        float[] pixels = (float[])ip.getPixels();
-        float[] outPixels = new float[width * height];
-
-        for (int y = 0; y < height; ++y) {
-            // Take forward/backward difference on edges.
-            outPixels[y * width] = pixels[y * width + 1] - pixels[y * width];
-            outPixels[y * width + width - 1] = pixels[y * width + width - 1]
-                                                     - pixels[y * width + width - 2];
-
-            // Take central difference in interior.
-            for (int x = 1; x + 1 < width; ++x) {
-                outPixels[y * width + x] = (float)((pixels[y * width + x + 1] -
-                                                    pixels[y * width + x - 1]) * 0.5);
-            } // x
-        } // y
-
-        return outPixels;
-    }
-
-
-    float[] dy(ImageProcessor ip) {
-        int width = ip.getWidth();
-        int height = ip.getHeight();
-
-        float[] pixels = (float[])ip.getPixels();
-        float[] outPixels = new float[width * height];
-
-        for (int x = 0; x < width; ++x) {
-            // Take forward/backward difference on edges.
-            outPixels[x] = pixels[width + x] - pixels[x];
-            outPixels[(height - 1) * width + x] = pixels[width * (height - 1) + x]
-                                                        - pixels[width * (height - 2) + x];
-
-            // Take central difference in interior.
-            for (int y = 1; y + 1 < height; ++y) {
-                outPixels[y * width + x] = (float)((pixels[width * (y + 1) + x] -
-                                                    pixels[width * (y - 1) + x]) * 0.5);
-            } // y
-        } // x
-
-        return outPixels;
-    }
-
-
-    float[] dot(float[] p1, float[] p2) {
-        int n = p1.length < p2.length ? p1.length : p2.length;
-        float[] output = new float[n];
-        for (int i = 0; i < n; ++i)
-            output[i] = p1[i] * p2[i];
-        return output;
-    }
-
-
-    double dotSum(float[] p1, float[] p2) {
+    double dotSum(float[] p1, float[] p2, int n) {
         double sum = 0.0;
-        int n = p1.length < p2.length ? p1.length : p2.length;
         for (int i = 0; i < n; ++i)
             sum += p1[i] * p2[i];
         return sum;
     }
 
-    /**
-        Gaussian elimination (required by invert).
-
-        This Java program is part of the book, "An Introduction to Computational
-        Physics, 2nd Edition,"  written by Tao  Pang and published  by Cambridge
-        University Press on January 19, 2006.
-    */
-    void gaussian(double a[][], int index[]) {
-
-        int n = index.length;
-        double[] c = new double[n];
-
-        // Initialize the index
-        for (int i = 0; i < n; ++i) index[i] = i;
-
-        // Find the rescaling factors, one from each row
-        for (int i = 0; i < n; ++i) {
-            double c1 = 0;
-            for (int j = 0; j < n; ++j) {
-                double c0 = Math.abs(a[i][j]);
-                if (c0 > c1) c1 = c0;
-            }
-            c[i] = c1;
-        }
-
-        // Search the pivoting element from each column
-        int k = 0;
-        for (int j = 0; j < n-1; ++j) {
-            double pi1 = 0;
-            for (int i = j; i < n; ++i) {
-                double pi0 = Math.abs(a[index[i]][j]);
-                pi0 /= c[index[i]];
-                if (pi0 > pi1) {
-                    pi1 = pi0;
-                    k = i;
-                }
-            }
-
-            // Interchange rows according to the pivoting order
-            int itmp = index[j];
-            index[j] = index[k];
-            index[k] = itmp;
-            for (int i= j + 1; i < n; ++i) {
-                double pj = a[index[i]][j] / a[index[j]][j];
-                // Record pivoting ratios below the diagonal
-                a[index[i]][j] = pj;
-                // Modify other elements accordingly
-                for (int l = j + 1; l < n; ++l)
-                    a[index[i]][l] -= pj * a[index[j]][l];
-            }
-        }
-    }
-
-
-    /**
-        Matrix inversion with the Gaussian elimination scheme.
-
-        This Java program is part of the book, "An Introduction to Computational
-        Physics, 2nd Edition,"  written by Tao  Pang and published  by Cambridge
-        University Press on January 19, 2006.
-    */
-    double[][] invert(double a[][]) {
-        int n = a.length;
-        double[][] x = new double[n][n];
-        double[][] b = new double[n][n];
-        int index[] = new int[n];
-        for (int i = 0; i < n; ++i) b[i][i] = 1;
-
-            // Transform the matrix into an upper triangle
-            gaussian(a, index);
-
-            // Update the matrix b[i][j] with the ratios stored
-            for (int i = 0; i < n - 1; ++i)
-                for (int j = i + 1; j < n; ++j)
-                    for (int k = 0; k < n; ++k)
-                        b[index[j]][k] -= a[index[j]][i] * b[index[i]][k];
-
-                    // Perform backward substitutions
-                    for (int i = 0; i < n; ++i) {
-                        x[n - 1][i] = b[index[n - 1]][i] / a[index[n - 1]][n - 1];
-                        for (int j = n - 2; j >= 0; --j) {
-                            x[j][i] = b[index[j]][i];
-                            for (int k = j + 1; k < n; ++k) {
-                                x[j][i] -= a[index[j]][k] * x[k][i];
-                }
-                x[j][i] /= a[index[j]][j];
-            }
-        }
-        return x;
-    }
-
-
-    double rootMeanSquare(ImageProcessor ip) {
-        double mean = 0.0;
-        float[] pixels = (float[])ip.getPixels();
-        for (int i = 0; i < pixels.length; ++i)
-            mean += pixels[i] * pixels[i];
-        mean /= pixels.length;
-        return Math.sqrt(mean);
-    }
-
 
     void combine(ImageProcessor ipOut, ImageProcessor ip) {
         float[] pixels = (float[])ip.getPixels();
@@ -1050,29 +1894,21 @@ public class Image_Stabilizer implements PlugInFilter {
     }
 
 
-    void subtract(ImageProcessor ipOut, ImageProcessor ip) {
-        float[] pixels = (float[])ip.getPixels();
-        float[] outPixels = (float[])ipOut.getPixels();
-        for (int i = 0; i < pixels.length; ++i)
-            outPixels[i] = outPixels[i] - pixels[i];
+    void warpAffine(ImageProcessor ipOut,
+                    ImageProcessor ip,
+                    double[][]     wp)
+    {
+        warpAffine((float[])ipOut.getPixels(), ipOut.getWidth(), ipOut.getHeight(), ip, wp);
     }
 
 
-    void warpAffine(ImageProcessor ipOut,
+    void warpAffine(float[]        outPixels,
+                    int            width,
+                    int            height,
                     ImageProcessor ip,
                     double[][]     wp)
     {
-        float[] outPixels = (float[])ipOut.getPixels();
-        int width = ipOut.getWidth();
-        int height = ipOut.getHeight();
-        for (int p = 0, y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                double xx = (1.0 + wp[0][0]) * x + wp[0][1] * y + wp[0][2];
-                double yy = wp[1][0] * x + (1.0 + wp[1][1]) * y + wp[1][2];
-                outPixels[p] = (float)ip.getInterpolatedPixel(xx, yy);
-                ++p;
-            } // x
-        } // y
+        BilinearWarp.affine(outPixels, (float[])ip.getPixels(), width, height, wp, border);
     }
 
 
@@ -1080,17 +1916,8 @@ public class Image_Stabilizer implements PlugInFilter {
                          ColorProcessor ip,
                          double[][]     wp)
     {
-        int[] outPixels = (int[])ipOut.getPixels();
-        int width = ipOut.getWidth();
-        int height = ipOut.getHeight();
-        for (int p = 0, y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                double xx = (1.0 + wp[0][0]) * x + wp[0][1] * y + wp[0][2];
-                double yy = wp[1][0] * x + (1.0 + wp[1][1]) * y + wp[1][2];
-                outPixels[p] = ip.getInterpolatedRGBPixel(xx, yy);
-                ++p;
-            } // x
-        } // y
+        BilinearWarp.affine((int[])ipOut.getPixels(), (int[])ip.getPixels(),
+                            ipOut.getWidth(), ipOut.getHeight(), wp, border);
     }
 
 
@@ -1098,17 +1925,18 @@ public class Image_Stabilizer implements PlugInFilter {
                          ImageProcessor ip,
                          double[][]     wp)
     {
-        float[] outPixels = (float[])ipOut.getPixels();
-        int width = ipOut.getWidth();
-        int height = ipOut.getHeight();
-        for (int p = 0, y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                double xx = x + wp[0][0];
-                double yy = y + wp[1][0];
-                outPixels[p] = (float)ip.getInterpolatedPixel(xx, yy);
-                ++p;
-            } // x
-        } // y
+        warpTranslation((float[])ipOut.getPixels(), ipOut.getWidth(), ipOut.getHeight(), ip, wp);
+    }
+
+
+    void warpTranslation(float[]        outPixels,
+                         int            width,
+                         int            height,
+                         ImageProcessor ip,
+                         double[][]     wp)
+    {
+        BilinearWarp.translate(outPixels, (float[])ip.getPixels(), width, height,
+                               wp[0][0], wp[1][0], border);
     }
 
 
@@ -1116,14 +1944,7 @@ public class Image_Stabilizer implements PlugInFilter {
                               ColorProcessor ip,
                               double[][]     wp)
     {
-        int[] outPixels = (int[])ipOut.getPixels();
-        int width = ipOut.getWidth();
-        int height = ipOut.getHeight();
-        for (int p = 0, y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                outPixels[p] = ip.getInterpolatedRGBPixel(x + wp[0][0], y + wp[1][0]);
-                ++p;
-            } // x
-        } // y
-    }
-}
\ No newline at end of file
+        BilinearWarp.translate((int[])ipOut.getPixels(), (int[])ip.getPixels(),
+                               ipOut.getWidth(), ipOut.getHeight(), wp[0][0], wp[1][0], border);
+    }
+}
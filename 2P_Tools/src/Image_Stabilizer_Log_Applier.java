@@ -3,6 +3,8 @@
 
 import java.io.*;
 import java.awt.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import ij.*;
 import ij.gui.*;
 import ij.process.*;
@@ -14,6 +16,7 @@ public class Image_Stabilizer_Log_Applier implements PlugInFilter {
 
     static final int TRANSLATION = 0;
     static final int AFFINE = 1;
+    static final int PIECEWISE_RIGID = 2;
 
     ImagePlus      imp = null;
     ImageStack     stack = null;
@@ -22,11 +25,19 @@ public class Image_Stabilizer_Log_Applier implements PlugInFilter {
     boolean        stackVirtual = false;
     boolean        outputNewStack = false;
     int            transform = TRANSLATION;
+    int            paramCount = 2;
+    int            channels = 1;     // slices per record (frame) of the log
+    int            border = BilinearWarp.BORDER_CLAMP;
+    boolean        serial = false;
+    boolean        warpOnDemand = false;
+    int            cacheSize = 64;
+    volatile boolean saveFailed = false; // a slice of a virtual stack was not saved
     
-    /* log */
+    /* log, either the text of a log window or a binary log file */
     String[]       log = null;
     Editor         logEditor = null;
     int            logLine = 0;
+    TransformLog.Reader logFile = null;
     
     
     @Override
@@ -41,6 +52,23 @@ public class Image_Stabilizer_Log_Applier implements PlugInFilter {
 	public void run(ImageProcessor ip) {
         stack = imp.getStack();
 
+        if (!loadLogEditor())
+            return;
+
+        if (stack.getSize() % channels != 0) {
+            IJ.error("The log is for " + channels + " channels, but the stack has "
+                + stack.getSize() + " slices.");
+            return;
+        }
+
+        if (!showDialog(ip))
+            return;
+
+        if (warpOnDemand) {
+            showStabilizedVirtualStack();
+            return;
+        }
+
         if (stack.isVirtual()) {
             boolean ok = IJ.showMessageWithCancel(
                 "Image Stabilizer",
@@ -71,16 +99,11 @@ public class Image_Stabilizer_Log_Applier implements PlugInFilter {
                     return;
                 }
             }
+            // The slices are saved one by one by saveImage().
             stackVirtual = true;
-            outputNewStack = true;
+            outputNewStack = false;
         }
 
-        if (!loadLogEditor())
-            return;
-
-        if (!stackVirtual && !showDialog(ip))
-            return;
-
         int current = imp.getCurrentSlice();
         ImageProcessor ipRef = stack.getProcessor(current);
 
@@ -88,8 +111,12 @@ public class Image_Stabilizer_Log_Applier implements PlugInFilter {
             stackOut = new ImageStack(ip.getWidth(), ip.getHeight());
 
         showProgress(0.0);
-        if (!IJ.escapePressed())
-            process(ipRef);
+        if (!IJ.escapePressed()) {
+            if (serial)
+                process(ipRef);
+            else
+                processParallel(ipRef);
+        }
 
         if (!outputNewStack) // in-place processing
             imp.updateAndDraw();
@@ -109,13 +136,23 @@ public class Image_Stabilizer_Log_Applier implements PlugInFilter {
         GenericDialog gd = new GenericDialog("Image Stabilizer");
         if (transform == AFFINE)
             gd.addMessage("-- Applying Affine Image Stabilization --");
+        else if (transform == PIECEWISE_RIGID)
+            gd.addMessage("-- Applying Piecewise Rigid Image Stabilization --");
         else
             gd.addMessage("-- Applying Translation Image Stabilization --");
-        gd.addCheckbox("Output_to_a_New_Stack", false);
+        if (!stack.isVirtual())
+            gd.addCheckbox("Output_to_a_New_Stack", false);
+        gd.addCheckbox("Serial_Processing (single-threaded)", false);
+        gd.addCheckbox("Warp_on_Demand (virtual output stack)", false);
+        gd.addNumericField("Cache_Size (slices):", cacheSize, 0);
         gd.showDialog();
         if (gd.wasCanceled())
             return false;
-        outputNewStack = gd.getNextBoolean();
+        if (!stack.isVirtual())
+            outputNewStack = gd.getNextBoolean();
+        serial = gd.getNextBoolean();
+        warpOnDemand = gd.getNextBoolean();
+        cacheSize = Math.max(1, (int)gd.getNextNumber());
         return true;
     }
 
@@ -132,143 +169,272 @@ public class Image_Stabilizer_Log_Applier implements PlugInFilter {
         int height = ipRef.getHeight();
         int stackSize = stack.getSize();
 
-        for (++logLine; logLine < log.length; ++logLine) {
-            if (IJ.escapePressed() || 
+        int logSize = getLogSize();
+        int[] sliceInterval = new int[2];
+
+        for (int record = 0; record < logSize; ++record) {
+            if (IJ.escapePressed() || saveFailed ||
                 (null != imp.getWindow() && imp.getWindow().isClosed())) {
                 break;
             }
             
-            int slice = 0;
-            int interval = 0;
-            double[][] wp = null;
-            
-            String s = log[logLine];
-            
+            double[][] wp = TransformLog.newTransform(transform, paramCount);
+
             try {
-                boolean ok = true;
-                if (transform == AFFINE) {
-                    wp = new double[2][3];
-                    String[] fields = s.split(",");
-                    if (fields.length < 8)
-                        ok = false;
-                    else {
-                        slice = Integer.parseInt(fields[0]);
-                        interval = Integer.parseInt(fields[1]);
-                        wp[0][0] = Double.parseDouble(fields[2]);
-                        wp[0][1] = Double.parseDouble(fields[3]);
-                        wp[0][2] = Double.parseDouble(fields[4]);
-                        wp[1][0] = Double.parseDouble(fields[5]);
-                        wp[1][1] = Double.parseDouble(fields[6]);
-                        wp[1][2] = Double.parseDouble(fields[7]);
-                    }
-                }
-                else {
-                    // translation only
-                    wp = new double[2][1];
-                    String[] fields = s.split(",");
-                    if (fields.length < 4)
-                        ok = false;
-                    else {
-                        slice = Integer.parseInt(fields[0]);
-                        interval = Integer.parseInt(fields[1]);
-                        wp[0][0] = Double.parseDouble(fields[2]);
-                        wp[1][0] = Double.parseDouble(fields[3]);
-                    }
-                }
-                if (!ok) {
-                    IJ.error("Invalid line: \"" + s + "\".");
-                }
+                if (!readRecord(record, sliceInterval, wp))
+                    IJ.error("Invalid line: \"" + log[logLine + 1 + record] + "\".");
             }
             catch (NumberFormatException e) {
                 IJ.error("Invalid log: " + e.getMessage() + ".");
                 break;
             }
+            int frame = sliceInterval[0];
+            int interval = sliceInterval[1];
             
-            if (slice < 1 || slice > stackSize) {
-                IJ.showStatus("Skipping slice " + slice + "...");
+            if (frame < 1 || frame * channels > stackSize) {
+                IJ.showStatus("Skipping slice " + frame + "...");
                 continue;
             }
             
-            String label = stack.getSliceLabel(slice);
-            IJ.showStatus("Stabilizing " + slice + "/" + stackSize + 
-                " ... (Press 'ESC' to Cancel)");
-            ImageProcessor ip = stack.getProcessor(slice);
-            ImageProcessor ipFloat = ip.convertToFloat();
+            for (int c = 0; c < channels; ++c) {
+                int slice = (frame - 1) * channels + c + 1;
+                String label = stack.getSliceLabel(slice);
+                IJ.showStatus("Stabilizing " + slice + "/" + stackSize + 
+                    " ... (Press 'ESC' to Cancel)");
+                ImageProcessor ip = stack.getProcessor(slice);
+                ImageProcessor ipOut = ip.createProcessor(width, height);
 
-            if (ip instanceof ColorProcessor) {
-                ColorProcessor ipColorOut = new ColorProcessor(width, height);
-
-                if (transform == AFFINE)
-                    warpColorAffine(ipColorOut, (ColorProcessor)ip, wp);
-                else
-                    warpColorTranslation(ipColorOut, (ColorProcessor)ip, wp);
+                BilinearWarp.warp(ipOut, ip, wp, border);
 
                 if (stackOut == null) {
                     if (!stackVirtual)
-                        stack.setPixels(ipColorOut.getPixels(), slice);
-                    else
-                        saveImage(ipColorOut, slice);
+                        stack.setPixels(ipOut.getPixels(), slice);
+                    else if (!saveImage(ipOut, slice))
+                        return;
                 }
                 else if (interval < 0)
-                    stackOut.addSlice(label, ipColorOut, 0);
+                    stackOut.addSlice(label, ipOut, c); // the channels of a frame stay in order
                 else
-                    stackOut.addSlice(label, ipColorOut);
+                    stackOut.addSlice(label, ipOut);
             }
-            else {
 
-                FloatProcessor ipFloatOut = new FloatProcessor(width, height);
+            showProgress((record + 1) / (double)logSize);
+        }
+    }
 
-                if (transform == AFFINE)
-                    warpAffine(ipFloatOut, ipFloat, wp);
-                else
-                    warpTranslation(ipFloatOut, ipFloat, wp);
 
-                if (ip instanceof ByteProcessor) {
-                    ImageProcessor ipByteOut = ipFloatOut.convertToByte(false);
-                    if (stackOut == null) {
-                        if (!stackVirtual)
-                            stack.setPixels(ipByteOut.getPixels(), slice);
-                        else
-                            saveImage(ipByteOut, slice);
-                    }
-                    else if (interval < 0)
-                        stackOut.addSlice(label, ipByteOut, 0);
-                    else
-                        stackOut.addSlice(label, ipByteOut);
+    /**
+        Applies all records of the log in parallel.
+
+        The records are read and validated first. Each slice of the frame
+          of a record then gets its final position in stackOut, which
+          reproduces the order of process(): records with a negative
+          interval are prepended, all others appended. The warps run on
+          all cores and write their result straight into that position,
+          into the stack or, for virtual stacks, into the output directory.
+    */
+    void processParallel(ImageProcessor ipRef)
+    {
+        final int width = ipRef.getWidth();
+        final int height = ipRef.getHeight();
+        final int stackSize = stack.getSize();
+        final int logSize = getLogSize();
+
+        final int[] slices = new int[logSize * channels];     // per slice of a record
+        final int[] positions = new int[logSize * channels];
+        final double[][][] wps = new double[logSize][][];
+        int[] sliceInterval = new int[2];
+        int prepended = 0;
+        int appended = 0;
+
+        for (int record = 0; record < logSize; ++record) {
+            wps[record] = TransformLog.newTransform(transform, paramCount);
+            try {
+                if (!readRecord(record, sliceInterval, wps[record]))
+                    IJ.error("Invalid line: \"" + log[logLine + 1 + record] + "\".");
+            }
+            catch (NumberFormatException e) {
+                IJ.error("Invalid log: " + e.getMessage() + ".");
+                return;
+            }
+            int frame = sliceInterval[0];
+            if (frame < 1 || frame * channels > stackSize)
+                continue; // skipped like in process()
+            int position = sliceInterval[1] < 0 ? -(++prepended) : appended++;
+            for (int c = 0; c < channels; ++c) {
+                slices[record * channels + c] = (frame - 1) * channels + c + 1;
+                positions[record * channels + c] = position;
+            }
+        }
+        // The k-th prepended record ends up as frame prepended - k + 1, the
+        //   a-th appended one (from 0) as frame prepended + a + 1.
+        for (int i = 0; i < positions.length; ++i)
+            positions[i] = (positions[i] + prepended) * channels + i % channels + 1;
+        if (stackOut != null)
+            stackOut = new ImageStack(width, height, (prepended + appended) * channels);
+
+        final AtomicInteger done = new AtomicInteger(0);
+        IJ.showStatus("Stabilizing " + logSize + " slices ... (Press 'ESC' to Cancel)");
+
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new ParallelRange.Each(0, logSize * channels) {
+                @Override
+                boolean stopped() {
+                    return IJ.escapePressed() || saveFailed
+                        || (null != imp.getWindow() && imp.getWindow().isClosed());
                 }
-                else if (ip instanceof ShortProcessor) {
-                    ImageProcessor ipShortOut = ipFloatOut.convertToShort(false);
+
+                @Override
+                void process(int i) {
+                    int slice = slices[i];
+                    if (slice == 0)
+                        return;
+                    ImageProcessor ip = readSlice(slice);
+                    ImageProcessor ipOut = ip.createProcessor(width, height);
+
+                    BilinearWarp.warp(ipOut, ip, wps[i / channels], border);
+
                     if (stackOut == null) {
                         if (!stackVirtual)
-                            stack.setPixels(ipShortOut.getPixels(), slice);
-                        else
-                            saveImage(ipShortOut, slice);
+                            stack.setPixels(ipOut.getPixels(), slice);
+                        else if (!saveImage(ipOut, slice))
+                            return;
                     }
-                    else if (interval < 0)
-                        stackOut.addSlice(label, ipShortOut, 0);
-                    else
-                        stackOut.addSlice(label, ipShortOut);
-                }
-                else {
-                    if (stackOut == null) {
-                        if (!stackVirtual)
-                            stack.setPixels(ipFloatOut.getPixels(), slice);
-                        else
-                            saveImage(ipFloatOut, slice);
+                    else {
+                        stackOut.setPixels(ipOut.getPixels(), positions[i]);
+                        stackOut.setSliceLabel(stack.getSliceLabel(slice), positions[i]);
                     }
-                    else if (interval < 0)
-                        stackOut.addSlice(label, ipFloatOut, 0);
-                    else
-                        stackOut.addSlice(label, ipFloatOut);
+                    showProgress(done.incrementAndGet() / (double)slices.length);
                 }
+            });
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+
+    ImageProcessor readSlice(int slice) {
+        if (!stackVirtual)
+            return stack.getProcessor(slice);
+        // Virtual stacks share a single file opener.
+        synchronized (stack) {
+            return stack.getProcessor(slice);
+        }
+    }
+
+
+    /**
+        Shows the stack stabilized by the log as a StabilizedVirtualStack,
+          which warps slices only when they are displayed or read.
+    */
+    void showStabilizedVirtualStack() {
+        double[][][] transforms = collectTransforms();
+        if (transforms == null)
+            return;
+        ImagePlus impOut = new ImagePlus("Stablized " + imp.getShortTitle(),
+            new StabilizedVirtualStack(stack, transforms, cacheSize, border));
+        impOut.setCalibration(imp.getCalibration());
+        impOut.show();
+    }
+
+
+    /**
+        Returns the wp of every slice of the stack (1-based, null when the
+          log has no record for a slice), or null for an invalid log. When
+          a slice occurs more than once the last record wins.
+    */
+    double[][][] collectTransforms() {
+        int stackSize = stack.getSize();
+        double[][][] transforms = new double[stackSize + 1][][];
+        int[] sliceInterval = new int[2];
+        for (int record = 0; record < getLogSize(); ++record) {
+            double[][] wp = TransformLog.newTransform(transform, paramCount);
+            try {
+                if (!readRecord(record, sliceInterval, wp))
+                    IJ.error("Invalid line: \"" + log[logLine + 1 + record] + "\".");
+            }
+            catch (NumberFormatException e) {
+                IJ.error("Invalid log: " + e.getMessage() + ".");
+                return null;
             }
+            int frame = sliceInterval[0];
+            if (frame >= 1 && frame * channels <= stackSize)
+                for (int c = 1; c <= channels; ++c)
+                    transforms[(frame - 1) * channels + c] = wp;
+        }
+        return transforms;
+    }
+
 
-            showProgress(logLine / (double)log.length);
+    int getLogSize() {
+        if (logFile != null)
+            return logFile.size;
+        return log.length - logLine - 1;
+    }
+
+
+    /**
+        Reads frame, interval and wp of a record; the frame is the slice
+          of a log of one channel. Returns false for a text line with too
+          few fields, in which case the frame is 0.
+    */
+    boolean readRecord(int record, int[] sliceInterval, double[][] wp) {
+        if (logFile != null) {
+            sliceInterval[0] = logFile.getSlice(record);
+            sliceInterval[1] = logFile.getInterval(record);
+            logFile.getTransform(record, wp);
+            return true;
+        }
+
+        String[] fields = log[logLine + 1 + record].split(",");
+        sliceInterval[0] = 0;
+        sliceInterval[1] = 0;
+        if (transform == PIECEWISE_RIGID) {
+            // tx of all tiles, ty of all tiles, then the grid size
+            if (fields.length < 2 + paramCount)
+                return false;
+            int field = 2;
+            for (int r = 0; r < wp.length; ++r)
+                for (int c = 0; c < wp[r].length; ++c)
+                    wp[r][c] = Double.parseDouble(fields[field++]);
+            if ((int)wp[2][0] * (int)wp[2][1] != wp[0].length)
+                return false;
+            sliceInterval[0] = Integer.parseInt(fields[0]);
+            sliceInterval[1] = Integer.parseInt(fields[1]);
         }
+        else if (transform == AFFINE) {
+            if (fields.length < 8)
+                return false;
+            sliceInterval[0] = Integer.parseInt(fields[0]);
+            sliceInterval[1] = Integer.parseInt(fields[1]);
+            wp[0][0] = Double.parseDouble(fields[2]);
+            wp[0][1] = Double.parseDouble(fields[3]);
+            wp[0][2] = Double.parseDouble(fields[4]);
+            wp[1][0] = Double.parseDouble(fields[5]);
+            wp[1][1] = Double.parseDouble(fields[6]);
+            wp[1][2] = Double.parseDouble(fields[7]);
+        }
+        else {
+            // translation only
+            if (fields.length < 4)
+                return false;
+            sliceInterval[0] = Integer.parseInt(fields[0]);
+            sliceInterval[1] = Integer.parseInt(fields[1]);
+            wp[0][0] = Double.parseDouble(fields[2]);
+            wp[1][0] = Double.parseDouble(fields[3]);
+        }
+        return true;
     }
 
 
-    void saveImage(ImageProcessor ip, int slice) {
+    /**
+        Saves a stabilized slice of a virtual stack to the output directory.
+          Returns false, after FileSaver has reported the error, if the file
+          could not be written, which stops the run.
+    */
+    boolean saveImage(ImageProcessor ip, int slice) {
         VirtualStack virtualStack = (VirtualStack)stack;
         String fileName = null;
         try {
@@ -296,7 +462,10 @@ public class Image_Stabilizer_Log_Applier implements PlugInFilter {
             }
         }
         FileSaver fs = new FileSaver(new ImagePlus(fileName, ip));
-        fs.saveAsTiff(outputDir + File.separator + fileName);
+        if (fs.saveAsTiff(outputDir + File.separator + fileName))
+            return true;
+        saveFailed = true;
+        return false;
     }
 
 
@@ -309,75 +478,6 @@ public class Image_Stabilizer_Log_Applier implements PlugInFilter {
     }
 
 
-    void warpAffine(ImageProcessor ipOut,
-                    ImageProcessor ip,
-                    double[][]     wp)
-    {
-        float[] outPixels = (float[])ipOut.getPixels();
-        int width = ipOut.getWidth();
-        int height = ipOut.getHeight();
-        for (int p = 0, y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                double xx = (1.0 + wp[0][0]) * x + wp[0][1] * y + wp[0][2];
-                double yy = wp[1][0] * x + (1.0 + wp[1][1]) * y + wp[1][2];
-                outPixels[p] = (float)ip.getInterpolatedPixel(xx, yy);
-                ++p;
-            } // x
-        } // y
-    }
-
-
-    void warpColorAffine(ImageProcessor ipOut,
-                         ColorProcessor ip,
-                         double[][]     wp)
-    {
-        int[] outPixels = (int[])ipOut.getPixels();
-        int width = ipOut.getWidth();
-        int height = ipOut.getHeight();
-        for (int p = 0, y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                double xx = (1.0 + wp[0][0]) * x + wp[0][1] * y + wp[0][2];
-                double yy = wp[1][0] * x + (1.0 + wp[1][1]) * y + wp[1][2];
-                outPixels[p] = ip.getInterpolatedRGBPixel(xx, yy);
-                ++p;
-            } // x
-        } // y
-    }
-
-
-    void warpTranslation(ImageProcessor ipOut,
-                         ImageProcessor ip,
-                         double[][]     wp)
-    {
-        float[] outPixels = (float[])ipOut.getPixels();
-        int width = ipOut.getWidth();
-        int height = ipOut.getHeight();
-        for (int p = 0, y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                double xx = x + wp[0][0];
-                double yy = y + wp[1][0];
-                outPixels[p] = (float)ip.getInterpolatedPixel(xx, yy);
-                ++p;
-            } // x
-        } // y
-    }
-
-
-    void warpColorTranslation(ImageProcessor ipOut,
-                              ColorProcessor ip,
-                              double[][]     wp)
-    {
-        int[] outPixels = (int[])ipOut.getPixels();
-        int width = ipOut.getWidth();
-        int height = ipOut.getHeight();
-        for (int p = 0, y = 0; y < height; ++y) {
-            for (int x = 0; x < width; ++x) {
-                outPixels[p] = ip.getInterpolatedRGBPixel(x + wp[0][0], y + wp[1][0]);
-                ++p;
-            } // x
-        } // y
-    }
-    
     boolean loadLogEditor() {
         
         Frame[] fs = WindowManager.getNonImageWindows();
@@ -399,12 +499,30 @@ public class Image_Stabilizer_Log_Applier implements PlugInFilter {
 
         if (null != log) {
             try {
+                // transform, followed by the number of channels if more than one
                 String s = log[++logLine];
-                transform = Integer.parseInt(s);
-                if (transform != AFFINE && transform != TRANSLATION) {
+                String[] fields = s.split(",");
+                transform = Integer.parseInt(fields[0].trim());
+                channels = fields.length > 1 ? Integer.parseInt(fields[1].trim()) : 1;
+                if (channels < 1) {
+                    IJ.error("Invalid number of channels \"" + s + "\".");
+                    return false;
+                }
+                if (transform != AFFINE && transform != TRANSLATION
+                        && transform != PIECEWISE_RIGID) {
                     IJ.error("Invalid transformation \"" + s + "\".");
                     return false;
                 }
+                paramCount = TransformLog.paramCount(transform);
+                if (transform == PIECEWISE_RIGID) {
+                    // The number of tiles follows from the first record.
+                    paramCount = log.length > logLine + 1
+                        ? log[logLine + 1].split(",").length - 2 : 4;
+                    if (!TransformLog.isValid(transform, paramCount)) {
+                        IJ.error("Invalid line: \"" + log[logLine + 1] + "\".");
+                        return false;
+                    }
+                }
             }
             catch (NumberFormatException e) {
                 IJ.error("Invalid log: " + e.getMessage() + ".");
@@ -413,7 +531,27 @@ public class Image_Stabilizer_Log_Applier implements PlugInFilter {
             return true;
         }
 
-        IJ.error("No log file is open or the log files are corrupted.");
-        return false;
+        // No log window: ask for a binary log written by the stabilizer.
+        OpenDialog od = new OpenDialog("Open Transformation Log", null);
+        if (od.getFileName() == null) {
+            IJ.error("No log file is open or the log files are corrupted.");
+            return false;
+        }
+        return loadLogFile(new File(od.getDirectory(), od.getFileName()));
+    }
+
+
+    boolean loadLogFile(File file) {
+        try {
+            logFile = new TransformLog.Reader(file);
+        }
+        catch (IOException e) {
+            IJ.error("Invalid log: " + e.getMessage() + ".");
+            return false;
+        }
+        transform = logFile.transform;
+        paramCount = logFile.paramCount;
+        channels = logFile.channels;
+        return true;
     }
 }
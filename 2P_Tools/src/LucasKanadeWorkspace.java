@@ -0,0 +1,330 @@
+/**
+    Reusable scratch memory for the Lucas-Kanade iterations of the
+      Image_Stabilizer.
+
+    One workspace is owned by a single thread. Its row buffer grows to
+      the width of the largest pyramid level on first use and is reused
+      for every following level, iteration and slice, so that the
+      iteration loop itself does not allocate. The affine steepest
+      descent images and the inverse of their Hessian belong to the
+      template and are kept in the reference ImagePyramid instead.
+
+    Each iteration makes a single sweep over the image: the fused
+      residual kernels warp a pixel, subtract the reference, and
+      accumulate both the squared error and the steepest descent
+      products in sdp, so no warped or residual image is stored. The
+      interpolation is done in single precision, which is what the
+      residual is stored in anyway; the sums are kept in double. The small linear systems
+      are solved in place on preallocated arrays: closed form for the
+      2x2 translation Hessian and the 3x3 warp composition, Gauss-Jordan
+      elimination for the 6x6 affine Hessian.
+*/
+class LucasKanadeWorkspace {
+
+    /* residual of the current row of the affine warp */
+    private float[] row = new float[0];
+
+    /* 2x2 or 6x6 inverse Hessian, row-major */
+    final double[] hInv = new double[36];
+
+    /* steepest descent parameter updates */
+    final double[] sdp = new double[6];
+    final double[] dp = new double[6];
+
+    /* Gauss-Jordan scratch */
+    private final double[] lu = new double[36];
+
+    /* result of the last estimation on one level: the number of
+         iterations, whether it stopped on the tolerance, and the RMSE of
+         the returned warp (NaN if there was no iteration) */
+    int     iterations = 0;
+    boolean converged = false;
+    double  rmse = Double.NaN;
+
+    /**
+        Inverts the symmetric 2x2 matrix [[a, b], [b, c]] into hInv.
+
+        Returns false if the matrix is singular.
+    */
+    boolean invert2x2(double a, double b, double c) {
+        double det = a * c - b * b;
+        if (det == 0.0)
+            return false;
+        hInv[0] =  c / det;
+        hInv[1] = -b / det;
+        hInv[2] = -b / det;
+        hInv[3] =  a / det;
+        return true;
+    }
+
+
+    /**
+        Inverts the 6x6 row-major matrix h into hInv by Gauss-Jordan
+          elimination with partial pivoting.
+
+        Returns false if the matrix is singular.
+    */
+    boolean invert6x6(double[] h) {
+        final int n = 6;
+        System.arraycopy(h, 0, lu, 0, n * n);
+        for (int i = 0; i < n * n; ++i)
+            hInv[i] = 0.0;
+        for (int i = 0; i < n; ++i)
+            hInv[i * n + i] = 1.0;
+
+        for (int col = 0; col < n; ++col) {
+            int pivot = col;
+            double max = Math.abs(lu[col * n + col]);
+            for (int row = col + 1; row < n; ++row) {
+                double v = Math.abs(lu[row * n + col]);
+                if (v > max) {
+                    max = v;
+                    pivot = row;
+                }
+            }
+            if (max == 0.0)
+                return false;
+            if (pivot != col) {
+                for (int k = 0; k < n; ++k) {
+                    double t = lu[col * n + k];
+                    lu[col * n + k] = lu[pivot * n + k];
+                    lu[pivot * n + k] = t;
+                    t = hInv[col * n + k];
+                    hInv[col * n + k] = hInv[pivot * n + k];
+                    hInv[pivot * n + k] = t;
+                }
+            }
+            double s = 1.0 / lu[col * n + col];
+            for (int k = 0; k < n; ++k) {
+                lu[col * n + k] *= s;
+                hInv[col * n + k] *= s;
+            }
+            for (int row = 0; row < n; ++row) {
+                if (row == col)
+                    continue;
+                double f = lu[row * n + col];
+                if (f == 0.0)
+                    continue;
+                for (int k = 0; k < n; ++k) {
+                    lu[row * n + k] -= f * lu[col * n + k];
+                    hInv[row * n + k] -= f * hInv[col * n + k];
+                }
+            }
+        }
+        return true;
+    }
+
+
+    /**
+        Warps pixels by the translation (tx, ty) with clamped borders,
+          subtracts refPixels and accumulates the products of the residual
+          with dxRef and dyRef into sdp[0] and sdp[1].
+
+        Returns the root mean square of the residual.
+    */
+    double residualTranslation(float[] pixels, float[] refPixels,
+                               float[] dxRef, float[] dyRef,
+                               int width, int height, double tx, double ty)
+    {
+        int ix = (int)Math.floor(tx);
+        int iy = (int)Math.floor(ty);
+        double fx = tx - ix;
+        double fy = ty - iy;
+        boolean integer = fx == 0.0 && fy == 0.0;
+        float gx = (float)fx;
+        float gy = (float)fy;
+
+        // Output range whose four neighbours all lie inside the source.
+        int x0 = Math.max(0, -ix), x1 = Math.min(width, width - 1 - ix);
+        int y0 = Math.max(0, -iy), y1 = Math.min(height, height - 1 - iy);
+        if (integer) {
+            x1 = Math.min(width, width - ix);
+            y1 = Math.min(height, height - iy);
+        }
+
+        double sum = 0.0, sd0 = 0.0, sd1 = 0.0;
+
+        for (int y = 0; y < height; ++y) {
+            int p = y * width;
+            int xa = x0, xb = x1;
+            if (y < y0 || y >= y1 || x0 >= x1)
+                xa = xb = width; // whole row on the border
+            for (int x = 0; x < xa; ++x) {
+                float e = (float)edge(pixels, width, height, x, y, tx, ty, ix, iy, integer) - refPixels[p + x];
+                sum += e * e;
+                sd0 += dxRef[p + x] * e;
+                sd1 += dyRef[p + x] * e;
+            }
+            int q = (y + iy) * width + xa + ix;
+            if (integer) {
+                for (int x = xa; x < xb; ++x, ++q) {
+                    float e = pixels[q] - refPixels[p + x];
+                    sum += e * e;
+                    sd0 += dxRef[p + x] * e;
+                    sd1 += dyRef[p + x] * e;
+                }
+            }
+            else {
+                for (int x = xa; x < xb; ++x, ++q) {
+                    float lower = pixels[q] + gx * (pixels[q + 1] - pixels[q]);
+                    float upper = pixels[q + width] + gx * (pixels[q + width + 1] - pixels[q + width]);
+                    float e = lower + gy * (upper - lower) - refPixels[p + x];
+                    sum += e * e;
+                    sd0 += dxRef[p + x] * e;
+                    sd1 += dyRef[p + x] * e;
+                }
+            }
+            for (int x = xb; x < width; ++x) {
+                float e = (float)edge(pixels, width, height, x, y, tx, ty, ix, iy, integer) - refPixels[p + x];
+                sum += e * e;
+                sd0 += dxRef[p + x] * e;
+                sd1 += dyRef[p + x] * e;
+            }
+        }
+
+        sdp[0] = sd0;
+        sdp[1] = sd1;
+        return Math.sqrt(sum / (width * height));
+    }
+
+
+    /**
+        Warps pixels by the affine wp with clamped borders, subtracts
+          refPixels and accumulates the products of the residual with the
+          six steepest descent images into sdp; sd holds them as
+          consecutive planes of width * height values.
+
+        Returns the root mean square of the residual.
+    */
+    double residualAffine(float[] pixels, float[] refPixels, float[] sd,
+                          int width, int height, double[][] wp)
+    {
+        double a00 = 1.0 + wp[0][0], a01 = wp[0][1], a02 = wp[0][2];
+        double a10 = wp[1][0], a11 = 1.0 + wp[1][1], a12 = wp[1][2];
+        double xMax = width - 1.0;
+        double yMax = height - 1.0;
+
+        int n = width * height;
+        double sum = 0.0;
+        double s0 = 0.0, s1 = 0.0, s2 = 0.0, s3 = 0.0, s4 = 0.0, s5 = 0.0;
+
+        if (row.length < width)
+            row = new float[width];
+
+        for (int y = 0; y < height; ++y) {
+            int p = y * width;
+
+            // Residual of one row, then all products while it is in cache.
+            double xx = a01 * y + a02;
+            double yy = a11 * y + a12;
+            for (int x = 0; x < width; ++x, xx += a00, yy += a10) {
+                float v;
+                if (xx >= 0.0 && yy >= 0.0 && xx < xMax && yy < yMax) {
+                    int xbase = (int)xx;
+                    int ybase = (int)yy;
+                    float xf = (float)(xx - xbase);
+                    float yf = (float)(yy - ybase);
+                    int o = ybase * width + xbase;
+                    float lower = pixels[o] + xf * (pixels[o + 1] - pixels[o]);
+                    float upper = pixels[o + width] + xf * (pixels[o + width + 1] - pixels[o + width]);
+                    v = lower + yf * (upper - lower);
+                }
+                else
+                    v = (float)BilinearWarp.edge(pixels, width, height, xx, yy, BilinearWarp.BORDER_CLAMP);
+                row[x] = v - refPixels[p + x];
+            }
+            int p1 = p + n, p2 = p1 + n, p3 = p2 + n, p4 = p3 + n, p5 = p4 + n;
+            for (int x = 0; x < width; ++x) {
+                float e = row[x];
+                sum += e * e;
+                s0 += sd[p + x] * e;
+                s1 += sd[p1 + x] * e;
+                s2 += sd[p2 + x] * e;
+                s3 += sd[p3 + x] * e;
+                s4 += sd[p4 + x] * e;
+                s5 += sd[p5 + x] * e;
+            }
+        }
+
+        sdp[0] = s0;
+        sdp[1] = s1;
+        sdp[2] = s2;
+        sdp[3] = s3;
+        sdp[4] = s4;
+        sdp[5] = s5;
+        return Math.sqrt(sum / (width * height));
+    }
+
+
+    /** Samples a translated pixel outside of the interior range. */
+    static double edge(float[] pixels, int width, int height, int x, int y,
+                       double tx, double ty, int ix, int iy, boolean integer)
+    {
+        if (integer)
+            return pixels[clamp(y + iy, height) * width + clamp(x + ix, width)];
+        return BilinearWarp.edge(pixels, width, height, x + tx, y + ty, BilinearWarp.BORDER_CLAMP);
+    }
+
+
+    static int clamp(int i, int size) {
+        return i < 0 ? 0 : i >= size ? size - 1 : i;
+    }
+
+
+    void setResult(int iterations, boolean converged, double rmse) {
+        this.iterations = iterations;
+        this.converged = converged;
+        this.rmse = rmse < Double.MAX_VALUE ? rmse : Double.NaN;
+    }
+
+
+    /** dp = hInv * sdp for the first n parameters. */
+    void solve(double[] hInv, int n) {
+        for (int j = 0; j < n; ++j) {
+            double sum = 0.0;
+            for (int i = 0; i < n; ++i)
+                sum += hInv[j * n + i] * sdp[i];
+            dp[j] = sum;
+        }
+    }
+
+
+    /**
+        Updates the translation wp with the inverse of the incremental
+          warp dp, i.e. W(x; wp) = W(x; wp) o W(x; dp)^-1.
+    */
+    void composeTranslation(double[][] wp) {
+        wp[0][0] -= dp[0];
+        wp[1][0] -= dp[1];
+    }
+
+
+    /**
+        Updates the affine warp wp with the inverse of the incremental
+          warp dp, i.e. W(x; wp) = W(x; wp) o W(x; dp)^-1, using the
+          closed form inverse of the 3x3 homogeneous matrix.
+    */
+    void composeAffine(double[][] wp) {
+        // incremental warp d
+        double d00 = dp[0] + 1.0, d01 = dp[2], d02 = dp[4];
+        double d10 = dp[1], d11 = dp[3] + 1.0, d12 = dp[5];
+
+        // inverse of d
+        double det = d00 * d11 - d01 * d10;
+        double i00 =  d11 / det, i01 = -d01 / det;
+        double i10 = -d10 / det, i11 =  d00 / det;
+        double i02 = -(i00 * d02 + i01 * d12);
+        double i12 = -(i10 * d02 + i11 * d12);
+
+        // current warp w
+        double w00 = wp[0][0] + 1.0, w01 = wp[0][1], w02 = wp[0][2];
+        double w10 = wp[1][0], w11 = wp[1][1] + 1.0, w12 = wp[1][2];
+
+        wp[0][0] = w00 * i00 + w01 * i10 - 1.0;
+        wp[0][1] = w00 * i01 + w01 * i11;
+        wp[0][2] = w00 * i02 + w01 * i12 + w02;
+        wp[1][0] = w10 * i00 + w11 * i10;
+        wp[1][1] = w10 * i01 + w11 * i11 - 1.0;
+        wp[1][2] = w10 * i02 + w11 * i12 + w12;
+    }
+}
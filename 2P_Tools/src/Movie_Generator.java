@@ -0,0 +1,680 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.plugin.PlugIn;
+import ij.process.*;
+
+/**
+    Synthetic two-photon recordings with ground truth, for load and
+      regression tests of the toolbox.
+
+    The scene is a smooth neuropil background with somata, soft disks of
+      random brightness. Every soma fires spikes as a Poisson process,
+      and each spike adds a calcium transient of the given dF/F that
+      decays exponentially. The neuropil fluctuates slowly as a whole.
+      The fluorescence bleaches exponentially, the frame moves on a
+      random walk (rigid), optionally with a random walk of its own for
+      every tile of a grid (nonrigid), and the pixels get Poisson shot
+      noise before they are converted to 8, 16 or 32 bits.
+
+    Frames are generated in blocks of BLOCK: the recursions of the
+      spikes, the neuropil and the motion advance serially through a
+      block, then its frames are rendered in parallel and written
+      straight to disk, so the memory needed does not depend on the
+      number of frames. The output is one multi-page TIFF or BigTIFF
+      file, or an image sequence that opens as a virtual stack.
+
+    Ground truth written next to the movie, NAME being its name:
+      NAME_motion.istl  transformation log that undoes the motion, for
+                        the Image_Stabilizer_Log_Applier. Translation
+                        for rigid motion, piecewise rigid with the grid
+                        of the tiles for nonrigid motion. The motion
+                        starts at zero, so frame 1 is the scene and the
+                        log is what the Image_Stabilizer logs with frame
+                        1 as the template.
+      NAME_shifts.csv   displacement of every frame: frame(x) =
+                        scene(x + d); per tile centre for nonrigid motion
+      NAME_traces.csv   true dF/F of every soma in percent, without
+                        neuropil, noise and bleaching
+      NAME_RoiSet.zip   one oval ROI per soma, for the RoiManager
+      NAME_mask.tif     16-bit label image, soma i + 1 on its pixels
+
+    Without a display, for example to produce large test recordings:
+      java -Djava.awt.headless=true -cp ij.jar:TwoPhoton.jar Movie_Generator
+           --out <dir> [--name s] [--size <w>x<h>] [--frames n]
+           [--bits 8|16|32] [--format sequence|tiff|bigtiff] [--somata n]
+           [--radius r] [--rate hz] [--spike-rate hz] [--decay s]
+           [--amplitude dff] [--neuropil v] [--photons p] [--bleach frames]
+           [--motion none|rigid|nonrigid] [--shift px] [--tile-shift px]
+           [--tiles <x>x<y>] [--seed n]
+*/
+public class Movie_Generator implements PlugIn {
+
+    static final int NONE = 0;
+    static final int RIGID = 1;
+    static final int NONRIGID = 2;
+
+    /* frames per block; see above */
+    static final int BLOCK = 32;
+
+    /* correlation of the motion random walks from frame to frame */
+    static final double MOTION_CORRELATION = 0.98;
+
+    int     width = 512;
+    int     height = 512;
+    int     nFrames = 1000;
+    int     bitDepth = 16;
+    int     output = Image_Stabilizer.MULTIPAGE_TIFF;  // or IMAGE_SEQUENCE, BIG_TIFF
+    String  outputDir = null;
+    String  name = "synthetic";
+    long    seed = 1;
+
+    /* somata and calcium transients */
+    int     nSomata = 100;
+    double  somaRadius = 6.0;          // pixels
+    double  baseline = 400.0;          // mean soma brightness, grey values
+    double  frameRate = 30.0;          // Hz
+    double  spikeRate = 0.5;           // Hz per soma
+    double  decayTime = 0.6;           // seconds
+    double  amplitude = 0.8;           // dF/F of one spike
+
+    /* neuropil, noise and bleaching */
+    double  neuropil = 150.0;          // mean grey value
+    double  neuropilFluctuation = 0.05; // relative standard deviation
+    double  photonsPerLevel = 1.0;     // shot noise: photons per grey value
+    double  bleachHalfLife = 0.0;      // frames, 0 for no bleaching
+
+    /* motion */
+    int     motion = RIGID;
+    double  motionAmplitude = 3.0;     // standard deviation of the frame, pixels
+    double  nonrigidAmplitude = 1.0;   // of the tiles relative to the frame
+    int     tilesX = 4;
+    int     tilesY = 4;
+
+    /* the scene */
+    float[]   neuropilField = null;
+    double[]  somaX = null;
+    double[]  somaY = null;
+    double[]  somaBaseline = null;
+    int[][]   footprintIndex = null;
+    float[][] footprintWeight = null;
+
+    TiffStreamWriter tiffWriter = null;
+    volatile IOException failure = null;
+
+    final ThreadLocal<FloatProcessor[]> buffers = new ThreadLocal<FloatProcessor[]>() {
+        @Override
+        protected FloatProcessor[] initialValue() {
+            return new FloatProcessor[] { new FloatProcessor(width, height),
+                                          new FloatProcessor(width, height) };
+        }
+    };
+
+
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        Movie_Generator generator = new Movie_Generator();
+        try {
+            generator.parse(args);
+            String error = generator.validate();
+            if (error != null)
+                throw new IllegalArgumentException(error);
+            if (generator.outputDir == null)
+                throw new IllegalArgumentException("No output directory; use --out.");
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(2);
+        }
+        try {
+            generator.generate();
+        }
+        catch (IOException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+
+    void parse(String[] args) {
+        for (int i = 0; i < args.length; ++i) {
+            String arg = args[i];
+            if (arg.equals("--out"))
+                outputDir = HeadlessRunner.value(args, ++i, arg);
+            else if (arg.equals("--name"))
+                name = HeadlessRunner.value(args, ++i, arg);
+            else if (arg.equals("--size")) {
+                int[] size = pair(HeadlessRunner.value(args, ++i, arg), arg);
+                width = size[0];
+                height = size[1];
+            }
+            else if (arg.equals("--frames"))
+                nFrames = HeadlessRunner.toInt(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--bits"))
+                bitDepth = HeadlessRunner.toInt(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--format")) {
+                String format = HeadlessRunner.value(args, ++i, arg);
+                if (format.equalsIgnoreCase("sequence"))
+                    output = Image_Stabilizer.IMAGE_SEQUENCE;
+                else if (format.equalsIgnoreCase("tiff"))
+                    output = Image_Stabilizer.MULTIPAGE_TIFF;
+                else if (format.equalsIgnoreCase("bigtiff"))
+                    output = Image_Stabilizer.BIG_TIFF;
+                else
+                    throw new IllegalArgumentException("Unknown format: " + format);
+            }
+            else if (arg.equals("--somata"))
+                nSomata = HeadlessRunner.toInt(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--radius"))
+                somaRadius = HeadlessRunner.toDouble(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--rate"))
+                frameRate = HeadlessRunner.toDouble(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--spike-rate"))
+                spikeRate = HeadlessRunner.toDouble(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--decay"))
+                decayTime = HeadlessRunner.toDouble(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--amplitude"))
+                amplitude = HeadlessRunner.toDouble(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--neuropil"))
+                neuropil = HeadlessRunner.toDouble(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--photons"))
+                photonsPerLevel = HeadlessRunner.toDouble(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--bleach"))
+                bleachHalfLife = HeadlessRunner.toDouble(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--motion")) {
+                String m = HeadlessRunner.value(args, ++i, arg);
+                if (m.equalsIgnoreCase("none"))
+                    motion = NONE;
+                else if (m.equalsIgnoreCase("rigid"))
+                    motion = RIGID;
+                else if (m.equalsIgnoreCase("nonrigid"))
+                    motion = NONRIGID;
+                else
+                    throw new IllegalArgumentException("Unknown motion: " + m);
+            }
+            else if (arg.equals("--shift"))
+                motionAmplitude = HeadlessRunner.toDouble(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--tile-shift"))
+                nonrigidAmplitude = HeadlessRunner.toDouble(HeadlessRunner.value(args, ++i, arg), arg);
+            else if (arg.equals("--tiles")) {
+                int[] grid = pair(HeadlessRunner.value(args, ++i, arg), arg);
+                tilesX = grid[0];
+                tilesY = grid[1];
+            }
+            else if (arg.equals("--seed"))
+                seed = HeadlessRunner.toInt(HeadlessRunner.value(args, ++i, arg), arg);
+            else
+                throw new IllegalArgumentException("Unknown option: " + arg);
+        }
+    }
+
+
+    static int[] pair(String s, String option) {
+        int x = s.toLowerCase().indexOf('x');
+        if (x < 0)
+            throw new IllegalArgumentException(option + " expects <x>x<y>");
+        return new int[] { HeadlessRunner.toInt(s.substring(0, x), option),
+                           HeadlessRunner.toInt(s.substring(x + 1), option) };
+    }
+
+
+    @Override
+    public void run(String arg) {
+        if (!showDialog())
+            return;
+        try {
+            long start = System.currentTimeMillis();
+            if (generate())
+                IJ.showStatus("Wrote " + nFrames + " frames to " + outputDir + " in "
+                    + IJ.d2s((System.currentTimeMillis() - start) / 1000.0, 1) + " s");
+        }
+        catch (IOException e) {
+            IJ.error("Movie Generator", e.getMessage());
+        }
+        IJ.showProgress(1.0);
+    }
+
+
+    boolean showDialog() {
+        final String[] bitDepthNames = { "8", "16", "32" };
+        final String[] motionNames = { "None", "Rigid", "Nonrigid" };
+        final String[] outputNames = { "Image Sequence", "Multi-page TIFF", "BigTIFF" };
+        GenericDialog gd = new GenericDialog("Synthetic Movie Generator");
+        gd.addStringField("Name:", name, 16);
+        gd.addNumericField("Width:", width, 0);
+        gd.addNumericField("Height:", height, 0);
+        gd.addNumericField("Frames:", nFrames, 0);
+        gd.addChoice("Bit_Depth:", bitDepthNames, Integer.toString(bitDepth));
+        gd.addChoice("Output:", outputNames, outputNames[output]);
+        gd.addNumericField("Somata:", nSomata, 0);
+        gd.addNumericField("Soma_Radius (pixels):", somaRadius, 1);
+        gd.addNumericField("Soma_Brightness:", baseline, 0);
+        gd.addNumericField("Frame_Rate (Hz):", frameRate, 1);
+        gd.addNumericField("Spike_Rate (Hz):", spikeRate, 2);
+        gd.addNumericField("Decay_Time (s):", decayTime, 2);
+        gd.addNumericField("Transient_Amplitude (dF/F):", amplitude, 2);
+        gd.addNumericField("Neuropil_Brightness:", neuropil, 0);
+        gd.addNumericField("Neuropil_Fluctuation (relative):", neuropilFluctuation, 2);
+        gd.addNumericField("Photons_per_Grey_Value:", photonsPerLevel, 2);
+        gd.addNumericField("Bleaching_Half_Life (frames, 0 = none):", bleachHalfLife, 0);
+        gd.addChoice("Motion:", motionNames, motionNames[motion]);
+        gd.addNumericField("Motion_Amplitude (pixels):", motionAmplitude, 1);
+        gd.addNumericField("Nonrigid_Amplitude (pixels):", nonrigidAmplitude, 1);
+        gd.addNumericField("Tiles_X (nonrigid):", tilesX, 0);
+        gd.addNumericField("Tiles_Y (nonrigid):", tilesY, 0);
+        gd.addNumericField("Random_Seed:", seed, 0);
+        gd.showDialog();
+        if (gd.wasCanceled())
+            return false;
+
+        name = gd.getNextString();
+        width = (int)gd.getNextNumber();
+        height = (int)gd.getNextNumber();
+        nFrames = (int)gd.getNextNumber();
+        bitDepth = Integer.parseInt(gd.getNextChoice());
+        output = gd.getNextChoiceIndex();
+        nSomata = (int)gd.getNextNumber();
+        somaRadius = gd.getNextNumber();
+        baseline = gd.getNextNumber();
+        frameRate = gd.getNextNumber();
+        spikeRate = gd.getNextNumber();
+        decayTime = gd.getNextNumber();
+        amplitude = gd.getNextNumber();
+        neuropil = gd.getNextNumber();
+        neuropilFluctuation = gd.getNextNumber();
+        photonsPerLevel = gd.getNextNumber();
+        bleachHalfLife = gd.getNextNumber();
+        motion = gd.getNextChoiceIndex();
+        motionAmplitude = gd.getNextNumber();
+        nonrigidAmplitude = gd.getNextNumber();
+        tilesX = (int)gd.getNextNumber();
+        tilesY = (int)gd.getNextNumber();
+        seed = (long)gd.getNextNumber();
+
+        String error = validate();
+        if (error != null) {
+            IJ.error("Movie Generator", error);
+            return false;
+        }
+        DirectoryChooser dc = new DirectoryChooser("Output Directory");
+        outputDir = dc.getDirectory();
+        return outputDir != null && outputDir.length() > 0;
+    }
+
+
+    /** Returns what is wrong with the settings, or null. */
+    String validate() {
+        if (width < 16 || height < 16 || nFrames < 1)
+            return "The frames must be at least 16 x 16 pixels, and there must be at least one.";
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 32)
+            return "The bit depth must be 8, 16 or 32.";
+        if (nSomata < 0 || somaRadius <= 0.0 || frameRate <= 0.0 || decayTime <= 0.0
+                || spikeRate < 0.0 || photonsPerLevel <= 0.0 || bleachHalfLife < 0.0)
+            return "Rates, times, radius and photons must be positive.";
+        if (motion == NONRIGID && (tilesX < 1 || tilesY < 1
+                || tilesX > width / 8 || tilesY > height / 8))
+            return "Tiles must be at least 8 pixels wide and high.";
+        return null;
+    }
+
+
+    /**
+        Writes the movie and its ground truth into outputDir. Returns false
+          if it was cancelled with ESC.
+    */
+    boolean generate() throws IOException {
+        File dir = new File(outputDir);
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("Could not create " + dir.getPath());
+        createScene();
+        saveRois(new File(dir, name + "_RoiSet.zip"));
+        saveMask(new File(dir, name + "_mask.tif"));
+
+        int transform = motion == NONRIGID ? Image_Stabilizer.PIECEWISE_RIGID
+                                           : Image_Stabilizer.TRANSLATION;
+        int tiles = motion == NONRIGID ? tilesX * tilesY : 1;
+        TransformLog.Writer log = new TransformLog.Writer(new File(dir, name + "_motion.istl"),
+            transform, TransformLog.paramCount(transform, tiles));
+        PrintWriter shifts = new PrintWriter(new BufferedWriter(new FileWriter(new File(dir, name + "_shifts.csv"))));
+        PrintWriter traces = new PrintWriter(new BufferedWriter(new FileWriter(new File(dir, name + "_traces.csv"))));
+        if (output != Image_Stabilizer.IMAGE_SEQUENCE)
+            tiffWriter = new TiffStreamWriter(new File(dir, name + ".tif"), width, height,
+                bitDepth, nFrames, output == Image_Stabilizer.BIG_TIFF);
+
+        ForkJoinPool pool = new ForkJoinPool();
+        boolean cancelled = false;
+        try {
+            shifts.print("Frame,dX,dY");
+            for (int t = 1; motion == NONRIGID && t <= tiles; ++t)
+                shifts.print(",dX_" + t + ",dY_" + t);
+            shifts.println();
+            traces.print("Frame");
+            for (int i = 1; i <= nSomata; ++i)
+                traces.print(",Soma_" + i);
+            traces.println();
+
+            Random random = new Random(seed + 1);
+            double decay = Math.exp(-1.0 / (decayTime * frameRate));
+            double spikeProbability = spikeRate / frameRate;
+            double npCorrelation = Math.exp(-1.0 / frameRate); // about one second
+            double rho = MOTION_CORRELATION;
+            double step = Math.sqrt(1.0 - rho * rho);
+            double[] activity = new double[nSomata];
+            double np = 0.0;
+            double mx = 0.0;
+            double my = 0.0;
+            double[] tx = new double[tiles];
+            double[] ty = new double[tiles];
+
+            final float[][] blockActivity = new float[BLOCK][nSomata];
+            final double[] blockNeuropil = new double[BLOCK];
+            final double[][][] blockWp = new double[BLOCK][][];
+
+            for (int first = 1; first <= nFrames; first += BLOCK) {
+                if (IJ.escapePressed()) {
+                    cancelled = true;
+                    break;
+                }
+                final int blockFirst = first;
+                final int n = Math.min(BLOCK, nFrames - first + 1);
+
+                // The recursions, frame by frame; frame 1 is the scene.
+                for (int b = 0; b < n; ++b) {
+                    int frame = first + b;
+                    if (frame > 1) {
+                        for (int i = 0; i < nSomata; ++i) {
+                            activity[i] *= decay;
+                            if (random.nextDouble() < spikeProbability)
+                                activity[i] += amplitude;
+                        }
+                        np = npCorrelation * np + Math.sqrt(1.0 - npCorrelation * npCorrelation)
+                            * neuropilFluctuation * random.nextGaussian();
+                        if (motion != NONE) {
+                            mx = rho * mx + step * motionAmplitude * random.nextGaussian();
+                            my = rho * my + step * motionAmplitude * random.nextGaussian();
+                        }
+                        if (motion == NONRIGID)
+                            for (int t = 0; t < tiles; ++t) {
+                                tx[t] = rho * tx[t] + step * nonrigidAmplitude * random.nextGaussian();
+                                ty[t] = rho * ty[t] + step * nonrigidAmplitude * random.nextGaussian();
+                            }
+                    }
+                    double bleach = bleachHalfLife > 0.0
+                        ? Math.pow(0.5, (frame - 1) / bleachHalfLife) : 1.0;
+                    for (int i = 0; i < nSomata; ++i)
+                        blockActivity[b][i] = (float)activity[i];
+                    blockNeuropil[b] = bleach * (1.0 + np);
+
+                    double[][] wp;
+                    if (motion == NONRIGID) {
+                        wp = PiecewiseRigid.create(tilesX, tilesY);
+                        for (int t = 0; t < tiles; ++t) {
+                            wp[0][t] = mx + tx[t];
+                            wp[1][t] = my + ty[t];
+                        }
+                    }
+                    else
+                        wp = new double[][] { {mx}, {my} };
+                    blockWp[b] = wp;
+
+                    shifts.print(frame);
+                    if (motion == NONRIGID) {
+                        shifts.print("," + mx + "," + my);
+                        for (int t = 0; t < tiles; ++t)
+                            shifts.print("," + wp[0][t] + "," + wp[1][t]);
+                    }
+                    else
+                        shifts.print("," + mx + "," + my);
+                    shifts.println();
+                    traces.print(frame);
+                    for (int i = 0; i < nSomata; ++i)
+                        traces.print("," + (float)(100.0 * activity[i]));
+                    traces.println();
+                    log.append(frame, 1, negate(wp));
+                }
+
+                final double[] bleachOf = new double[n];
+                for (int b = 0; b < n; ++b)
+                    bleachOf[b] = bleachHalfLife > 0.0
+                        ? Math.pow(0.5, (first + b - 1) / bleachHalfLife) : 1.0;
+
+                pool.invoke(new ParallelRange.Each(0, n, 1) {
+                    @Override
+                    void process(int b) {
+                        renderFrame(blockFirst + b, blockActivity[b], blockNeuropil[b],
+                                    bleachOf[b], blockWp[b]);
+                    }
+                });
+                if (failure != null)
+                    throw failure;
+                IJ.showProgress((first + n - 1) / (double)nFrames);
+            }
+        }
+        finally {
+            pool.shutdown();
+            shifts.close();
+            traces.close();
+            log.close();
+            if (tiffWriter != null)
+                tiffWriter.close();
+            tiffWriter = null;
+        }
+        return !cancelled;
+    }
+
+
+    /**
+        Renders, warps, adds noise to and writes one frame. The somata of
+          the scene are scaled by 1 + activity and the neuropil by
+          neuropilScale; both bleach.
+    */
+    void renderFrame(int frame, float[] activity, double neuropilScale, double bleach, double[][] wp) {
+        FloatProcessor[] b = buffers.get();
+        float[] scene = (float[])b[0].getPixels();
+        float s = (float)neuropilScale;
+        for (int i = 0; i < scene.length; ++i)
+            scene[i] = s * neuropilField[i];
+        for (int i = 0; i < nSomata; ++i) {
+            float f = (float)(bleach * somaBaseline[i] * (1.0 + activity[i]));
+            int[] index = footprintIndex[i];
+            float[] weight = footprintWeight[i];
+            for (int k = 0; k < index.length; ++k)
+                scene[index[k]] += f * weight[k];
+        }
+
+        // frame(x) = scene(x + wp(x))
+        if (motion == NONE)
+            System.arraycopy(scene, 0, b[1].getPixels(), 0, scene.length);
+        else
+            BilinearWarp.warp(b[1], b[0], wp, BilinearWarp.BORDER_CLAMP);
+
+        float[] pixels = (float[])b[1].getPixels();
+        Random random = new Random(seed * 1000003L + frame);
+        for (int i = 0; i < pixels.length; ++i)
+            pixels[i] = (float)(poisson(pixels[i] * photonsPerLevel, random) / photonsPerLevel);
+
+        ImageProcessor ip = convert(b[1]);
+        try {
+            if (tiffWriter != null)
+                tiffWriter.write(frame - 1, ip.getPixels());
+            else {
+                String fileName = name + String.format("%05d", Integer.valueOf(frame)) + ".tif";
+                if (!new FileSaver(new ImagePlus(fileName, ip)).saveAsTiff(
+                        outputDir + File.separator + fileName))
+                    throw new IOException("Could not save " + fileName);
+            }
+        }
+        catch (IOException e) {
+            synchronized (this) {
+                if (failure == null)
+                    failure = e;
+            }
+        }
+    }
+
+
+    ImageProcessor convert(FloatProcessor fp) {
+        float[] pixels = (float[])fp.getPixels();
+        if (bitDepth == 8) {
+            byte[] out = new byte[pixels.length];
+            for (int i = 0; i < pixels.length; ++i)
+                out[i] = (byte)Math.min(255, (int)(pixels[i] + 0.5f));
+            return new ByteProcessor(width, height, out, null);
+        }
+        if (bitDepth == 16) {
+            short[] out = new short[pixels.length];
+            for (int i = 0; i < pixels.length; ++i)
+                out[i] = (short)Math.min(65535, (int)(pixels[i] + 0.5f));
+            return new ShortProcessor(width, height, out, null);
+        }
+        return fp;
+    }
+
+
+    /**
+        The transformation that undoes the motion wp, as the stabilizer
+          logs it. Exact for translations, to first order for the tiles.
+    */
+    static double[][] negate(double[][] wp) {
+        double[][] inverse = new double[wp.length][];
+        for (int i = 0; i < wp.length; ++i)
+            inverse[i] = wp[i].clone();
+        int rows = wp.length == 3 ? 2 : wp.length;
+        for (int i = 0; i < rows; ++i)
+            for (int j = 0; j < inverse[i].length; ++j)
+                inverse[i][j] = -inverse[i][j];
+        return inverse;
+    }
+
+
+    /** A Poisson deviate; normal above a mean of 30. */
+    static double poisson(double mean, Random random) {
+        if (mean <= 0.0)
+            return 0.0;
+        if (mean > 30.0)
+            return Math.max(0.0, Math.rint(mean + Math.sqrt(mean) * random.nextGaussian()));
+        double limit = Math.exp(-mean);
+        double p = random.nextDouble();
+        int k = 0;
+        while (p > limit) {
+            p *= random.nextDouble();
+            ++k;
+        }
+        return k;
+    }
+
+
+    /**
+        Places the somata, at least 1.5 radii apart where possible, and
+          computes the neuropil, a sum of a few random plane waves, and
+          the footprint of every soma, a disk with a soft edge.
+    */
+    void createScene() {
+        Random random = new Random(seed);
+        neuropilField = new float[width * height];
+        int waves = 6;
+        double[] kx = new double[waves];
+        double[] ky = new double[waves];
+        double[] phase = new double[waves];
+        for (int w = 0; w < waves; ++w) {
+            double angle = 2.0 * Math.PI * random.nextDouble();
+            double k = 2.0 * Math.PI / (60.0 + 200.0 * random.nextDouble());
+            kx[w] = k * Math.cos(angle);
+            ky[w] = k * Math.sin(angle);
+            phase[w] = 2.0 * Math.PI * random.nextDouble();
+        }
+        for (int y = 0; y < height; ++y)
+            for (int x = 0; x < width; ++x) {
+                double sum = 0.0;
+                for (int w = 0; w < waves; ++w)
+                    sum += Math.cos(kx[w] * x + ky[w] * y + phase[w]);
+                neuropilField[y * width + x] = (float)(neuropil * (1.0 + 0.3 * sum / waves));
+            }
+
+        somaX = new double[nSomata];
+        somaY = new double[nSomata];
+        somaBaseline = new double[nSomata];
+        footprintIndex = new int[nSomata][];
+        footprintWeight = new float[nSomata][];
+        double margin = somaRadius + 2.0;
+        double minDistance = 1.5 * somaRadius;
+        for (int i = 0; i < nSomata; ++i) {
+            for (int attempt = 0; attempt < 100; ++attempt) {
+                somaX[i] = margin + random.nextDouble() * Math.max(1.0, width - 2.0 * margin);
+                somaY[i] = margin + random.nextDouble() * Math.max(1.0, height - 2.0 * margin);
+                boolean free = true;
+                for (int j = 0; j < i && free; ++j)
+                    free = Math.hypot(somaX[i] - somaX[j], somaY[i] - somaY[j]) >= 2.0 * minDistance;
+                if (free)
+                    break;
+            }
+            somaBaseline[i] = baseline * (0.5 + random.nextDouble());
+
+            double r = somaRadius * (0.8 + 0.4 * random.nextDouble());
+            int x0 = Math.max(0, (int)Math.floor(somaX[i] - r - 2.0));
+            int x1 = Math.min(width - 1, (int)Math.ceil(somaX[i] + r + 2.0));
+            int y0 = Math.max(0, (int)Math.floor(somaY[i] - r - 2.0));
+            int y1 = Math.min(height - 1, (int)Math.ceil(somaY[i] + r + 2.0));
+            int[] index = new int[(x1 - x0 + 1) * (y1 - y0 + 1)];
+            float[] weight = new float[index.length];
+            int n = 0;
+            for (int y = y0; y <= y1; ++y)
+                for (int x = x0; x <= x1; ++x) {
+                    double d = Math.hypot(x - somaX[i], y - somaY[i]);
+                    double w = 1.0 / (1.0 + Math.exp((d - r) / 0.5));
+                    if (w < 0.01)
+                        continue;
+                    index[n] = y * width + x;
+                    weight[n++] = (float)w;
+                }
+            footprintIndex[i] = java.util.Arrays.copyOf(index, n);
+            footprintWeight[i] = java.util.Arrays.copyOf(weight, n);
+        }
+    }
+
+
+    void saveRois(File file) throws IOException {
+        ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        DataOutputStream out = new DataOutputStream(zip);
+        try {
+            RoiEncoder encoder = new RoiEncoder(out);
+            for (int i = 0; i < nSomata; ++i) {
+                String roiName = "Soma_" + (i + 1);
+                Roi roi = new OvalRoi(somaX[i] - somaRadius, somaY[i] - somaRadius,
+                                      2.0 * somaRadius, 2.0 * somaRadius);
+                roi.setName(roiName);
+                zip.putNextEntry(new ZipEntry(roiName + ".roi"));
+                encoder.write(roi);
+                out.flush();
+            }
+        }
+        finally {
+            out.close();
+        }
+    }
+
+
+    void saveMask(File file) throws IOException {
+        short[] labels = new short[width * height];
+        for (int i = 0; i < nSomata; ++i)
+            for (int k = 0; k < footprintIndex[i].length; ++k)
+                if (footprintWeight[i][k] >= 0.5f)
+                    labels[footprintIndex[i][k]] = (short)(i + 1);
+        ImagePlus mask = new ImagePlus(name + "_mask", new ShortProcessor(width, height, labels, null));
+        if (!new FileSaver(mask).saveAsTiff(file.getPath()))
+            throw new IOException("Could not save " + file.getPath());
+    }
+}
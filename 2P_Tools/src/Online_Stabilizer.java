@@ -0,0 +1,491 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import ij.*;
+import ij.gui.*;
+import ij.io.*;
+import ij.plugin.PlugIn;
+import ij.plugin.frame.Editor;
+import ij.process.*;
+
+/**
+    Online image stabilization for ImageJ.
+
+    Watches an acquisition directory and stabilizes every new frame file
+      against the running template as soon as the file is complete, with
+      the estimators and the template update of the Image_Stabilizer. The
+      first frame is the initial template. Files are taken in name order;
+      a file counts as complete once its size and modification time have
+      not changed for one poll interval. A file holding a stack adds all
+      of its slices.
+
+    The stabilized frames are appended to a window that shows the most
+      recent frames and, optionally, saved one file per frame into an
+      output directory through a write-behind thread, so the output can be
+      opened as a virtual stack while the experiment is still running. The
+      text and the binary transformation logs get one record per frame,
+      slice being the frame number and interval 1, and the binary log is
+      flushed after every frame, so the Image_Stabilizer_Log_Applier can
+      apply it to the raw frames at any time.
+
+    The work per frame does not grow with the length of the recording:
+      the template, the pyramids and the display window have a fixed size
+      and each frame gets exactly one estimate, bounded by the maximum
+      number of iterations. The latency from a complete file to its
+      stabilized frame is shown in the status bar.
+
+    Stops on ESC, when the output window is closed, or after the given
+      time without new frames.
+*/
+public class Online_Stabilizer implements PlugIn {
+
+    static final long POLL_MILLIS = 100;
+    static final long EMPTY_MILLIS = 2000; // after which an empty file is skipped
+
+    Image_Stabilizer stabilizer = new Image_Stabilizer();
+    File       watchDir = null;
+    String     outputDir = null;
+    String     suffix = ".tif";
+    boolean    processExisting = true;
+    int        framesShown = 500;
+    double     idleTimeout = 0;   // seconds, 0 waits for ever
+    int        ioQueueLength = 16;
+
+    ImageProcessor ipFloatRef = null;
+    ImagePyramid   pyramid = null;
+    ImagePyramid   refPyramid = null;
+    ImagePlus      impOut = null;
+    ImageStack     stackOut = null;
+    SliceWriteQueue writeQueue = null;
+    int        width = 0;
+    int        height = 0;
+    int        frame = 0;
+    String     lastName = "";  // files up to this name are done
+    long       totalLatency = 0;
+    long       maxLatency = 0;
+
+
+    @Override
+    public void run(String arg) {
+        DirectoryChooser dc = new DirectoryChooser("Acquisition Directory");
+        String dir = dc.getDirectory();
+        if (dir == null || dir.length() == 0)
+            return;
+        watchDir = new File(dir);
+
+        if (!showDialog())
+            return;
+
+        WatchService watcher;
+        try {
+            watcher = FileSystems.getDefault().newWatchService();
+            watchDir.toPath().register(watcher,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        catch (IOException e) {
+            IJ.error("Could not watch " + watchDir.getPath() + ": " + e.getMessage());
+            stabilizer.closeTransformLog();
+            return;
+        }
+
+        if (outputDir != null) {
+            writeQueue = new SliceWriteQueue(ioQueueLength, new SliceWriteQueue.Sink() {
+                @Override
+                public void write(int slice, ImageProcessor ip) throws IOException {
+                    writeFrame(ip, slice);
+                }
+            });
+        }
+
+        IJ.resetEscape();
+        try {
+            watch(watcher);
+        }
+        finally {
+            try {
+                watcher.close();
+            }
+            catch (IOException e) {
+                // nothing left to watch
+            }
+            try {
+                if (writeQueue != null)
+                    writeQueue.close();
+            }
+            catch (IOException e) {
+                IJ.error("Could not write the stabilized frames: " + e.getMessage());
+            }
+            writeQueue = null;
+            stabilizer.closeTransformLog();
+        }
+
+        if (frame > 0)
+            IJ.showStatus("Online stabilization: " + frame + " frames, latency "
+                + IJ.d2s(totalLatency / 1e6 / frame, 1) + " ms mean, "
+                + IJ.d2s(maxLatency / 1e6, 1) + " ms max");
+        else
+            IJ.showStatus("Online stabilization: no frames");
+    }
+
+
+    boolean showDialog() {
+        final String[] transformNames = { "Translation", "Affine" };
+        final String[] estimatorNames = { "Lucas-Kanade", "Phase Correlation",
+                                          "Phase Correlation + Lucas-Kanade" };
+        final String[] pyramidLevelNames = { "0", "1", "2", "3", "4", "5", "6", "7", "8" };
+        Image_Stabilizer s = stabilizer;
+        GenericDialog gd = new GenericDialog("Online Image Stabilizer");
+        gd.addChoice("Transformation:", transformNames, s.getTransformName(s.transform));
+        gd.addChoice("Translation_Estimator:", estimatorNames, s.getEstimatorName(s.estimator));
+        gd.addChoice("Maximum_Pyramid_Levels:", pyramidLevelNames, Integer.toString(s.pyramidLevel));
+        gd.addNumericField("Template_Update_Coefficient (0..1):", s.alpha, 2, 11, null);
+        gd.addNumericField("Maximum_Iterations:", s.maxIter, 0, 11, null);
+        gd.addNumericField("Error_Tolerance:", s.tol, 7, 11, null);
+        gd.addStringField("File_Suffix:", suffix, 11);
+        gd.addCheckbox("Process_Existing_Files", processExisting);
+        gd.addNumericField("Frames_Shown:", framesShown, 0, 11, null);
+        gd.addNumericField("Stop_After_Idle (s, 0 = never):", idleTimeout, 0, 11, null);
+        gd.addCheckbox("Save_Stabilized_Frames", false);
+        gd.addCheckbox("Log_Transformation_Coefficients", false);
+        gd.addCheckbox("Save_Binary_Log", false);
+
+        gd.showDialog();
+
+        if (gd.wasCanceled())
+            return false;
+        s.transform = s.getTransform(gd.getNextChoice());
+        s.estimator = s.getEstimator(gd.getNextChoice());
+        s.pyramidLevel = Integer.parseInt(gd.getNextChoice());
+        s.alpha = gd.getNextNumber();
+        s.maxIter = (int)gd.getNextNumber();
+        s.tol = gd.getNextNumber();
+        suffix = gd.getNextString().trim();
+        processExisting = gd.getNextBoolean();
+        framesShown = Math.max(1, (int)gd.getNextNumber());
+        idleTimeout = gd.getNextNumber();
+
+        String name = watchDir.getName();
+        if (gd.getNextBoolean()) {
+            DirectoryChooser dc = new DirectoryChooser("Output Directory");
+            outputDir = dc.getDirectory();
+            if (outputDir == null || outputDir.length() == 0)
+                return false;
+            try {
+                if (new File(outputDir).getCanonicalFile().equals(watchDir.getCanonicalFile())) {
+                    IJ.error("Output directory must be difference from the acquisition directory.");
+                    return false;
+                }
+            }
+            catch (IOException e) {
+                IJ.error("Could not get canonical file path.");
+                return false;
+            }
+        }
+
+        s.logEnabled = gd.getNextBoolean();
+        if (s.logEnabled) {
+            s.logEditor = new Editor();
+            s.logEditor.display(
+                name + ".log",
+                "Image Stabilizer Log File for "
+                    + "\"" + name + "\"\n"
+                    + s.transform + "\n"
+            );
+        }
+
+        if (gd.getNextBoolean()) {
+            File logFile;
+            if (outputDir != null)
+                logFile = new File(outputDir, name + ".istl");
+            else {
+                SaveDialog sd = new SaveDialog("Save Transformation Log", name, ".istl");
+                if (sd.getFileName() == null)
+                    return false;
+                logFile = new File(sd.getDirectory(), sd.getFileName());
+            }
+            try {
+                s.transformLog = new TransformLog.Writer(logFile, s.transform);
+            }
+            catch (IOException e) {
+                IJ.error("Could not create " + logFile.getPath() + ": " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /**
+        Event loop: collects new file names from the watcher and processes
+          the complete ones in name order. A file is complete once its size
+          and modification time have stayed the same for POLL_MILLIS. Every
+          pass checks all pending files, so a backlog is processed at once,
+          but a file that is not yet complete holds back all files after
+          it, so the frame order stays that of the names. A file that stays
+          empty for EMPTY_MILLIS, such as a placeholder or an aborted frame,
+          is skipped so that it does not hold back the rest of the recording.
+    */
+    void watch(WatchService watcher) {
+        // name -> { size, modification time, System.nanoTime() when first seen so }
+        TreeMap<String, long[]> pending = new TreeMap<String, long[]>();
+        String[] names = watchDir.list();
+        if (names != null) {
+            Arrays.sort(names);
+            for (String name : names) {
+                if (!accept(name))
+                    continue;
+                if (processExisting)
+                    pending.put(name, new long[] { -1, -1, 0 });
+                else
+                    lastName = name;
+            }
+        }
+
+        long lastFrameTime = System.nanoTime();
+        while (!isCancelled()) {
+            WatchKey key;
+            try {
+                key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (key != null) {
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                        continue;
+                    String name = ((Path)event.context()).toString();
+                    if (accept(name) && !pending.containsKey(name))
+                        pending.put(name, new long[] { -1, -1, 0 });
+                }
+                if (!key.reset())
+                    break; // the directory is gone
+            }
+
+            Iterator<Map.Entry<String, long[]>> it = pending.entrySet().iterator();
+            boolean inOrder = true; // all files before the current one are processed
+            while (it.hasNext() && !isCancelled()) {
+                Map.Entry<String, long[]> entry = it.next();
+                File file = new File(watchDir, entry.getKey());
+                long[] state = entry.getValue();
+                long size = file.length();
+                long modified = file.lastModified();
+                long now = System.nanoTime();
+                if (size != state[0] || modified != state[1]) {
+                    boolean growing = state[0] >= 0 && size > 0;
+                    state[0] = size;
+                    state[1] = modified;
+                    state[2] = now;
+                    if (growing)
+                        break; // still being written
+                    inOrder = false;
+                    continue;
+                }
+                if (size == 0) {
+                    if (now - state[2] < EMPTY_MILLIS * 1000000L) {
+                        inOrder = false;
+                        continue;
+                    }
+                    // Read again if it is written before a later file is done.
+                    it.remove();
+                    IJ.log("Online Stabilizer: skipped the empty file " + entry.getKey());
+                    continue;
+                }
+                if (now - state[2] < POLL_MILLIS * 1000000L) {
+                    inOrder = false;
+                    continue;
+                }
+                if (!inOrder)
+                    continue;
+                it.remove();
+                lastName = entry.getKey();
+                processFile(file);
+                lastFrameTime = System.nanoTime();
+            }
+
+            if (idleTimeout > 0 && pending.isEmpty()
+                    && System.nanoTime() - lastFrameTime > idleTimeout * 1e9)
+                break;
+            if (frame == 0)
+                IJ.showStatus("Waiting for frames in " + watchDir.getName()
+                    + " ... (Press 'ESC' to Stop)");
+        }
+    }
+
+
+    /**
+        Frames are taken in name order, so names at or before the last
+          processed file are left alone; this also ignores the modify
+          events of files that are done.
+    */
+    boolean accept(String name) {
+        return !name.startsWith(".") && name.compareTo(lastName) > 0
+            && name.toLowerCase().endsWith(suffix.toLowerCase());
+    }
+
+
+    boolean isCancelled() {
+        if (IJ.escapePressed())
+            return true;
+        if (writeQueue != null && writeQueue.failed())
+            return true;
+        if (impOut == null)
+            return false;
+        ImageWindow win = impOut.getWindow();
+        return null != win && win.isClosed();
+    }
+
+
+    void processFile(File file) {
+        long start = System.nanoTime();
+        Opener opener = new Opener();
+        opener.setSilentMode(true);
+        ImagePlus imp = opener.openImage(file.getPath());
+        if (imp == null) {
+            IJ.log("Online stabilizer: could not open " + file.getName());
+            return;
+        }
+        ImageStack stack = imp.getStack();
+        String baseName = stabilizer.getBaseName(file.getName());
+        for (int i = 1; i <= stack.getSize(); ++i) {
+            String label = stack.getSize() == 1 ? baseName
+                : baseName + String.format("_%03d", Integer.valueOf(i));
+            if (!processFrame(stack.getProcessor(i), label))
+                break;
+        }
+        long latency = System.nanoTime() - start;
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+        IJ.showStatus("Frame " + frame + ": " + file.getName() + ", "
+            + IJ.d2s(latency / 1e6, 1) + " ms (Press 'ESC' to Stop)");
+    }
+
+
+    /**
+        Stabilizes one frame against the running template and updates the
+          template, as Image_Stabilizer.process() does for the next slice.
+    */
+    boolean processFrame(ImageProcessor ip, String label) {
+        Image_Stabilizer s = stabilizer;
+        if (ipFloatRef == null) {
+            width = ip.getWidth();
+            height = ip.getHeight();
+            ipFloatRef = ip instanceof FloatProcessor ? ip.duplicate() : ip.convertToFloat();
+            pyramid = s.createPyramid(width, height);
+            refPyramid = s.createPyramid(width, height);
+            ++frame;
+            double[][] wp = s.transform == Image_Stabilizer.TRANSLATION
+                ? new double[2][1] : new double[2][3];
+            log(wp);
+            output(ip, label);
+            return true;
+        }
+        if (ip.getWidth() != width || ip.getHeight() != height) {
+            IJ.log("Online stabilizer: skipped " + label + ", size differs from the first frame");
+            return true;
+        }
+        if (ip.getBitDepth() != impOut.getBitDepth()) {
+            IJ.log("Online stabilizer: skipped " + label + ", type differs from the first frame");
+            return true;
+        }
+        ++frame;
+
+        ImageProcessor ipFloat = ip.convertToFloat();
+        double[][] wp;
+        if (s.transform == Image_Stabilizer.TRANSLATION)
+            wp = s.estimateTranslation(ipFloat, ipFloatRef, pyramid, refPyramid, s.maxIter, s.tol);
+        else
+            wp = s.estimateAffine(ipFloat, ipFloatRef, pyramid, refPyramid, s.maxIter, s.tol);
+        log(wp);
+
+        FloatProcessor ipFloatOut = new FloatProcessor(width, height);
+        if (s.transform == Image_Stabilizer.TRANSLATION)
+            s.warpTranslation(ipFloatOut, ipFloat, wp);
+        else
+            s.warpAffine(ipFloatOut, ipFloat, wp);
+
+        ImageProcessor ipOut;
+        if (ip instanceof ColorProcessor)
+            ipOut = s.warpSlice(ip, wp);
+        else if (ip instanceof ByteProcessor)
+            ipOut = ipFloatOut.convertToByte(false);
+        else if (ip instanceof ShortProcessor)
+            ipOut = ipFloatOut.convertToShort(false);
+        else
+            ipOut = ipFloatOut;
+        output(ipOut, label);
+
+        s.combine(ipFloatRef, ipFloatOut);
+        return !isCancelled();
+    }
+
+
+    void log(double[][] wp) {
+        Image_Stabilizer s = stabilizer;
+        if (s.logEditor != null) {
+            StringBuilder sb = new StringBuilder();
+            s.appendLogLine(sb, frame, 1, wp);
+            s.logEditor.append(sb.toString());
+        }
+        s.logTransform(frame, 1, wp);
+        if (s.transformLog == null)
+            return;
+        // Keep the file current, for the Log Applier during the experiment.
+        try {
+            s.transformLog.flush();
+        }
+        catch (IOException e) {
+            IJ.error("Could not write the transformation log: " + e.getMessage());
+            s.closeTransformLog();
+        }
+    }
+
+
+    /**
+        Appends a stabilized frame to the window, which keeps only the
+          last framesShown frames, and queues it for writing.
+    */
+    void output(ImageProcessor ipOut, String label) {
+        if (writeQueue != null) {
+            try {
+                writeQueue.put(frame, ipOut);
+            }
+            catch (IOException e) {
+                // reported when the queue is closed; isCancelled() stops
+            }
+        }
+        if (stackOut == null) {
+            stackOut = new ImageStack(width, height);
+            stackOut.addSlice(label, ipOut);
+            impOut = new ImagePlus("Stablized " + watchDir.getName(), stackOut);
+            impOut.show();
+            return;
+        }
+        stackOut.addSlice(label, ipOut);
+        if (stackOut.getSize() > framesShown)
+            stackOut.deleteSlice(1);
+        impOut.setStack(stackOut);
+        impOut.setSlice(stackOut.getSize());
+    }
+
+
+    void writeFrame(ImageProcessor ip, int slice) throws IOException {
+        Object[] args = { Integer.valueOf(slice) };
+        String fileName = watchDir.getName() + String.format("%05d", args) + ".tif";
+        FileSaver fs = new FileSaver(new ImagePlus(fileName, ip));
+        if (!fs.saveAsTiff(outputDir + File.separator + fileName))
+            throw new IOException("Could not save " + fileName);
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.concurrent.RecursiveAction;
+
+/**
+    A range of indices (slices, records, frames or pixels) that is split
+      recursively into runs of at most grain indices, so that the workers
+      of a ForkJoinPool process the runs in parallel.
+
+    Subclasses process a whole run, e.g. a block of pixels, or extend
+      Each to handle the indices one at a time. process(from, to) can
+      also be called directly to process a range serially on the calling
+      thread.
+*/
+abstract class ParallelRange extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    /* indices per run of slices, enough work to amortize a task */
+    static final int GRAIN = 4;
+
+    final int from;
+    final int to;
+    final int grain;
+
+
+    /** The indices from..to - 1 in runs of at most GRAIN. */
+    ParallelRange(int from, int to) {
+        this(from, to, GRAIN);
+    }
+
+
+    /** The indices from..to - 1 in runs of at most grain. */
+    ParallelRange(int from, int to, int grain) {
+        this.from = from;
+        this.to = to;
+        this.grain = grain;
+    }
+
+
+    /** Processes the indices from..to - 1 of a run. */
+    abstract void process(int from, int to);
+
+
+    @Override
+    protected void compute() {
+        if (to - from <= grain)
+            process(from, to);
+        else {
+            final ParallelRange parent = this;
+            int middle = (from + to) >>> 1;
+            invokeAll(
+                new ParallelRange(from, middle, grain) {
+                    @Override
+                    void process(int from, int to) { parent.process(from, to); }
+                },
+                new ParallelRange(middle, to, grain) {
+                    @Override
+                    void process(int from, int to) { parent.process(from, to); }
+                });
+        }
+    }
+
+
+    /** A range whose indices are processed one at a time. */
+    abstract static class Each extends ParallelRange {
+        private static final long serialVersionUID = 1L;
+
+        Each(int from, int to) {
+            super(from, to);
+        }
+
+        Each(int from, int to, int grain) {
+            super(from, to, grain);
+        }
+
+        abstract void process(int index);
+
+        /** Whether the remaining indices are skipped, e.g. after a cancel. */
+        boolean stopped() {
+            return false;
+        }
+
+        /** Processes the indices from..to - 1 in order until stopped(). */
+        @Override
+        void process(int from, int to) {
+            for (int index = from; index < to; ++index) {
+                if (stopped())
+                    return;
+                process(index);
+            }
+        }
+    }
+}
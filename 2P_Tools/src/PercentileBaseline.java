@@ -0,0 +1,390 @@
+import java.util.concurrent.ForkJoinPool;
+import ij.ImageStack;
+
+/**
+    Sliding percentile baseline F0 of ROI traces and of every pixel of a
+      stack, for dF/F and dR/R of long recordings with drift and bleaching.
+
+    F0 of frame t is the given percentile of the window of frames centred
+      on t, the value of rank round(percentile (w - 1) / 100) among the w
+      frames, without interpolation. Near the first and last frames the
+      window is shifted to stay within the recording, so it always holds
+      w frames (all of them if the recording is shorter) and moves by at
+      most one frame per step.
+
+    Moving the window removes one frame and adds one, and the order
+      statistic is kept up to date instead of sorting every window:
+      8 and 16-bit values are counted in a histogram whose rank pointer
+      moves with the updates, a step of the window costing O(1), and other
+      values are split between a max-heap of the lowest ones and a min-heap
+      of the rest, a step costing O(log w).
+
+    Pixelwise, the stack is split into blocks of pixels that are processed
+      in parallel; a block reads the time series of some of its pixels from
+      all slices at a time, at most CHUNK values, and writes their F0 into
+      the slices of the result. The stack should be in memory, since every
+      such chunk reads all slices.
+*/
+class PercentileBaseline {
+
+    /* values of the time series read at a time by a block */
+    static final int CHUNK = 1 << 20;
+
+
+    /** dF/F in percent of a trace with the sliding percentile F0. */
+    static float[] deltaFF(float[] f, int window, double percentile) {
+        float[] f0 = baseline(f, window, percentile);
+        for (int t = 0; t < f.length; ++t)
+            f0[t] = (float)(100.0 * (f[t] - f0[t]) / f0[t]);
+        return f0;
+    }
+
+
+    /** dR/R in percent of the ratio of two traces with the sliding percentile R0. */
+    static float[] deltaRR(float[] yfp, float[] cfp, int window, double percentile) {
+        float[] ratio = new float[yfp.length];
+        for (int t = 0; t < ratio.length; ++t)
+            ratio[t] = yfp[t] / cfp[t];
+        return deltaFF(ratio, window, percentile);
+    }
+
+
+    /** The sliding percentile of a trace, f[t] being frame t + 1. */
+    static float[] baseline(float[] f, int window, double percentile) {
+        check(window, percentile);
+        int w = Math.min(window, f.length);
+        float[] f0 = new float[f.length];
+        new Heaps(w, rank(w, percentile)).slide(f, 0, f.length, f0);
+        return f0;
+    }
+
+
+    /**
+        Returns {dF/F, weighted dF/F} as RelativeChange.deltaFF(), with the
+          sliding percentile F0 of every pixel.
+    */
+    static ImageStack[] deltaFF(ImageStack stack, int window, double percentile,
+                                double[] weightedRange)
+    {
+        float[] average = new float[stack.getWidth() * stack.getHeight()];
+        for (int slice = 1; slice <= stack.getSize(); ++slice)
+            RelativeChange.add(RelativeChange.pixels(stack, slice), average);
+        RelativeChange.divide(average, stack.getSize());
+        float[][] f0 = baseline(stack, null, window, percentile);
+        return RelativeChange.relativeChange(stack, null, null, f0, average, weightedRange);
+    }
+
+
+    /**
+        Returns {dR/R, weighted dR/R} as RelativeChange.deltaRR(), with the
+          sliding percentile R0 of the ratio of every pixel.
+    */
+    static ImageStack[] deltaRR(ImageStack yfp, ImageStack cfp, int window, double percentile,
+                                double[] weightedRange)
+    {
+        if (cfp.getSize() != yfp.getSize() || cfp.getWidth() != yfp.getWidth()
+                || cfp.getHeight() != yfp.getHeight())
+            throw new IllegalArgumentException("YFP and CFP stacks differ in size");
+        float[] average = new float[yfp.getWidth() * yfp.getHeight()];
+        for (int slice = 1; slice <= yfp.getSize(); ++slice)
+            RelativeChange.add(RelativeChange.pixels(yfp, slice), average);
+        RelativeChange.divide(average, yfp.getSize());
+        float[][] r0 = baseline(yfp, cfp, window, percentile);
+        return RelativeChange.relativeChange(yfp, cfp, null, r0, average, weightedRange);
+    }
+
+
+    /**
+        The sliding percentile of every pixel, as f0[slice - 1][pixel], of
+          the stack or of its ratio to the denominator if that is given.
+    */
+    static float[][] baseline(final ImageStack stack, final ImageStack denominator,
+                              int window, double percentile)
+    {
+        check(window, percentile);
+        final int nSlices = stack.getSize();
+        final int w = Math.min(window, nSlices);
+        final int rank = rank(w, percentile);
+        final int n = stack.getWidth() * stack.getHeight();
+        final float[][] f0 = new float[nSlices][n];
+        // The histogram is for unsigned integers; ratios and 32-bit values go to the heaps.
+        final boolean integers = denominator == null && !(stack.getPixels(1) instanceof float[]
+                || stack.getPixels(1) instanceof int[]);
+
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new ParallelRange(0, n, TemporalFilter.BLOCK) {
+                @Override
+                void process(int from, int to) {
+                    int pixels = Math.max(1, Math.min(to - from, CHUNK / nSlices));
+                    float[] series = new float[pixels * nSlices];
+                    float[] out = new float[pixels * nSlices];
+                    Histogram histogram = integers ? new Histogram(rank) : null;
+                    Heaps heaps = integers ? null : new Heaps(w, rank);
+                    for (int first = from; first < to; first += pixels) {
+                        int last = Math.min(to, first + pixels);
+                        read(stack, denominator, first, last, series);
+                        for (int offset = 0; offset < (last - first) * nSlices; offset += nSlices) {
+                            if (integers)
+                                histogram.slide(series, offset, nSlices, w, out);
+                            else
+                                heaps.slide(series, offset, nSlices, out);
+                        }
+                        for (int t = 0; t < nSlices; ++t)
+                            for (int i = first, j = t; i < last; ++i, j += nSlices)
+                                f0[t][i] = out[j];
+                    }
+                }
+            });
+        }
+        finally {
+            pool.shutdown();
+        }
+        return f0;
+    }
+
+
+    /**
+        Reads the time series of the pixels first..last - 1 into series,
+          pixel by pixel.
+    */
+    static void read(ImageStack stack, ImageStack denominator, int first, int last, float[] series) {
+        int nSlices = stack.getSize();
+        for (int slice = 1; slice <= nSlices; ++slice) {
+            Object pixels = RelativeChange.pixels(stack, slice);
+            Object divisor = denominator != null ? RelativeChange.pixels(denominator, slice) : null;
+            for (int i = first, j = slice - 1; i < last; ++i, j += nSlices) {
+                float v = (float)TemporalFilter.value(pixels, i);
+                series[j] = divisor == null ? v : v / (float)TemporalFilter.value(divisor, i);
+            }
+        }
+    }
+
+
+    static int rank(int w, double percentile) {
+        return (int)Math.round(percentile * (w - 1) / 100.0);
+    }
+
+
+    static void check(int window, double percentile) {
+        if (window < 1)
+            throw new IllegalArgumentException("The F0 window must be at least 1 frame");
+        if (percentile < 0.0 || percentile > 100.0)
+            throw new IllegalArgumentException("The F0 percentile must be within 0-100");
+    }
+
+
+    /** First frame of the window of w of n frames around frame t. */
+    static int start(int t, int w, int n) {
+        return Math.max(0, Math.min(t - w / 2, n - w));
+    }
+
+
+    /**
+        Histogram of a window of 8 or 16-bit values with a pointer to the
+          value of a given rank. The pointer moves by the change of that
+          value between windows, in steps of 256 across empty stretches, so
+          a step of the window costs O(1) for the neighbouring ranks of
+          a time series.
+    */
+    static class Histogram {
+        final int[] counts = new int[65536];
+        final int[] coarse = new int[256];  // counts of 256 values each
+        final int rank;
+        int value = 0;                      // the value of the rank
+        int below = 0;                      // values less than value
+
+        Histogram(int rank) {
+            this.rank = rank;
+        }
+
+        void add(int v) {
+            ++counts[v];
+            ++coarse[v >> 8];
+            if (v < value)
+                ++below;
+        }
+
+        void remove(int v) {
+            --counts[v];
+            --coarse[v >> 8];
+            if (v < value)
+                --below;
+        }
+
+        /** The value of the rank, with at least rank + 1 values added. */
+        int get() {
+            while (below > rank) {
+                if ((value & 255) == 0 && below - coarse[(value >> 8) - 1] > rank) {
+                    below -= coarse[(value >> 8) - 1];
+                    value -= 256;
+                }
+                else
+                    below -= counts[--value];
+            }
+            while (below + counts[value] <= rank) {
+                if ((value & 255) == 0 && below + coarse[value >> 8] <= rank) {
+                    below += coarse[value >> 8];
+                    value += 256;
+                }
+                else
+                    below += counts[value++];
+            }
+            return value;
+        }
+
+        /**
+            Writes the sliding rank of the w values around every value of
+              series[offset..offset + n - 1] to the same place in out, and
+              leaves the histogram empty.
+        */
+        void slide(float[] series, int offset, int n, int w, float[] out) {
+            for (int t = 0; t < w; ++t)
+                add((int)series[offset + t]);
+            int start = 0;
+            for (int t = 0; t < n; ++t) {
+                int s = start(t, w, n);
+                if (s != start) {
+                    remove((int)series[offset + start]);
+                    add((int)series[offset + start + w]);
+                    start = s;
+                }
+                out[offset + t] = get();
+            }
+            for (int t = start; t < start + w; ++t)
+                remove((int)series[offset + t]);
+        }
+    }
+
+
+    /**
+        A window of w values split into a max-heap of the rank + 1 lowest
+          and a min-heap of the others, the top of the first being the value
+          of the rank. A value is kept in the slot of its frame modulo w,
+          which the frame that replaces it in the window takes over.
+    */
+    static class Heaps {
+        final int w;
+        final int rank;
+        final float[] values;
+        final int[] low;       // max-heap of slots
+        final int[] high;      // min-heap of slots
+        final int[] position;  // of a slot in its heap
+        final boolean[] inLow;
+        int lowSize;
+        int highSize;
+
+        Heaps(int w, int rank) {
+            this.w = w;
+            this.rank = rank;
+            values = new float[w];
+            low = new int[w];
+            high = new int[w];
+            position = new int[w];
+            inLow = new boolean[w];
+        }
+
+        /**
+            Writes the sliding rank of the w values around every value of
+              series[offset..offset + n - 1] to the same place in out.
+        */
+        void slide(float[] series, int offset, int n, float[] out) {
+            lowSize = 0;
+            highSize = 0;
+            for (int t = 0; t < w; ++t)
+                insert(t, series[offset + t]);
+            int start = 0;
+            for (int t = 0; t < n; ++t) {
+                int s = start(t, w, n);
+                if (s != start) {
+                    int slot = start % w;
+                    remove(slot);
+                    insert(slot, series[offset + start + w]);
+                    start = s;
+                }
+                out[offset + t] = values[low[0]];
+            }
+        }
+
+        void insert(int slot, float v) {
+            values[slot] = v;
+            boolean toLow = lowSize > 0 ? v <= values[low[0]] : highSize == 0 || v <= values[high[0]];
+            if (toLow)
+                push(low, true, slot);
+            else
+                push(high, false, slot);
+            while (lowSize > rank + 1)
+                push(high, false, pop(low, true));
+            while (lowSize < rank + 1 && highSize > 0)
+                push(low, true, pop(high, false));
+        }
+
+        void remove(int slot) {
+            boolean isLow = inLow[slot];
+            int[] heap = isLow ? low : high;
+            int size = isLow ? --lowSize : --highSize;
+            int i = position[slot];
+            if (i != size) {
+                int moved = heap[size];
+                heap[i] = moved;
+                position[moved] = i;
+                siftDown(heap, isLow, i, size);
+                siftUp(heap, isLow, position[moved]);
+            }
+        }
+
+        void push(int[] heap, boolean isLow, int slot) {
+            int size = isLow ? lowSize++ : highSize++;
+            heap[size] = slot;
+            position[slot] = size;
+            inLow[slot] = isLow;
+            siftUp(heap, isLow, size);
+        }
+
+        int pop(int[] heap, boolean isLow) {
+            int top = heap[0];
+            int size = isLow ? --lowSize : --highSize;
+            heap[0] = heap[size];
+            position[heap[0]] = 0;
+            siftDown(heap, isLow, 0, size);
+            return top;
+        }
+
+        /* whether slot a belongs above slot b in the heap */
+        boolean above(boolean isLow, int a, int b) {
+            return isLow ? values[a] > values[b] : values[a] < values[b];
+        }
+
+        void siftUp(int[] heap, boolean isLow, int i) {
+            int slot = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) >> 1;
+                if (!above(isLow, slot, heap[parent]))
+                    break;
+                heap[i] = heap[parent];
+                position[heap[i]] = i;
+                i = parent;
+            }
+            heap[i] = slot;
+            position[slot] = i;
+        }
+
+        void siftDown(int[] heap, boolean isLow, int i, int size) {
+            int slot = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && above(isLow, heap[child + 1], heap[child]))
+                    ++child;
+                if (!above(isLow, heap[child], slot))
+                    break;
+                heap[i] = heap[child];
+                position[heap[i]] = i;
+                i = child;
+            }
+            heap[i] = slot;
+            position[slot] = i;
+        }
+    }
+}
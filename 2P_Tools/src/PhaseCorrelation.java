@@ -0,0 +1,254 @@
+/**
+    Translation estimation by phase correlation for the Image_Stabilizer.
+
+    The spectrum of the reference is computed once with setReference().
+      estimate() then transforms the image, normalizes the cross-power
+      spectrum and locates the peak of its inverse transform, refined to
+      sub-pixel accuracy with a parabolic fit along each axis. Images are
+      mean-subtracted, Hann-windowed and zero-padded to the next power of
+      two, so the FFT is a plain radix-2 transform in pure Java.
+
+    The reference is shared; every thread gets its own scratch buffers,
+      so estimate() may be called concurrently once the reference is set.
+
+    The returned shift follows the stabilizer convention: warping the
+      image by {{tx}, {ty}} with warpTranslation() aligns it with the
+      reference.
+*/
+class PhaseCorrelation {
+
+    final int width;
+    final int height;
+    final int fftWidth;
+    final int fftHeight;
+
+    private final float[] windowX;
+    private final float[] windowY;
+    private final FFT fftX;
+    private final FFT fftY;
+
+    /* spectrum of the reference */
+    private final double[] refRe;
+    private final double[] refIm;
+
+    private final ThreadLocal<double[][]> scratch = new ThreadLocal<double[][]>() {
+        @Override
+        protected double[][] initialValue() {
+            int n = fftWidth * fftHeight;
+            int m = Math.max(fftWidth, fftHeight);
+            return new double[][] { new double[n], new double[n], new double[m], new double[m] };
+        }
+    };
+
+
+    PhaseCorrelation(int width, int height) {
+        this.width = width;
+        this.height = height;
+        fftWidth = nextPowerOfTwo(width);
+        fftHeight = nextPowerOfTwo(height);
+        windowX = hann(width);
+        windowY = hann(height);
+        fftX = new FFT(fftWidth);
+        fftY = fftHeight == fftWidth ? fftX : new FFT(fftHeight);
+        refRe = new double[fftWidth * fftHeight];
+        refIm = new double[fftWidth * fftHeight];
+    }
+
+
+    /** Sets the reference image; pixels holds width x height values. */
+    void setReference(float[] pixels) {
+        load(pixels, refRe, refIm);
+        transform(refRe, refIm, false);
+    }
+
+
+    /**
+        Estimates the translation of pixels against the reference.
+
+        Returns {tx, ty}.
+    */
+    double[] estimate(float[] pixels) {
+        double[][] buffers = scratch.get();
+        double[] re = buffers[0];
+        double[] im = buffers[1];
+
+        load(pixels, re, im);
+        transform(re, im, false);
+
+        // Normalized cross-power spectrum of image and reference.
+        for (int i = 0; i < re.length; ++i) {
+            double a = re[i] * refRe[i] + im[i] * refIm[i];
+            double b = im[i] * refRe[i] - re[i] * refIm[i];
+            double mag = Math.sqrt(a * a + b * b);
+            if (mag > 1e-20) {
+                re[i] = a / mag;
+                im[i] = b / mag;
+            }
+            else {
+                re[i] = 0.0;
+                im[i] = 0.0;
+            }
+        }
+        transform(re, im, true);
+
+        int peak = 0;
+        for (int i = 1; i < re.length; ++i) {
+            if (re[i] > re[peak])
+                peak = i;
+        }
+        int px = peak % fftWidth;
+        int py = peak / fftWidth;
+
+        double c = re[peak];
+        double xl = re[py * fftWidth + (px + fftWidth - 1) % fftWidth];
+        double xr = re[py * fftWidth + (px + 1) % fftWidth];
+        double yl = re[((py + fftHeight - 1) % fftHeight) * fftWidth + px];
+        double yr = re[((py + 1) % fftHeight) * fftWidth + px];
+
+        double tx = px + parabolicOffset(xl, c, xr);
+        double ty = py + parabolicOffset(yl, c, yr);
+
+        // Peaks beyond half the period correspond to negative shifts.
+        if (tx > fftWidth / 2)
+            tx -= fftWidth;
+        if (ty > fftHeight / 2)
+            ty -= fftHeight;
+
+        return new double[] { tx, ty };
+    }
+
+
+    private void load(float[] pixels, double[] re, double[] im) {
+        double mean = 0.0;
+        for (int i = 0; i < width * height; ++i)
+            mean += pixels[i];
+        mean /= width * height;
+
+        for (int i = 0; i < re.length; ++i) {
+            re[i] = 0.0;
+            im[i] = 0.0;
+        }
+        for (int y = 0; y < height; ++y) {
+            double wy = windowY[y];
+            for (int x = 0, p = y * width, q = y * fftWidth; x < width; ++x)
+                re[q + x] = (pixels[p + x] - mean) * windowX[x] * wy;
+        }
+    }
+
+
+    private void transform(double[] re, double[] im, boolean inverse) {
+        double[][] buffers = scratch.get();
+        double[] lineRe = buffers[2];
+        double[] lineIm = buffers[3];
+
+        for (int y = 0; y < fftHeight; ++y)
+            fftX.transform(re, im, y * fftWidth, 1, inverse);
+
+        for (int x = 0; x < fftWidth; ++x) {
+            for (int y = 0, p = x; y < fftHeight; ++y, p += fftWidth) {
+                lineRe[y] = re[p];
+                lineIm[y] = im[p];
+            }
+            fftY.transform(lineRe, lineIm, 0, 1, inverse);
+            for (int y = 0, p = x; y < fftHeight; ++y, p += fftWidth) {
+                re[p] = lineRe[y];
+                im[p] = lineIm[y];
+            }
+        }
+    }
+
+
+    static double parabolicOffset(double left, double center, double right) {
+        double denom = left - 2.0 * center + right;
+        if (denom >= 0.0)
+            return 0.0; // not a maximum
+        double offset = 0.5 * (left - right) / denom;
+        if (offset > 0.5) offset = 0.5;
+        if (offset < -0.5) offset = -0.5;
+        return offset;
+    }
+
+
+    static int nextPowerOfTwo(int n) {
+        int m = 1;
+        while (m < n)
+            m <<= 1;
+        return m;
+    }
+
+
+    static float[] hann(int n) {
+        float[] w = new float[n];
+        for (int i = 0; i < n; ++i)
+            w[i] = (float)(0.5 - 0.5 * Math.cos(2.0 * Math.PI * (i + 0.5) / n));
+        return w;
+    }
+
+
+    /**
+        In-place iterative radix-2 complex FFT of a fixed size with
+          precomputed twiddle factors and bit-reversal permutation.
+    */
+    static class FFT {
+        final int n;
+        private final double[] cos;
+        private final double[] sin;
+        private final int[] reverse;
+
+        FFT(int n) {
+            this.n = n;
+            cos = new double[n / 2];
+            sin = new double[n / 2];
+            for (int i = 0; i < n / 2; ++i) {
+                cos[i] = Math.cos(2.0 * Math.PI * i / n);
+                sin[i] = Math.sin(2.0 * Math.PI * i / n);
+            }
+            reverse = new int[n];
+            int bits = Integer.numberOfTrailingZeros(n);
+            for (int i = 0; i < n; ++i)
+                reverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+        }
+
+        /**
+            Transforms n values starting at offset with the given stride.
+              The inverse transform is scaled by 1/n.
+        */
+        void transform(double[] re, double[] im, int offset, int stride, boolean inverse) {
+            for (int i = 0; i < n; ++i) {
+                int j = reverse[i];
+                if (j > i) {
+                    int a = offset + i * stride;
+                    int b = offset + j * stride;
+                    double t = re[a]; re[a] = re[b]; re[b] = t;
+                    t = im[a]; im[a] = im[b]; im[b] = t;
+                }
+            }
+            double sign = inverse ? 1.0 : -1.0;
+            for (int size = 2; size <= n; size <<= 1) {
+                int half = size >> 1;
+                int step = n / size;
+                for (int start = 0; start < n; start += size) {
+                    for (int k = 0; k < half; ++k) {
+                        double wr = cos[k * step];
+                        double wi = sign * sin[k * step];
+                        int a = offset + (start + k) * stride;
+                        int b = a + half * stride;
+                        double xr = re[b] * wr - im[b] * wi;
+                        double xi = re[b] * wi + im[b] * wr;
+                        re[b] = re[a] - xr;
+                        im[b] = im[a] - xi;
+                        re[a] += xr;
+                        im[a] += xi;
+                    }
+                }
+            }
+            if (inverse) {
+                double s = 1.0 / n;
+                for (int i = 0; i < n; ++i) {
+                    re[offset + i * stride] *= s;
+                    im[offset + i * stride] *= s;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,91 @@
+/**
+    Geometry of the piecewise rigid model of the Image_Stabilizer.
+
+    The frame is divided into a grid of gridX by gridY tiles of equal
+      size. Every tile has its own translation, estimated on the tile
+      enlarged by an overlap on every side. The translations hold at the
+      tile centres and are interpolated bilinearly in between and kept
+      constant beyond the outermost centres, which gives a continuous
+      shift field over the whole frame.
+
+    The transformation is stored like a translation with one column per
+      tile and an additional row with the grid size:
+      wp = {{tx_0 .. tx_n-1}, {ty_0 .. ty_n-1}, {gridX, gridY}}, the tiles
+      in row-major order. The field depends on nothing but wp and the
+      frame size, so a logged transformation can be applied again.
+*/
+class PiecewiseRigid {
+
+    static boolean isPiecewise(double[][] wp) {
+        return wp.length == 3;
+    }
+
+
+    /** Returns the identity transformation of a grid of tiles. */
+    static double[][] create(int gridX, int gridY) {
+        int n = gridX * gridY;
+        return new double[][] { new double[n], new double[n], { gridX, gridY } };
+    }
+
+
+    /**
+        Fills bounds with {x0, y0, x1, y1}, the end exclusive, of tile t
+          enlarged by overlap pixels and clipped to the frame.
+    */
+    static void tileBounds(int t, int gridX, int gridY, int width, int height,
+                           int overlap, int[] bounds)
+    {
+        int i = t % gridX;
+        int j = t / gridX;
+        bounds[0] = Math.max(0, i * width / gridX - overlap);
+        bounds[1] = Math.max(0, j * height / gridY - overlap);
+        bounds[2] = Math.min(width, (i + 1) * width / gridX + overlap);
+        bounds[3] = Math.min(height, (j + 1) * height / gridY + overlap);
+    }
+
+
+    /**
+        Fills xs and ys with the source coordinates of row y, i.e. output
+          pixel (x, y) is sampled at (xs[x], ys[x]). rx and ry are scratch
+          arrays of at least gridX values.
+    */
+    static void sourceRow(double[][] wp, int width, int height, int y,
+                          double[] xs, double[] ys, double[] rx, double[] ry)
+    {
+        int gridX = (int)wp[2][0];
+        int gridY = (int)wp[2][1];
+
+        // Shifts of the tile columns at this row.
+        double v = clamp((y + 0.5) * gridY / height - 0.5, gridY - 1);
+        int j = Math.min((int)v, Math.max(gridY - 2, 0));
+        double fy = v - j;
+        int j1 = Math.min(j + 1, gridY - 1);
+        for (int i = 0; i < gridX; ++i) {
+            rx[i] = wp[0][j * gridX + i] + fy * (wp[0][j1 * gridX + i] - wp[0][j * gridX + i]);
+            ry[i] = wp[1][j * gridX + i] + fy * (wp[1][j1 * gridX + i] - wp[1][j * gridX + i]);
+        }
+
+        // Along the row, linear from centre to centre.
+        for (int x = 0; x < width; ++x) {
+            double u = clamp((x + 0.5) * gridX / width - 0.5, gridX - 1);
+            int i = Math.min((int)u, Math.max(gridX - 2, 0));
+            double fx = u - i;
+            int i1 = Math.min(i + 1, gridX - 1);
+            xs[x] = x + rx[i] + fx * (rx[i1] - rx[i]);
+            ys[x] = y + ry[i] + fx * (ry[i1] - ry[i]);
+        }
+    }
+
+
+    static double clamp(double value, double max) {
+        return value < 0.0 ? 0.0 : value > max ? max : value;
+    }
+
+
+    /** Copies the rectangle bounds of an image into tile. */
+    static void crop(float[] tile, float[] pixels, int width, int[] bounds) {
+        int tileWidth = bounds[2] - bounds[0];
+        for (int y = bounds[1], p = 0; y < bounds[3]; ++y, p += tileWidth)
+            System.arraycopy(pixels, y * width + bounds[0], tile, p, tileWidth);
+    }
+}
@@ -8,12 +8,10 @@ import ij.gui.Plot;
 import ij.gui.ProfilePlot;
 import ij.gui.Roi;
 import ij.gui.ShapeRoi;
-import ij.measure.Calibration;
 import ij.measure.ResultsTable;
 import ij.plugin.ImageCalculator;
 import ij.plugin.MontageMaker;
 import ij.plugin.PlugIn;
-import ij.plugin.filter.Analyzer;
 import ij.plugin.frame.RoiManager;
 import ij.process.ByteProcessor;
 import ij.process.ImageProcessor;
@@ -138,37 +136,6 @@ public class ROI_Transformation implements PlugIn {
 		return text;
 	}
 
-	/**
-	 * Method to calculate the Z-axis profile of an image with a roi selection
-	 * 
-	 * @param roi
-	 * @param toAnalyze
-	 * @param minThreshold
-	 * @param maxThreshold 
-	 */
-	
-	float[] getZAxisProfile(Roi roi, ImagePlus toAnalyze, double minThreshold, double maxThreshold) {
-		ImageStack stack = toAnalyze.getStack();
-		int size = stack.getSize();
-		float[] values = new float[size];
-		Calibration cal = toAnalyze.getCalibration();
-		Analyzer analyzer = new Analyzer(toAnalyze);
-		@SuppressWarnings("static-access")
-		int measurements = analyzer.getMeasurements();
-		//int current = toAnalyze.getCurrentSlice();
-		for (int i=1; i<=size; i++) {
-			toAnalyze.setSlice(i);
-			ImageProcessor ip = stack.getProcessor(i);
-			if (minThreshold!=ImageProcessor.NO_THRESHOLD)
-				ip.setThreshold(minThreshold,maxThreshold,ImageProcessor.NO_LUT_UPDATE);
-			ip.setRoi(roi);
-			ImageStatistics stats = ImageStatistics.getStatistics(ip, measurements, cal);
-			analyzer.saveResults(stats, roi);			
-			//analyzer.displayResults();
-			values[i-1] = (float)stats.mean;
-		}
-		return values;
-	}
 	
 	
 	// Execute PlugIn procedures.
@@ -608,16 +575,13 @@ public class ROI_Transformation implements PlugIn {
 			ResultsTable fancy = new ResultsTable();
 			float[] x = new float[transdFF.getNSlices()];
 			
+			//Means of all ROIs in one pass over the stack
+			IJ.showStatus("Extracting trace data: ");
+			float[][] traces = new RoiTraces(translatedROIs, transdFF.getWidth(), transdFF.getHeight())
+					.measure(transdFF.getStack(), transdFF.getCalibration());
 			for( int i=0; i<rCount; i++){
-				//Set ROI
-				transdFF.setRoi(translatedROIs[i]);
-				IJ.showStatus("Extracting trace data: ");
 				IJ.showProgress(1.0*i/(translatedROIs.length));
-				
-				//Calibrate measurements
-				double minThreshold = transdFF.getProcessor().getMinThreshold();
-				double maxThreshold = transdFF.getProcessor().getMaxThreshold();
-				float [] y = getZAxisProfile(translatedROIs[i], transdFF, minThreshold, maxThreshold);
+				float [] y = traces[i];
 				
 				//Initialize Table with zero values
 				if(i==0){
@@ -0,0 +1,318 @@
+import java.util.concurrent.ForkJoinPool;
+import ij.ImageStack;
+import ij.measure.Measurements;
+import ij.plugin.filter.GaussianBlur;
+import ij.process.*;
+
+/**
+    Delta F/F and Delta R/R of a stack in two passes and without
+      intermediate stacks, or of ROI traces, for Calculate_DFF,
+      Calculate_DRR and the HeadlessRunner.
+
+    The first pass reduces the stack to the baseline F0 (R0 of the ratio),
+      the mean of a range of slices, and to the average of all slices.
+      The second pass writes 100 (F - F0) / F0 of every slice and its
+      copy weighted by the background subtracted average, in parallel
+      over the slices. The values are those of the former chain of
+      Z Project and ImageCalculator operations, which held about seven
+      copies of the stack (the average, F0, DeltaF, dF/F, the weighted
+      dF/F and its 8-bit duplicate); only the two results are allocated
+      here, and the weighted one can be written straight to the 8-bit
+      image of the merged view.
+
+    In trace space, dF/F (dR/R) is computed from the mean F of a ROI, and
+      F0 (R0) from that trace, so that no pixelwise stack is needed when
+      only the traces are. This is the dF/F of the mean rather than the
+      mean of the pixelwise dF/F; the two agree for ROIs of uniform F0.
+*/
+class RelativeChange {
+
+    /** Returns {dF/F, weighted dF/F}, both 32-bit; see below. */
+    static ImageStack[] deltaFF(ImageStack stack, int startF0, int endF0) {
+        return deltaFF(stack, startF0, endF0, null);
+    }
+
+
+    /**
+        Returns {dF/F, weighted dF/F} in percent, where F0 is the mean of
+          the slices startF0..endF0 and the weighted dF/F is scaled by the
+          background subtracted average of the stack. If weightedRange
+          {min, max} is given, the weighted dF/F is 8-bit, scaled from
+          that display range as by Image>Type>8-bit.
+    */
+    static ImageStack[] deltaFF(ImageStack stack, int startF0, int endF0, double[] weightedRange) {
+        checkRange(stack.getSize(), startF0, endF0);
+        int n = stack.getWidth() * stack.getHeight();
+        float[] average = new float[n];
+        float[] f0 = new float[n];
+        for (int slice = 1; slice <= stack.getSize(); ++slice) {
+            Object pixels = pixels(stack, slice);
+            add(pixels, average);
+            if (slice >= startF0 && slice <= endF0)
+                add(pixels, f0);
+        }
+        divide(average, stack.getSize());
+        divide(f0, endF0 - startF0 + 1);
+        return relativeChange(stack, null, f0, average, weightedRange);
+    }
+
+
+    /** Returns {dR/R, weighted dR/R}, both 32-bit; see below. */
+    static ImageStack[] deltaRR(ImageStack yfp, ImageStack cfp, int startR0, int endR0) {
+        return deltaRR(yfp, cfp, startR0, endR0, null);
+    }
+
+
+    /**
+        Returns {dR/R, weighted dR/R} in percent of the ratio R = YFP/CFP,
+          where R0 is the mean ratio of the slices startR0..endR0 and the
+          weights are the average of the YFP channel. weightedRange as
+          for deltaFF().
+    */
+    static ImageStack[] deltaRR(ImageStack yfp, ImageStack cfp, int startR0, int endR0,
+                                double[] weightedRange)
+    {
+        checkRange(yfp.getSize(), startR0, endR0);
+        if (cfp.getSize() != yfp.getSize() || cfp.getWidth() != yfp.getWidth()
+                || cfp.getHeight() != yfp.getHeight())
+            throw new IllegalArgumentException("YFP and CFP stacks differ in size");
+        int n = yfp.getWidth() * yfp.getHeight();
+        float[] average = new float[n];
+        float[] r0 = new float[n];
+        float[] ratio = new float[n];
+        for (int slice = 1; slice <= yfp.getSize(); ++slice) {
+            add(pixels(yfp, slice), average);
+            if (slice >= startR0 && slice <= endR0) {
+                ratio(toFloat(yfp, slice), toFloat(cfp, slice), ratio);
+                for (int i = 0; i < n; ++i)
+                    r0[i] += ratio[i];
+            }
+        }
+        divide(average, yfp.getSize());
+        divide(r0, endR0 - startR0 + 1);
+        return relativeChange(yfp, cfp, r0, average, weightedRange);
+    }
+
+
+    /**
+        Second pass of deltaFF() and deltaRR(): 100 (F - F0) / F0 of every
+          slice, F being the ratio of stack and denominator if the latter
+          is given, and its weighted copy, 8-bit if weightedRange is given.
+    */
+    static ImageStack[] relativeChange(ImageStack stack, ImageStack denominator,
+                                       float[] f0, float[] average, double[] weightedRange)
+    {
+        return relativeChange(stack, denominator, f0, null, average, weightedRange);
+    }
+
+
+    /**
+        As above, with F0 varying over time if baseline[slice - 1] is
+          given instead of f0; the dF/F of a slice overwrites its baseline.
+    */
+    static ImageStack[] relativeChange(final ImageStack stack, final ImageStack denominator,
+                                       final float[] f0, final float[][] baseline,
+                                       float[] average, final double[] weightedRange)
+    {
+        final int width = stack.getWidth();
+        final int height = stack.getHeight();
+        final int n = width * height;
+
+        FloatProcessor avg = new FloatProcessor(width, height, average, null);
+        ImageStatistics stats = avg.getStats();
+        int minAvg = (int)stats.min;
+        int maxAvg = (int)stats.max;
+        final float[] weights = new float[n];
+        for (int i = 0; i < n; ++i)
+            weights[i] = average[i] - minAvg;
+        final double scale = 1.0 / maxAvg;
+        final boolean useDivideByZero = !Float.isInfinite(FloatBlitter.divideByZeroValue);
+
+        final int nSlices = stack.getSize();
+        final Object[] results = new Object[nSlices];
+        final Object[] weightedResults = new Object[nSlices];
+        final ThreadLocal<float[][]> buffers = new ThreadLocal<float[][]>() {
+            @Override
+            protected float[][] initialValue() {
+                return new float[][] { new float[n], new float[n] };
+            }
+        };
+
+        ParallelRange task = new ParallelRange.Each(1, nSlices + 1) {
+            @Override
+            void process(int slice) {
+                float[][] buffer = buffers.get();
+                float[] f = toFloat(stack, slice);
+                if (denominator != null) {
+                    ratio(f, toFloat(denominator, slice), buffer[0]);
+                    f = buffer[0];
+                }
+                float[] base = baseline != null ? baseline[slice - 1] : f0;
+                float[] out = baseline != null ? base : new float[n];
+                float[] outWeighted = weightedRange == null ? new float[n] : buffer[1];
+                for (int i = 0; i < n; ++i) {
+                    float d = (useDivideByZero && base[i] == 0f)
+                        ? FloatBlitter.divideByZeroValue : (f[i] - base[i]) / base[i];
+                    out[i] = (float)(d * 100.0);
+                    outWeighted[i] = (float)((out[i] * weights[i]) * scale);
+                }
+                results[slice - 1] = out;
+                if (weightedRange == null)
+                    weightedResults[slice - 1] = outWeighted;
+                else {
+                    FloatProcessor fp = new FloatProcessor(width, height, outWeighted, null);
+                    fp.setMinAndMax(weightedRange[0], weightedRange[1]);
+                    weightedResults[slice - 1] = fp.convertToByte(true).getPixels();
+                }
+            }
+        };
+        // Virtual stacks are read from disk one slice at a time.
+        if (stack.isVirtual() || (denominator != null && denominator.isVirtual()))
+            task.process(1, nSlices + 1);
+        else {
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                pool.invoke(task);
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+
+        ImageStack result = new ImageStack(width, height);
+        ImageStack weighted = new ImageStack(width, height);
+        for (int slice = 1; slice <= nSlices; ++slice) {
+            result.addSlice(stack.getSliceLabel(slice), results[slice - 1]);
+            weighted.addSlice(stack.getSliceLabel(slice), weightedResults[slice - 1]);
+        }
+        return new ImageStack[] { result, weighted };
+    }
+
+
+    /**
+        dF/F in percent of a trace, f[t] being frame t + 1, where F0 is its
+          mean over the frames startF0..endF0.
+    */
+    static float[] deltaFF(float[] f, int startF0, int endF0) {
+        checkRange(f.length, startF0, endF0);
+        double f0 = 0.0;
+        for (int t = startF0 - 1; t < endF0; ++t)
+            f0 += f[t];
+        f0 /= endF0 - startF0 + 1;
+        float[] out = new float[f.length];
+        for (int t = 0; t < f.length; ++t)
+            out[t] = (float)(100.0 * (f[t] - f0) / f0);
+        return out;
+    }
+
+
+    /**
+        dR/R in percent of the ratio of two traces, R0 being the mean ratio
+          of the frames startR0..endR0.
+    */
+    static float[] deltaRR(float[] yfp, float[] cfp, int startR0, int endR0) {
+        float[] ratio = new float[yfp.length];
+        for (int t = 0; t < ratio.length; ++t)
+            ratio[t] = yfp[t] / cfp[t];
+        return deltaFF(ratio, startR0, endR0);
+    }
+
+
+    /**
+        The background of the background subtraction: the minimum of a
+          slice after a Gauss filter of the given sigma (0 for none).
+    */
+    static int background(ImageProcessor ip, double sigma) {
+        ip = ip.duplicate();
+        if (sigma > 0.0)
+            new GaussianBlur().blurGaussian(ip, sigma);
+        return (int)ImageStatistics.getStatistics(ip, Measurements.MIN_MAX, null).min;
+    }
+
+
+    static void subtract(float[][] traces, double value) {
+        for (float[] trace : traces)
+            for (int t = 0; t < trace.length; ++t)
+                trace[t] -= value;
+    }
+
+
+    /**
+        8-bit copy of a stack scaled from the display range min..max, as by
+          Image>Type>8-bit. Always a copy, since closing its window flushes
+          the pixels.
+    */
+    static ImageStack toByte(ImageStack stack, double min, double max) {
+        ImageStack out = new ImageStack(stack.getWidth(), stack.getHeight());
+        for (int slice = 1; slice <= stack.getSize(); ++slice) {
+            ImageProcessor ip = stack.getProcessor(slice);
+            if (ip instanceof ByteProcessor)
+                ip = ip.duplicate();
+            else {
+                ip.setMinAndMax(min, max);
+                ip = ip.convertToByte(true);
+            }
+            out.addSlice(stack.getSliceLabel(slice), ip);
+        }
+        return out;
+    }
+
+
+    static void checkRange(int nSlices, int start, int end) {
+        if (start < 1 || end > nSlices || start > end)
+            throw new IllegalArgumentException("The baseline slices " + start + "-" + end
+                + " are not within 1-" + nSlices);
+    }
+
+
+    /** Pixels of a slice, 32-bit for RGB stacks. */
+    static Object pixels(ImageStack stack, int slice) {
+        Object pixels = stack.getPixels(slice);
+        if (pixels instanceof int[])
+            return stack.getProcessor(slice).convertToFloat().getPixels();
+        return pixels;
+    }
+
+
+    /** Adds the 8, 16 or 32-bit pixels to sum, as Z Project does. */
+    static void add(Object pixels, float[] sum) {
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            for (int i = 0; i < sum.length; ++i)
+                sum[i] += p[i] & 0xff;
+        }
+        else if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            for (int i = 0; i < sum.length; ++i)
+                sum[i] += p[i] & 0xffff;
+        }
+        else {
+            float[] p = (float[])pixels;
+            for (int i = 0; i < sum.length; ++i)
+                sum[i] += p[i];
+        }
+    }
+
+
+    static float[] toFloat(ImageStack stack, int slice) {
+        Object pixels = stack.getPixels(slice);
+        if (pixels instanceof float[])
+            return (float[])pixels;
+        return (float[])stack.getProcessor(slice).convertToFloat().getPixels();
+    }
+
+
+    static void ratio(float[] numerator, float[] denominator, float[] ratio) {
+        boolean useDivideByZero = !Float.isInfinite(FloatBlitter.divideByZeroValue);
+        for (int i = 0; i < ratio.length; ++i)
+            ratio[i] = (useDivideByZero && denominator[i] == 0f)
+                ? FloatBlitter.divideByZeroValue : numerator[i] / denominator[i];
+    }
+
+
+    static void divide(float[] sum, int count) {
+        float n = count;
+        for (int i = 0; i < sum.length; ++i)
+            sum[i] /= n;
+    }
+}
@@ -0,0 +1,136 @@
+import java.awt.Rectangle;
+import java.util.concurrent.ForkJoinPool;
+import ij.ImageStack;
+import ij.gui.Roi;
+import ij.measure.Calibration;
+import ij.process.*;
+
+/**
+    Mean of many ROIs in every slice of a stack, in one pass over the
+      stack.
+
+    The ROIs are rasterized once, into the indices of the pixels that
+      ImageStatistics measures for them: those of the bounding rectangle,
+      clipped to the image, within the mask of non-rectangular ROIs.
+      Every slice is then read once and the means of all ROIs are
+      accumulated from their index arrays, in parallel over the slices.
+      Measuring ROI by ROI with ImageStatistics walks the stack once per
+      ROI instead.
+
+    The means are those of ImageStatistics without a threshold: values
+      of 8 and 16-bit images are calibrated by the calibration function
+      if there is one, and infinite and NaN values of 32-bit images are
+      left out. Lines are measured as their bounding rectangle.
+*/
+class RoiTraces {
+
+    final int width;
+    final int height;
+    final int[][] indices;  // pixels of every ROI, y * width + x
+
+
+    RoiTraces(Roi[] rois, int width, int height) {
+        this.width = width;
+        this.height = height;
+        indices = new int[rois.length][];
+        // ImageProcessor.setRoi() clips the ROI and picks its mask as the statistics do.
+        ImageProcessor ip = new ByteProcessor(width, height);
+        for (int r = 0; r < rois.length; ++r) {
+            ip.setRoi(rois[r]);
+            Rectangle bounds = ip.getRoi();
+            ImageProcessor mask = ip.getMask();
+            byte[] maskPixels = mask != null ? (byte[])mask.getPixels() : null;
+            int[] index = new int[bounds.width * bounds.height];
+            int n = 0;
+            for (int y = 0, m = 0; y < bounds.height; ++y) {
+                int offset = (bounds.y + y) * width + bounds.x;
+                for (int x = 0; x < bounds.width; ++x, ++m)
+                    if (maskPixels == null || maskPixels[m] != 0)
+                        index[n++] = offset + x;
+            }
+            indices[r] = n == index.length ? index : java.util.Arrays.copyOf(index, n);
+        }
+    }
+
+
+    /** Number of pixels of ROI r. */
+    int pixelCount(int r) {
+        return indices[r].length;
+    }
+
+
+    /** Returns the mean of every ROI r in every slice s, as means[r][s - 1]. */
+    float[][] measure(ImageStack stack) {
+        return measure(stack, null);
+    }
+
+
+    /** As measure(stack), with the calibration function of cal if given. */
+    float[][] measure(final ImageStack stack, Calibration cal) {
+        if (stack.getWidth() != width || stack.getHeight() != height)
+            throw new IllegalArgumentException("The stack is not " + width + " x " + height);
+        final float[] cTable = cal != null && cal.calibrated() ? cal.getCTable() : null;
+        final int nSlices = stack.getSize();
+        final float[][] means = new float[indices.length][nSlices];
+
+        ParallelRange task = new ParallelRange.Each(1, nSlices + 1) {
+            @Override
+            void process(int slice) {
+                Object pixels = stack.getPixels(slice);
+                if (pixels instanceof int[])
+                    pixels = stack.getProcessor(slice).convertToFloat().getPixels();
+                for (int r = 0; r < indices.length; ++r)
+                    means[r][slice - 1] = (float)mean(pixels, indices[r], cTable);
+            }
+        };
+        // Virtual stacks are read from disk one slice at a time.
+        if (stack.isVirtual())
+            task.process(1, nSlices + 1);
+        else {
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                pool.invoke(task);
+            }
+            finally {
+                pool.shutdown();
+            }
+        }
+        return means;
+    }
+
+
+    static double mean(Object pixels, int[] index, float[] cTable) {
+        double sum = 0.0;
+        int n = index.length;
+        if (pixels instanceof byte[]) {
+            byte[] p = (byte[])pixels;
+            if (cTable == null)
+                for (int i : index)
+                    sum += p[i] & 0xff;
+            else
+                for (int i : index)
+                    sum += cTable[p[i] & 0xff];
+        }
+        else if (pixels instanceof short[]) {
+            short[] p = (short[])pixels;
+            if (cTable == null)
+                for (int i : index)
+                    sum += p[i] & 0xffff;
+            else
+                for (int i : index)
+                    sum += cTable[p[i] & 0xffff];
+        }
+        else {
+            float[] p = (float[])pixels;
+            n = 0;
+            for (int i : index) {
+                float v = p[i];
+                if (v >= -Float.MAX_VALUE && v <= Float.MAX_VALUE) {
+                    sum += v;
+                    ++n;
+                }
+            }
+        }
+        return sum / n;
+    }
+}
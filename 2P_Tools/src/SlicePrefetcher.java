@@ -0,0 +1,99 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import ij.*;
+import ij.process.*;
+
+/**
+    Read-ahead for slices of a (virtual) stack that are consumed in a
+      known order.
+
+    A background thread reads the slices listed in order and keeps at
+      most capacity of them ahead of the consumer, so decoding the next
+      files overlaps with the computation on the current one. The thread
+      is the only reader of the stack while it runs. next() returns the
+      slices in the listed order; should a read fail, the reader stops
+      and the remaining slices are read by next() itself.
+*/
+class SlicePrefetcher {
+
+    private final ImageStack stack;
+    private final int[] order;
+    private final BlockingQueue<ImageProcessor[]> queue;
+    private final Thread thread;
+    private int position = 0;
+    private boolean failed = false;
+
+
+    SlicePrefetcher(ImageStack stack, int[] order, int capacity) {
+        this.stack = stack;
+        this.order = order;
+        this.queue = new ArrayBlockingQueue<ImageProcessor[]>(capacity);
+        thread = new Thread("Image Stabilizer reader") {
+            @Override
+            public void run() {
+                fill();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+        Returns the processor of slice, which must be the next slice in
+          the order given to the constructor.
+    */
+    ImageProcessor next(int slice) {
+        if (position >= order.length || order[position] != slice)
+            throw new IllegalStateException("Slice " + slice + " read out of order");
+        ++position;
+        if (failed)
+            return stack.getProcessor(slice);
+        try {
+            ImageProcessor[] item = queue.take();
+            if (item[0] == null) {
+                // The reader has stopped; read the rest directly.
+                failed = true;
+                return stack.getProcessor(slice);
+            }
+            return item[0];
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return stack.getProcessor(slice);
+        }
+    }
+
+
+    /** Stops reading ahead. */
+    void close() {
+        thread.interrupt();
+        try {
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    private void fill() {
+        try {
+            for (int i = 0; i < order.length; ++i) {
+                ImageProcessor ip = null;
+                try {
+                    ip = stack.getProcessor(order[i]);
+                }
+                catch (RuntimeException e) {
+                    // leave this and all further slices to the consumer
+                }
+                queue.put(new ImageProcessor[] { ip });
+                if (ip == null)
+                    return;
+            }
+        }
+        catch (InterruptedException e) {
+            // closed
+        }
+    }
+}
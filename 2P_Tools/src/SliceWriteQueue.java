@@ -0,0 +1,106 @@
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import ij.process.*;
+
+/**
+    Bounded write-behind queue for stabilized slices.
+
+    put() hands a finished slice to a background thread that writes it
+      through the given Sink, so the compute threads do not wait for the
+      disk. When the queue is full put() blocks, which bounds the memory
+      held by pending slices to capacity images. close() drains the queue
+      and reports the first write error, if any.
+*/
+class SliceWriteQueue {
+
+    /** Destination of the queued slices. */
+    interface Sink {
+        void write(int slice, ImageProcessor ip) throws IOException;
+    }
+
+    private static final Object END = new Object();
+
+    private final BlockingQueue<Object[]> queue;
+    private final Sink sink;
+    private final Thread thread;
+    private volatile IOException error = null;
+
+
+    SliceWriteQueue(int capacity, Sink sink) {
+        this.queue = new ArrayBlockingQueue<Object[]>(capacity);
+        this.sink = sink;
+        thread = new Thread("Image Stabilizer writer") {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+    /**
+        Queues a slice for writing; blocks while the queue is full.
+
+        Throws the pending write error, if the writer has failed.
+    */
+    void put(int slice, ImageProcessor ip) throws IOException {
+        if (error != null)
+            throw error;
+        try {
+            queue.put(new Object[] { Integer.valueOf(slice), ip });
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing slice " + slice);
+        }
+    }
+
+
+    boolean failed() {
+        return error != null;
+    }
+
+
+    /** Writes all queued slices and stops the writer thread. */
+    void close() throws IOException {
+        try {
+            queue.put(new Object[] { END, null });
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing slices");
+        }
+        if (error != null)
+            throw error;
+    }
+
+
+    private void drain() {
+        while (true) {
+            Object[] item;
+            try {
+                item = queue.take();
+            }
+            catch (InterruptedException e) {
+                return;
+            }
+            if (item[0] == END)
+                return;
+            if (error != null)
+                continue; // keep accepting so that put() never blocks forever
+            try {
+                sink.write(((Integer)item[0]).intValue(), (ImageProcessor)item[1]);
+            }
+            catch (IOException e) {
+                error = e;
+            }
+            catch (RuntimeException e) {
+                error = new IOException(e.toString());
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import ij.*;
+import ij.process.*;
+
+/**
+    Virtual stack that shows a source stack with the transformations of
+      the Image_Stabilizer applied, without storing a stabilized copy.
+
+    A slice is warped when getProcessor() asks for it. The pixels of the
+      most recently used slices are kept in an LRU cache of a fixed number
+      of slices, so scrolling back and forth or reading traces slice by
+      slice does not warp the same slice twice, while the memory used
+      stays bounded whatever the length of the recording.
+
+    Slices without a transformation are shown unchanged. The processors
+      returned share their pixels with the cache; they are meant to be
+      read, as with any virtual stack changes are not kept.
+*/
+class StabilizedVirtualStack extends VirtualStack {
+
+    private final ImageStack source;
+    private final double[][][] transforms;
+    private final int border;
+    private final Map<Integer, Object> cache;
+
+
+    /**
+        transforms[slice] is the wp of that slice (1-based) in the format
+          of the stabilizer, or null for an unchanged slice.
+    */
+    StabilizedVirtualStack(ImageStack source, double[][][] transforms,
+                           final int cacheSize, int border)
+    {
+        super(source.getWidth(), source.getHeight());
+        this.source = source;
+        this.transforms = transforms;
+        this.border = border;
+        int bitDepth = source.getBitDepth();
+        if (bitDepth == 0) // not known before the first read
+            bitDepth = source.getProcessor(1).getBitDepth();
+        setBitDepth(bitDepth);
+        cache = new LinkedHashMap<Integer, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Object> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+
+    @Override
+    public ImageProcessor getProcessor(int n) {
+        Integer key = Integer.valueOf(n);
+        Object pixels;
+        synchronized (cache) {
+            pixels = cache.get(key);
+        }
+        if (pixels == null) {
+            ImageProcessor ip;
+            // Virtual sources share a single file opener.
+            synchronized (source) {
+                ip = source.getProcessor(n);
+            }
+            double[][] wp = n < transforms.length ? transforms[n] : null;
+            if (wp != null) {
+                ImageProcessor ipOut = ip.createProcessor(getWidth(), getHeight());
+                BilinearWarp.warp(ipOut, ip, wp, border);
+                ip = ipOut;
+            }
+            pixels = ip.getPixels();
+            synchronized (cache) {
+                cache.put(key, pixels);
+            }
+        }
+        return wrap(pixels);
+    }
+
+
+    private ImageProcessor wrap(Object pixels) {
+        int width = getWidth();
+        int height = getHeight();
+        if (pixels instanceof byte[])
+            return new ByteProcessor(width, height, (byte[])pixels, source.getColorModel());
+        if (pixels instanceof short[])
+            return new ShortProcessor(width, height, (short[])pixels, source.getColorModel());
+        if (pixels instanceof float[])
+            return new FloatProcessor(width, height, (float[])pixels, source.getColorModel());
+        return new ColorProcessor(width, height, (int[])pixels);
+    }
+
+
+    @Override
+    public int getSize() {
+        return source.getSize();
+    }
+
+
+    @Override
+    public String getSliceLabel(int n) {
+        return source.getSliceLabel(n);
+    }
+
+
+    @Override
+    public String getDirectory() {
+        return null;
+    }
+
+
+    @Override
+    public String getFileName(int n) {
+        return null;
+    }
+
+
+    /** Does nothing; the slices are defined by the source stack. */
+    @Override
+    public void deleteSlice(int n) {
+    }
+
+
+    /** Drops all cached slices. */
+    void clearCache() {
+        synchronized (cache) {
+            cache.clear();
+        }
+    }
+}
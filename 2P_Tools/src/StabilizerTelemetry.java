@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.util.Arrays;
+import ij.measure.ResultsTable;
+
+/**
+    Per-frame instrumentation of the Image_Stabilizer.
+
+    For every frame the total number of Lucas-Kanade iterations over all
+      pyramid levels (and tiles), the RMSE of the finest level, whether
+      every level stopped on the error tolerance rather than on the
+      maximum number of iterations, and the time spent in each phase are
+      kept in arrays that are allocated once for the whole stack, so
+      recording does not allocate.
+
+    The phases are READ (reading the frame and converting it to float),
+      GRADIENT (its gradient magnitude), PYRAMID (the coarser levels),
+      TEMPLATE (preparing and updating the template), SOLVE (the
+      iterations and the phase correlation) and WARP (warping and storing
+      the output). Work of a frame that runs on several threads, such as
+      the tiles of the piecewise rigid model, is summed over the threads.
+
+    Each thread collects the values of the frame it works on in its own
+      Counters; record() copies them into the arrays and starts the next
+      frame. Work done between frames, such as estimating a temporal bin,
+      is counted to the next frame recorded by the same thread.
+*/
+class StabilizerTelemetry {
+
+    static final int READ = 0;
+    static final int GRADIENT = 1;
+    static final int PYRAMID = 2;
+    static final int TEMPLATE = 3;
+    static final int SOLVE = 4;
+    static final int WARP = 5;
+    static final int PHASES = 6;
+
+    static final String[] PHASE_NAMES = { "Read", "Gradient", "Pyramid", "Template", "Solve", "Warp" };
+
+    /* indexed by frame, 1..nFrames; -1 iterations for frames not recorded */
+    final int[]     iterations;
+    final double[]  rmse;
+    final boolean[] converged;
+    final long[][]  nanos;       // [phase][frame]
+
+    final ThreadLocal<Counters> counters = new ThreadLocal<Counters>() {
+        @Override
+        protected Counters initialValue() {
+            return new Counters();
+        }
+    };
+
+
+    StabilizerTelemetry(int nFrames) {
+        iterations = new int[nFrames + 1];
+        rmse = new double[nFrames + 1];
+        converged = new boolean[nFrames + 1];
+        nanos = new long[PHASES][nFrames + 1];
+        Arrays.fill(iterations, -1);
+    }
+
+
+    /** Values of the frame a thread is working on. */
+    static class Counters {
+        int       iterations;
+        double    rmse;
+        boolean   converged;
+        final long[] nanos = new long[PHASES];
+
+        Counters() {
+            reset();
+        }
+
+        void reset() {
+            iterations = 0;
+            rmse = Double.NaN;
+            converged = true;
+            Arrays.fill(nanos, 0L);
+        }
+
+        /** Adds the result of an estimation; its RMSE replaces the last. */
+        void add(int iterations, boolean converged, double rmse) {
+            this.iterations += iterations;
+            this.converged &= converged;
+            this.rmse = rmse;
+        }
+    }
+
+
+    Counters counters() {
+        return counters.get();
+    }
+
+
+    void add(int phase, long nanos) {
+        counters.get().nanos[phase] += nanos;
+    }
+
+
+    /** Adds the last estimation of a workspace and its time to SOLVE. */
+    void addSolve(LucasKanadeWorkspace ws, long nanos) {
+        Counters c = counters.get();
+        c.add(ws.iterations, ws.converged, ws.rmse);
+        c.nanos[SOLVE] += nanos;
+    }
+
+
+    /** Stores the values of the calling thread as those of frame and resets them. */
+    void record(int frame) {
+        Counters c = counters.get();
+        iterations[frame] = c.iterations;
+        rmse[frame] = c.rmse;
+        converged[frame] = c.converged;
+        for (int p = 0; p < PHASES; ++p)
+            nanos[p][frame] = c.nanos[p];
+        c.reset();
+    }
+
+
+    /** One row per recorded frame, the times in nanoseconds. */
+    ResultsTable toResultsTable() {
+        ResultsTable table = new ResultsTable();
+        table.showRowNumbers(false);
+        for (int frame = 1; frame < iterations.length; ++frame) {
+            if (iterations[frame] < 0)
+                continue;
+            table.incrementCounter();
+            table.addValue("Frame", frame);
+            table.addValue("Iterations", iterations[frame]);
+            table.addValue("RMSE", rmse[frame]);
+            table.addValue("Converged", converged[frame] ? 1 : 0);
+            for (int p = 0; p < PHASES; ++p)
+                table.addValue(PHASE_NAMES[p] + "_ns", nanos[p][frame]);
+        }
+        table.setPrecision(6);
+        return table;
+    }
+
+
+    void show(String title) {
+        toResultsTable().show("Stabilization Telemetry of " + title);
+    }
+
+
+    void save(String path) throws IOException {
+        toResultsTable().saveAs(path);
+    }
+}
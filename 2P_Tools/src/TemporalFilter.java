@@ -0,0 +1,262 @@
+import java.util.concurrent.ForkJoinPool;
+import ij.*;
+
+/**
+    Temporal denoising of 8-bit, 16-bit, 32-bit and RGB stacks, in place.
+
+    KALMAN is the recursive filter of the Kalman Stack Filter plugin: the
+      first slice is the initial prediction, and every further pixel is
+      corrected as
+        gain * predicted + (1 - gain) * observed
+             + K * (observed - predicted),
+      where K = P / (P + noiseVariance) with the prediction variance P
+      starting at noiseVariance and shrinking by (1 - K) per slice. P and
+      K do not depend on the data and are the same for all pixels, so
+      the state of a pixel is just its prediction. RUNNING_AVERAGE is the
+      exponential running average gain * predicted + (1 - gain) * observed,
+      i.e. the same recursion with K = 0.
+
+    The three channels of RGB stacks are filtered separately. The results
+      of 8-bit, 16-bit and RGB stacks are truncated and clamped to the
+      range of their pixels; the Kalman Stack Filter plugin truncated them
+      as well but let values out of range wrap around.
+
+    The pixel array is split into blocks that are filtered in parallel.
+      Each block streams over all slices once and keeps one double of
+      state per pixel, so the memory needed beyond the stack itself is
+      one slice of doubles (three for RGB).
+*/
+class TemporalFilter {
+
+    static final int NONE = 0;
+    static final int KALMAN = 1;
+    static final int RUNNING_AVERAGE = 2;
+
+    static final String[] NAMES = { "None", "Kalman", "Running Average" };
+
+    /* pixels per block, small enough for the state to stay in cache */
+    static final int BLOCK = 16 * 1024;
+
+
+    /** Applies a filter of NAMES; NONE leaves the stack unchanged. */
+    static void apply(ImageStack stack, int method, double gain, double noiseVariance) {
+        if (method == KALMAN)
+            kalman(stack, gain, noiseVariance);
+        else if (method == RUNNING_AVERAGE)
+            runningAverage(stack, gain);
+    }
+
+
+    /**
+        Applies a filter of NAMES to ROI traces in place, traces[r][t] being
+          frame t + 1 of trace r, without rounding. Both filters are linear
+          with the same gains for all pixels, so the filtered mean of a ROI
+          is the mean of its filtered pixels.
+    */
+    static void apply(float[][] traces, int method, double gain, double noiseVariance) {
+        if (method == NONE || traces.length == 0)
+            return;
+        int n = traces[0].length;
+        double[] k = method == KALMAN ? kalmanGains(n, noiseVariance) : new double[n + 1];
+        double keep = 1.0 - gain;
+        for (float[] trace : traces) {
+            double predicted = trace[0];
+            for (int t = 1; t < n; ++t) {
+                double observed = trace[t];
+                predicted = gain * predicted + keep * observed + k[t + 1] * (observed - predicted);
+                trace[t] = (float)predicted;
+            }
+        }
+    }
+
+
+    static void kalman(ImageStack stack, double gain, double noiseVariance) {
+        filter(stack, gain, kalmanGains(stack.getSize(), noiseVariance));
+    }
+
+
+    /** The correction gains k[slice] of the Kalman filter of n slices. */
+    static double[] kalmanGains(int n, double noiseVariance) {
+        double[] k = new double[n + 1];
+        double predictedVariance = noiseVariance;
+        for (int slice = 2; slice <= n; ++slice) {
+            k[slice] = predictedVariance / (predictedVariance + noiseVariance);
+            predictedVariance *= 1.0 - k[slice];
+        }
+        return k;
+    }
+
+
+    static void runningAverage(ImageStack stack, double weight) {
+        filter(stack, weight, new double[stack.getSize() + 1]);
+    }
+
+
+    /** The recursion of both filters with the correction gain k[slice]. */
+    static void filter(final ImageStack stack, final double gain, final double[] k) {
+        if (stack.isVirtual())
+            throw new IllegalArgumentException("Virtual stacks cannot be filtered in place");
+        if (stack.getSize() < 2)
+            return;
+
+        int n = stack.getWidth() * stack.getHeight();
+        ForkJoinPool pool = new ForkJoinPool();
+        try {
+            pool.invoke(new ParallelRange(0, n, BLOCK) {
+                @Override
+                void process(int from, int to) {
+                    filterPixels(stack, gain, k, from, to);
+                }
+            });
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+
+    static void filterPixels(ImageStack stack, double gain, double[] k, int from, int to) {
+        Object first = stack.getPixels(1);
+        double[] predicted = new double[(to - from) * channels(first)];
+        predict(first, from, to, predicted, from);
+        filterSlices(stack, 2, 0, gain, k, from, to, predicted, from);
+    }
+
+
+    /**
+        The recursion over the slices first..getSize() of a stack whose
+          slice 1 is slice offset + 1 of the recording, predicted[i - base]
+          being the prediction of pixel i (predicted[3 * (i - base) + c]
+          that of its channel c for RGB).
+    */
+    static void filterSlices(ImageStack stack, int first, int offset, double gain, double[] k,
+                             int from, int to, double[] predicted, int base)
+    {
+        double keep = 1.0 - gain;
+        for (int slice = first; slice <= stack.getSize(); ++slice) {
+            Object pixels = stack.getPixels(slice);
+            double ks = k[offset + slice];
+            if (pixels instanceof float[]) {
+                float[] p = (float[])pixels;
+                for (int i = from, j = from - base; i < to; ++i, ++j) {
+                    double observed = p[i];
+                    double corrected = gain * predicted[j] + keep * observed
+                        + ks * (observed - predicted[j]);
+                    predicted[j] = corrected;
+                    p[i] = (float)corrected;
+                }
+            }
+            else if (pixels instanceof short[]) {
+                short[] p = (short[])pixels;
+                for (int i = from, j = from - base; i < to; ++i, ++j) {
+                    double observed = p[i] & 0xffff;
+                    double corrected = gain * predicted[j] + keep * observed
+                        + ks * (observed - predicted[j]);
+                    predicted[j] = corrected;
+                    p[i] = (short)(corrected < 0.0 ? 0 : corrected > 65535.0 ? 65535 : (int)corrected);
+                }
+            }
+            else if (pixels instanceof int[]) {
+                int[] p = (int[])pixels;
+                for (int i = from, j = 3 * (from - base); i < to; ++i) {
+                    int rgb = p[i];
+                    int filtered = rgb & 0xff000000;
+                    for (int shift = 16; shift >= 0; shift -= 8, ++j) {
+                        double observed = (rgb >> shift) & 0xff;
+                        double corrected = gain * predicted[j] + keep * observed
+                            + ks * (observed - predicted[j]);
+                        predicted[j] = corrected;
+                        filtered |= (corrected < 0.0 ? 0 : corrected > 255.0 ? 255 : (int)corrected) << shift;
+                    }
+                    p[i] = filtered;
+                }
+            }
+            else {
+                byte[] p = (byte[])pixels;
+                for (int i = from, j = from - base; i < to; ++i, ++j) {
+                    double observed = p[i] & 0xff;
+                    double corrected = gain * predicted[j] + keep * observed
+                        + ks * (observed - predicted[j]);
+                    predicted[j] = corrected;
+                    p[i] = (byte)(corrected < 0.0 ? 0 : corrected > 255.0 ? 255 : (int)corrected);
+                }
+            }
+        }
+    }
+
+
+    /**
+        A filter of NAMES applied to a recording in blocks of consecutive
+          slices, for recordings that do not fit into memory. Every block is
+          filtered in place, continuing the recursion of the previous one,
+          with the result of apply() on the whole stack.
+    */
+    static class Stream {
+        final double gain;
+        final double[] k;          // null for NONE
+        double[] predicted = null;
+        int slices = 0;            // filtered so far
+
+        Stream(int method, double gain, double noiseVariance, int nSlices) {
+            this.gain = gain;
+            k = method == KALMAN ? kalmanGains(nSlices, noiseVariance)
+                : method == RUNNING_AVERAGE ? new double[nSlices + 1] : null;
+        }
+
+        /** Filters the next block of slices, in the order of the recording. */
+        void apply(final ImageStack block) {
+            if (k == null || block.getSize() == 0)
+                return;
+            final boolean start = predicted == null;
+            if (start)
+                predicted = new double[block.getWidth() * block.getHeight()
+                                       * channels(block.getPixels(1))];
+            final int offset = slices;
+            ForkJoinPool pool = new ForkJoinPool();
+            try {
+                pool.invoke(new ParallelRange(0, block.getWidth() * block.getHeight(), BLOCK) {
+                    @Override
+                    void process(int from, int to) {
+                        // The first slice of the recording is the initial prediction.
+                        if (start)
+                            predict(block.getPixels(1), from, to, predicted, 0);
+                        filterSlices(block, start ? 2 : 1, offset, gain, k, from, to, predicted, 0);
+                    }
+                });
+            }
+            finally {
+                pool.shutdown();
+            }
+            slices += block.getSize();
+        }
+    }
+
+
+    /** 3 for RGB pixels, otherwise 1. */
+    static int channels(Object pixels) {
+        return pixels instanceof int[] ? 3 : 1;
+    }
+
+
+    /** The pixels from..to - 1 as predictions, laid out as in filterSlices(). */
+    static void predict(Object pixels, int from, int to, double[] predicted, int base) {
+        if (pixels instanceof int[]) {
+            int[] p = (int[])pixels;
+            for (int i = from, j = 3 * (from - base); i < to; ++i)
+                for (int shift = 16; shift >= 0; shift -= 8, ++j)
+                    predicted[j] = (p[i] >> shift) & 0xff;
+        }
+        else
+            for (int i = from; i < to; ++i)
+                predicted[i - base] = value(pixels, i);
+    }
+
+
+    static double value(Object pixels, int i) {
+        if (pixels instanceof float[])
+            return ((float[])pixels)[i];
+        if (pixels instanceof short[])
+            return ((short[])pixels)[i] & 0xffff;
+        return ((byte[])pixels)[i] & 0xff;
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+    Writes a stack into one uncompressed multi-page TIFF file, one slice
+      at a time and in any order.
+
+    The layout is the one ImageJ uses for its own stacks: header, first
+      IFD, ImageJ description, then the pixel data of all images back to
+      back, then the IFDs of the remaining images. Since every image has
+      a fixed offset, slices are written with positional writes and can
+      arrive out of order or from several threads; the file is valid
+      from the moment it is created and unwritten images read as zero.
+
+    Classic TIFF stores 32-bit offsets. Past 4 GB only the first IFD is
+      written, as ImageJ does, and ImageJ finds the other images through
+      the "images=" entry of the description. With bigTiff set the file
+      is a BigTIFF with 64-bit offsets and a complete IFD chain instead,
+      which is what other TIFF readers need for such files.
+
+    Supported types: 8-bit, 16-bit, 32-bit float and RGB.
+*/
+class TiffStreamWriter {
+
+    static final int NEW_SUBFILE_TYPE = 254;
+    static final int IMAGE_WIDTH = 256;
+    static final int IMAGE_LENGTH = 257;
+    static final int BITS_PER_SAMPLE = 258;
+    static final int PHOTO_INTERP = 262;
+    static final int IMAGE_DESCRIPTION = 270;
+    static final int STRIP_OFFSETS = 273;
+    static final int SAMPLES_PER_PIXEL = 277;
+    static final int ROWS_PER_STRIP = 278;
+    static final int STRIP_BYTE_COUNT = 279;
+    static final int SAMPLE_FORMAT = 339;
+
+    static final int ASCII = 2;
+    static final int SHORT = 3;
+    static final int LONG = 4;
+    static final int LONG8 = 16;
+
+    final int width;
+    final int height;
+    final int bitDepth;
+    final int nImages;
+    final boolean bigTiff;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final int bytesPerPixel;
+    private final long imageSize;
+    private final long imageOffset;
+
+    private final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate((int)imageSize).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    };
+
+
+    /**
+        Creates the file and writes its complete structure.
+
+        bitDepth is 8, 16, 24 (RGB) or 32 (float), as returned by
+          ImagePlus.getBitDepth().
+    */
+    TiffStreamWriter(File path, int width, int height, int bitDepth,
+                     int nImages, boolean bigTiff) throws IOException
+    {
+        if (bitDepth != 8 && bitDepth != 16 && bitDepth != 24 && bitDepth != 32)
+            throw new IOException("Unsupported bit depth: " + bitDepth);
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.nImages = nImages;
+        this.bigTiff = bigTiff;
+        bytesPerPixel = bitDepth / 8;
+        imageSize = (long)width * height * bytesPerPixel;
+        if (imageSize > Integer.MAX_VALUE)
+            throw new IOException("Image too large: " + width + "x" + height);
+
+        byte[] description = ("ImageJ=" + ij.IJ.getVersion() + "\nimages=" + nImages
+            + "\nslices=" + nImages + "\nloop=false\n\0").getBytes("ISO-8859-1");
+
+        int headerSize = bigTiff ? 16 : 8;
+        int firstIfdSize = ifdSize(true);
+        // The three bits per sample of RGB do not fit into a classic entry.
+        int bpsSize = (bitDepth == 24 && !bigTiff) ? 6 : 0;
+        long descriptionOffset = headerSize + firstIfdSize + bpsSize;
+        imageOffset = align(descriptionOffset + description.length);
+        long dataEnd = imageOffset + nImages * imageSize;
+        int ifdSize = ifdSize(false);
+        boolean chain = bigTiff
+            || dataEnd + (long)(nImages - 1) * ifdSize <= 0xffffffffL;
+
+        file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        channel = file.getChannel();
+
+        ByteBuffer b = ByteBuffer.allocate((int)imageOffset).order(ByteOrder.LITTLE_ENDIAN);
+        b.put((byte)'I').put((byte)'I');
+        if (bigTiff) {
+            b.putShort((short)43).putShort((short)8).putShort((short)0);
+            b.putLong(headerSize);
+        }
+        else {
+            b.putShort((short)42).putInt(headerSize);
+        }
+        long nextIfd = (chain && nImages > 1) ? dataEnd : 0L;
+        putIfd(b, true, imageOffset, nextIfd, headerSize + firstIfdSize,
+               description.length, descriptionOffset);
+        if (bpsSize > 0)
+            b.putShort((short)8).putShort((short)8).putShort((short)8);
+        b.put(description);
+        b.flip();
+        writeFully(b, 0L);
+
+        if (chain && nImages > 1) {
+            ByteBuffer ifds = ByteBuffer.allocate(ifdSize * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            long position = dataEnd;
+            for (int i = 1; i < nImages; ++i) {
+                long next = (i + 1 < nImages) ? dataEnd + (long)i * ifdSize : 0L;
+                putIfd(ifds, false, imageOffset + i * imageSize, next,
+                       headerSize + firstIfdSize, 0, 0L);
+                if (!ifds.hasRemaining() || i + 1 == nImages) {
+                    ifds.flip();
+                    int n = ifds.remaining();
+                    writeFully(ifds, position);
+                    position += n;
+                    ifds.clear();
+                }
+            }
+        }
+        else
+            file.setLength(dataEnd);
+    }
+
+
+    /**
+        Writes the pixels of the image at index (0-based). pixels is the
+          pixel array of a processor of the type given to the constructor.
+          May be called from several threads at once.
+    */
+    void write(int index, Object pixels) throws IOException {
+        if (index < 0 || index >= nImages)
+            throw new IOException("Image index out of range: " + index);
+        ByteBuffer b = buffers.get();
+        b.clear();
+        int n = width * height;
+        switch (bitDepth) {
+        case 8:
+            b.put((byte[])pixels, 0, n);
+            break;
+        case 16:
+            b.asShortBuffer().put((short[])pixels, 0, n);
+            b.position(2 * n);
+            break;
+        case 32:
+            b.asFloatBuffer().put((float[])pixels, 0, n);
+            b.position(4 * n);
+            break;
+        default:
+            int[] rgb = (int[])pixels;
+            for (int i = 0; i < n; ++i) {
+                int c = rgb[i];
+                b.put((byte)(c >> 16)).put((byte)(c >> 8)).put((byte)c);
+            }
+        }
+        b.flip();
+        writeFully(b, imageOffset + index * imageSize);
+    }
+
+
+    void close() throws IOException {
+        channel.close();
+        file.close();
+    }
+
+
+    private void writeFully(ByteBuffer b, long position) throws IOException {
+        while (b.hasRemaining())
+            position += channel.write(b, position);
+    }
+
+
+    private int entryCount(boolean first) {
+        int n = 9;
+        if (first)
+            ++n; // ImageDescription
+        if (bitDepth == 32)
+            ++n; // SampleFormat
+        return n;
+    }
+
+
+    private int ifdSize(boolean first) {
+        int n = entryCount(first);
+        return bigTiff ? 8 + n * 20 + 8 : 2 + n * 12 + 4;
+    }
+
+
+    private void putIfd(ByteBuffer b, boolean first, long stripOffset, long nextIfd,
+                        long bpsOffset, int descriptionLength, long descriptionOffset)
+    {
+        int samples = bitDepth == 24 ? 3 : 1;
+        int bits = bitDepth == 24 ? 8 : bitDepth;
+
+        if (bigTiff)
+            b.putLong(entryCount(first));
+        else
+            b.putShort((short)entryCount(first));
+        putEntry(b, NEW_SUBFILE_TYPE, LONG, 1, 0);
+        putEntry(b, IMAGE_WIDTH, LONG, 1, width);
+        putEntry(b, IMAGE_LENGTH, LONG, 1, height);
+        if (samples == 3) {
+            if (bigTiff)
+                putShortEntry(b, BITS_PER_SAMPLE, 3, 8, 8, 8);
+            else
+                putEntry(b, BITS_PER_SAMPLE, SHORT, 3, bpsOffset);
+        }
+        else
+            putShortEntry(b, BITS_PER_SAMPLE, 1, bits, 0, 0);
+        putShortEntry(b, PHOTO_INTERP, 1, samples == 3 ? 2 : 1, 0, 0);
+        if (first)
+            putEntry(b, IMAGE_DESCRIPTION, ASCII, descriptionLength, descriptionOffset);
+        putEntry(b, STRIP_OFFSETS, bigTiff ? LONG8 : LONG, 1, stripOffset);
+        putShortEntry(b, SAMPLES_PER_PIXEL, 1, samples, 0, 0);
+        putEntry(b, ROWS_PER_STRIP, LONG, 1, height);
+        putEntry(b, STRIP_BYTE_COUNT, bigTiff ? LONG8 : LONG, 1, imageSize);
+        if (bitDepth == 32)
+            putShortEntry(b, SAMPLE_FORMAT, 1, 3, 0, 0); // IEEE floating point
+        if (bigTiff)
+            b.putLong(nextIfd);
+        else
+            b.putInt((int)nextIfd);
+    }
+
+
+    private void putEntry(ByteBuffer b, int tag, int type, long count, long value) {
+        b.putShort((short)tag).putShort((short)type);
+        if (bigTiff)
+            b.putLong(count).putLong(value);
+        else
+            b.putInt((int)count).putInt((int)value);
+    }
+
+
+    private void putShortEntry(ByteBuffer b, int tag, int count, int v0, int v1, int v2) {
+        b.putShort((short)tag).putShort((short)SHORT);
+        if (bigTiff)
+            b.putLong(count).putShort((short)v0).putShort((short)v1)
+             .putShort((short)v2).putShort((short)0);
+        else
+            b.putInt(count).putShort((short)v0).putShort((short)v1);
+    }
+
+
+    static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+}
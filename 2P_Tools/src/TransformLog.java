@@ -0,0 +1,190 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+    Binary transformation log of the Image_Stabilizer.
+
+    The file starts with a header of five little-endian ints:
+      magic "ISTL", version, transform (Image_Stabilizer.TRANSLATION,
+      AFFINE or PIECEWISE_RIGID), the number of coefficients per
+      record, which for a piecewise rigid log is two per tile plus the
+      two of the grid size (see PiecewiseRigid), and the number of
+      channels. It is followed by one fixed-width record per frame in
+      processing order: int frame, int interval and the coefficients of
+      wp as doubles, row by row, in the same order as the text log. A
+      frame is one slice, or with several channels the slices
+      (frame - 1) * channels + 1 .. frame * channels of a hyperstack.
+      Logs of version 1 have no channel count and one channel.
+
+    Records are written through a buffered channel and read back through
+      a memory-mapped view, so a log of 100k slices is neither parsed nor
+      held on the heap. A log cut short by a cancelled run is still
+      readable up to its last complete record.
+*/
+class TransformLog {
+
+    static final int MAGIC = 0x4c545349; // "ISTL" read as little-endian
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 20;
+
+
+    static int paramCount(int transform) {
+        return paramCount(transform, 1);
+    }
+
+
+    /** tiles is the number of tiles of a piecewise rigid transform. */
+    static int paramCount(int transform, int tiles) {
+        if (transform == Image_Stabilizer.TRANSLATION)
+            return 2;
+        if (transform == Image_Stabilizer.AFFINE)
+            return 6;
+        return 2 * tiles + 2;
+    }
+
+
+    /** Returns a wp of the shape of the records of a log. */
+    static double[][] newTransform(int transform, int paramCount) {
+        if (transform == Image_Stabilizer.TRANSLATION)
+            return new double[2][1];
+        if (transform == Image_Stabilizer.AFFINE)
+            return new double[2][3];
+        int tiles = (paramCount - 2) / 2;
+        return new double[][] { new double[tiles], new double[tiles], new double[2] };
+    }
+
+
+    static boolean isValid(int transform, int paramCount) {
+        if (transform == Image_Stabilizer.PIECEWISE_RIGID)
+            return paramCount >= 4 && paramCount % 2 == 0;
+        return (transform == Image_Stabilizer.TRANSLATION
+            || transform == Image_Stabilizer.AFFINE)
+            && paramCount == paramCount(transform);
+    }
+
+
+    /** Appends records to a new log file. */
+    static class Writer {
+        final int transform;
+        final int paramCount;
+        final int channels;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+
+        Writer(File path, int transform) throws IOException {
+            this(path, transform, paramCount(transform));
+        }
+
+        Writer(File path, int transform, int paramCount) throws IOException {
+            this(path, transform, paramCount, 1);
+        }
+
+        Writer(File path, int transform, int paramCount, int channels) throws IOException {
+            this.transform = transform;
+            this.paramCount = paramCount;
+            this.channels = channels;
+            file = new RandomAccessFile(path, "rw");
+            file.setLength(0);
+            channel = file.getChannel();
+            buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(transform).putInt(paramCount)
+                  .putInt(channels);
+        }
+
+        /** Appends the record of one frame. */
+        synchronized void append(int slice, int interval, double[][] wp) throws IOException {
+            if (buffer.remaining() < 8 + 8 * paramCount)
+                flush();
+            buffer.putInt(slice).putInt(interval);
+            for (int r = 0; r < wp.length; ++r)
+                for (int c = 0; c < wp[r].length; ++c)
+                    buffer.putDouble(wp[r][c]);
+        }
+
+        synchronized void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        synchronized void close() throws IOException {
+            try {
+                flush();
+            }
+            finally {
+                channel.close();
+                file.close();
+            }
+        }
+    }
+
+
+    /** Read-only, memory-mapped view of a log file. */
+    static class Reader {
+        final int transform;
+        final int paramCount;
+        final int channels;
+        final int size;
+        private final MappedByteBuffer map;
+        private final int headerSize;
+        private final int recordSize;
+
+        Reader(File path) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                long length = channel.size();
+                if (length < 16)
+                    throw new IOException("Not a transformation log: " + path.getName());
+                if (length > Integer.MAX_VALUE)
+                    throw new IOException("Transformation log too large: " + path.getName());
+                map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                map.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            finally {
+                file.close(); // the mapping stays valid
+            }
+            if (map.getInt(0) != MAGIC)
+                throw new IOException("Not a transformation log: " + path.getName());
+            int version = map.getInt(4);
+            if (version != 1 && version != VERSION)
+                throw new IOException("Unsupported log version " + version);
+            headerSize = version == 1 ? 16 : HEADER_SIZE;
+            if (map.capacity() < headerSize)
+                throw new IOException("Not a transformation log: " + path.getName());
+            transform = map.getInt(8);
+            paramCount = map.getInt(12);
+            channels = version == 1 ? 1 : map.getInt(16);
+            if (!isValid(transform, paramCount))
+                throw new IOException("Invalid transformation " + transform);
+            if (channels < 1)
+                throw new IOException("Invalid number of channels " + channels);
+            recordSize = 8 + 8 * paramCount;
+            size = (map.capacity() - headerSize) / recordSize;
+        }
+
+        /** The frame of a record, a slice unless channels > 1. */
+        int getSlice(int record) {
+            return map.getInt(headerSize + record * recordSize);
+        }
+
+        int getInterval(int record) {
+            return map.getInt(headerSize + record * recordSize + 4);
+        }
+
+        /** Fills wp, which must have the shape of the logged transform. */
+        void getTransform(int record, double[][] wp) {
+            int offset = headerSize + record * recordSize + 8;
+            for (int r = 0; r < wp.length; ++r)
+                for (int c = 0; c < wp[r].length; ++c, offset += 8)
+                    wp[r][c] = map.getDouble(offset);
+        }
+    }
+}